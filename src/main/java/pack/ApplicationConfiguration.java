@@ -34,6 +34,123 @@ public class ApplicationConfiguration {
     @Value("${database.url}")
     public String databaseUrl;
 
+    // Connection pool settings, defaults are sized for one scheduler pool, the PubSub receiver and a few request threads
+    @Value("${database.pool.connections.min:2}")
+    public int databasePoolConnectionsMin;
+
+    @Value("${database.pool.connections.max:10}")
+    public int databasePoolConnectionsMax;
+
+    @Value("${database.pool.connection.max.age.ms:600000}")
+    public long databasePoolConnectionMaxAgeMs; // Idle connections older than this are closed
+
+    @Value("${database.pool.check.interval.ms:60000}")
+    public long databasePoolCheckIntervalMs; // How often idle connections are validated and evicted
+
+    @Value("${database.pool.test.before.get:true}")
+    public boolean databasePoolTestBeforeGet;
+
+    // How the JSON of new history events is stored: "inline" in the history table, or "deflate" into the payload table
+    @Value("${history.payload.storage:deflate}")
+    public String historyPayloadStorage;
+
+    // Old label updates are thinned out to one per hour or day, see LabelUpdateCompactionService
+    @Value("${label.compaction.interval.hours:24}")
+    public long labelCompactionIntervalHours;
+
+    @Value("${label.compaction.chunk.size:500}")
+    public int labelCompactionChunkSize; // Rows deleted per transaction
+
+    // Message details are fetched in Gmail batch requests, see MessageDetailHydrator
+    @Value("${gmail.hydration.batch.size:100}")
+    public int gmailHydrationBatchSize; // At most 100
+
+    @Value("${gmail.hydration.parallel.batches:4}")
+    public int gmailHydrationParallelBatches;
+
+    // All Gmail API calls are paced and retried by GmailQuotaLimiter
+    @Value("${gmail.quota.user.units.per.second:200}")
+    public double gmailQuotaUserUnitsPerSecond; // Gmail allows 250 per user
+
+    @Value("${gmail.quota.project.units.per.second:5000}")
+    public double gmailQuotaProjectUnitsPerSecond;
+
+    @Value("${gmail.retry.maximum.attempts:5}")
+    public int gmailRetryMaximumAttempts;
+
+    @Value("${gmail.retry.initial.backoff.millis:1000}")
+    public long gmailRetryInitialBackoffMillis;
+
+    @Value("${gmail.retry.maximum.backoff.millis:32000}")
+    public long gmailRetryMaximumBackoffMillis;
+
+    // Inbox messages are updated from history when it is available, see TaskService
+    @Value("${gmail.delta.sync:true}")
+    public boolean gmailDeltaSync;
+
+    @Value("${gmail.delta.sync.full.scan.hours:24}")
+    public long gmailDeltaSyncFullScanHours; // Inbox pages are still scanned this often, to repair any drift
+
+    // Backlog of messages without details, read per user in pages, see GmailService
+    @Value("${gmail.detail.page.size:500}")
+    public long gmailDetailPageSize;
+
+    @Value("${gmail.detail.budget.per.run:5000}")
+    public long gmailDetailBudgetPerRun; // Messages examined per sync, for each user
+
+    @Value("${gmail.detail.maximum.failures:5}")
+    public int gmailDetailMaximumFailures; // Messages the API refused (or answered without all details) this often are no longer requested
+
+    // Gmail clients are cached per user, see GmailApiService
+    @Value("${gmail.client.cache.size:50}")
+    public int gmailClientCacheSize;
+
+    @Value("${gmail.client.cache.idle.minutes:30}")
+    public long gmailClientCacheIdleMinutes;
+
+    @Value("${gmail.http.max.connections:20}")
+    public int gmailHttpMaxConnections; // Idle keep-alive connections kept per host
+
+    // Chart results are cached per user until data is written, see ChartResultCache
+    @Value("${chart.cache.size:100}")
+    public int chartCacheSize;
+
+    @Value("${chart.cache.maximum.age.seconds:300}")
+    public long chartCacheMaximumAgeSeconds; // The chart window moves with time, so unchanged data is still recomputed after this
+
+    // Message list pages, see StatefulMessagePageFetcher and PrefetchingMessagePageFetcher
+    @Value("${gmail.message.page.size:500}")
+    public long gmailMessagePageSize; // At most 500
+
+    @Value("${gmail.message.page.readahead:1}")
+    public int gmailMessagePageReadAhead; // Pages fetched ahead of the caller, 0 fetches only when asked
+
+    // Users are synced concurrently, see TaskService
+    @Value("${sync.worker.threads:3}")
+    public int syncWorkerThreads;
+
+    @Value("${sync.trigger.debounce.seconds:3}")
+    public long syncTriggerDebounceSeconds; // Quiet time after the last trigger before a sync starts
+
+    @Value("${sync.trigger.max.delay.seconds:30}")
+    public long syncTriggerMaxDelaySeconds; // A continuous burst of triggers does not postpone a sync beyond this
+
+    // PubSub notifications are acknowledged once stored on a queue, see NotificationQueue
+    @Value("${pubsub.queue.capacity:10000}")
+    public int pubsubQueueCapacity; // Notifications beyond this are nacked, PubSub redelivers them later
+
+    @Value("${pubsub.queue.workers:2}")
+    public int pubsubQueueWorkers;
+
+    @Value("${pubsub.queue.batch.size:100}")
+    public int pubsubQueueBatchSize; // Notifications recorded per transaction
+
+    @Value("${pubsub.flow.max.messages:1000}")
+    public long pubsubFlowMaxMessages; // Messages received but not yet acknowledged
+
+    @Value("${pubsub.flow.max.bytes:10485760}")
+    public long pubsubFlowMaxBytes;
+
     // This must be the project identifier, not simple project name
     @Value("${google.cloud.project.name}")
     public String googleCloudProjectId;
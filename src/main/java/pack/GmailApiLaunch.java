@@ -10,6 +10,7 @@ import pack.persist.SchemaUpdate;
 import pack.persist.SpecializedDatabaseTasks;
 import pack.persist.data.GmailLabelUpdate;
 import pack.persist.data.User;
+import pack.service.task.LabelUpdateCompactionService;
 import pack.service.task.TaskService;
 import pack.service.google.gmail.GmailApiService;
 import pack.service.google.gmail.GmailDataService;
@@ -41,6 +42,7 @@ public class GmailApiLaunch {
     @Autowired private GmailDataService gmailDataService;
     @Autowired private GmailApiService gmailApiService;
     @Autowired private TaskService taskService;
+    @Autowired private LabelUpdateCompactionService labelUpdateCompactionService;
     @Autowired private PubSubService pubSubService;
     @Autowired private SpecializedDatabaseTasks specializedDatabaseTasks;
 
@@ -67,7 +69,8 @@ public class GmailApiLaunch {
         }
 
         startupTime = System.currentTimeMillis();
-        taskService.taskResetTimer(); // Automatically schedule repeated task
+        taskService.scheduleAllUsers(); // Automatically schedule repeated task for each user
+        labelUpdateCompactionService.scheduleCompaction();
 
 
         // Ensures that Creates topics and subscriptions are created as required by pub/sub functionality
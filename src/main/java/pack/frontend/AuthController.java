@@ -90,8 +90,7 @@ public class AuthController {
 
         // Updates message counts (but history deltas cannot be updated until the mailbox actually changes)
         User newUser = userService.getUserWithGoogleUserId(authorizedUserGoogleId);
-        taskService.setUpdateForUser(newUser.getId());
-        taskService.taskStartSoon();
+        taskService.triggerSoon(newUser.getId());
 
         return "redirect:" + PATH__OAUTH_CALLBACK_DONE; // Redirect user to a message saying the login was successful
     }
@@ -7,18 +7,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import pack.frontend.databind.DataPointMessageCount;
 import pack.frontend.databind.DataSeriesLabelChangeSegments;
 import pack.frontend.databind.ResultsContainerMessageData;
+import pack.persist.RollupStore;
 import pack.persist.data.GmailLabelUpdate;
-import pack.persist.data.HistoryEvent;
 import pack.persist.data.User;
 import pack.persist.data.dummy.GmailLabelUpdateDummy;
+import pack.persist.data.row.HistoryEventRow;
+import pack.persist.data.row.LabelCountRow;
+import pack.service.DataVersionService;
 import pack.service.task.TaskService;
 import pack.service.UserService;
 import pack.service.google.gmail.GmailDataService;
 import pack.service.google.gmail.GmailService;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -44,6 +49,8 @@ public class ChartController {
     @Autowired private GmailDataService gmailDataService;
     @Autowired private TaskService taskService;
     @Autowired private UserService userService;
+    @Autowired private DataVersionService dataVersionService;
+    @Autowired private ChartResultCache chartResultCache;
 
     // Chart main page
     @RequestMapping(PATH__CHART)
@@ -68,7 +75,7 @@ public class ChartController {
         User userWithId = userService.getUserWithId(userIdLoggedIn);
         model.addAttribute(AuthController.MODEL__GOOGLE_USER_ID_LOGGED_IN, userWithId.getGoogleUserId());
 
-        HistoryEvent lastHistoryUpdate = gmailDataService.getLastHistoryUpdate(userIdLoggedIn);
+        HistoryEventRow lastHistoryUpdate = gmailDataService.getLastHistoryUpdate(userIdLoggedIn);
         if (lastHistoryUpdate == null) {
             model.addAttribute(ATTRIBUTE__LAST_HISTORY_UPDATE, "none yet - please refresh in 10-20s");
         } else {
@@ -86,7 +93,7 @@ public class ChartController {
             model.addAttribute(ATTRIBUTE__LAST_LABEL_UPDATE, labelInterval);
         }
 
-        ScheduledFuture scheduledFuture = taskService.getScheduledFuture();
+        ScheduledFuture scheduledFuture = taskService.getScheduledFuture(userIdLoggedIn);
         if (scheduledFuture == null) {
             log.info("Scheduled Task:  None scheduled");
 
@@ -110,17 +117,17 @@ public class ChartController {
             return "redirect:" + AuthController.PATH__OAUTH_START;
         }
 
-        taskService.setUpdateForUser(userIdLoggedIn);
-        boolean startNowResult = taskService.taskStartSoon();
+        boolean startNowResult = taskService.triggerSoon(userIdLoggedIn);
 
         log.info("Reschedule for immediate execution:  success=" + startNowResult + " redirecting to: " + refererUrl);
         return "redirect:" + refererUrl;
     }
 
     // Chart data provided by AJAX request
+    // Results are reused until the user's data changes, a client holding the current ETag gets 304 without a body
     @RequestMapping(value = {"/data/combinedChart", "/data/combinedChart/{chartIntervalHours}"})
     public @ResponseBody ResultsContainerMessageData
-    readUnread(@PathVariable(required = false) Integer chartIntervalHours, HttpSession session) throws SQLException, JsonProcessingException {
+    readUnread(@PathVariable(required = false) Integer chartIntervalHours, HttpSession session, WebRequest webRequest, HttpServletResponse response) throws SQLException, JsonProcessingException {
 
         Integer userIdLoggedIn = getUserIdLoggedIn(session); //Integer expected
         if (userIdLoggedIn == null) {
@@ -128,6 +135,28 @@ public class ChartController {
             return null;
         }
 
+        // Read before computing, a write during the computation leaves the result under the older version
+        long dataVersion = dataVersionService.getVersion(userIdLoggedIn);
+        ChartResultCache.CachedChartResult cachedResult = chartResultCache.get(userIdLoggedIn, chartIntervalHours, dataVersion);
+        if (cachedResult == null) {
+            ResultsContainerMessageData resultsContainer = buildChartData(userIdLoggedIn, chartIntervalHours);
+            if (resultsContainer == null) {
+                return null;
+            }
+            cachedResult = chartResultCache.put(userIdLoggedIn, chartIntervalHours, dataVersion, resultsContainer);
+        }
+
+        response.setHeader("Cache-Control", "private, no-cache"); // Browsers may keep the result, but must revalidate it
+        if (webRequest.checkNotModified(cachedResult.getETag(), cachedResult.getComputedMillis())) {
+            log.info("Chart data not modified since " + cachedResult.getETag() + " - " + chartResultCache.describeStatistics());
+            return null;
+        }
+
+        log.info("Returning chart data " + cachedResult.getETag() + " - " + chartResultCache.describeStatistics());
+        return cachedResult.getResult();
+    }
+
+    private ResultsContainerMessageData buildChartData(Integer userIdLoggedIn, Integer chartIntervalHours) throws SQLException {
         long dataStartTime;
         if (chartIntervalHours == null) {
             long startTimeForUserData = gmailDataService.getFirstUsableDataForUser(userIdLoggedIn);
@@ -138,8 +167,12 @@ public class ChartController {
         String intervalDescription = formatInterval(dataStartTime);
         log.info("determined chart interval of " + intervalDescription);
 
-        // Use raw unread/total counts to build a data series
-        List<GmailLabelUpdate> messageTotalsDatabase = gmailDataService.getMessageAndUnreadCountClose(userIdLoggedIn.intValue(), dataStartTime);
+        // Longer intervals are read from rollups instead of every raw row
+        long rollupResolution = RollupStore.selectResolution(GmailDataService.calculateBucketSizeFromStartTime(dataStartTime));
+        log.info("reading chart data at rollup resolution of " + rollupResolution + "ms (0 reads raw rows)");
+
+        // Use unread/total counts to build a data series
+        List<LabelCountRow> messageTotalsDatabase = gmailDataService.getMessageAndUnreadCountClose(userIdLoggedIn.intValue(), dataStartTime, rollupResolution);
         List<DataPointMessageCount> messageTotalsUi = DataPreparationFrontend.buildDataSeriesAllMessagesCount(messageTotalsDatabase);
 
 
@@ -153,7 +186,7 @@ public class ChartController {
         }
 
 
-        List<HistoryEvent> mailboxChangesDatabase = gmailDataService.getMailboxMessageChanges(userIdLoggedIn.intValue(), dataStartTime);
+        List<HistoryEventRow> mailboxChangesDatabase = gmailDataService.getMailboxMessageChanges(userIdLoggedIn.intValue(), dataStartTime, rollupResolution);
         DataSeriesLabelChangeSegments mailboxChangesUi = DataPreparationFrontend.buildDataSeriesForAllCountChanges(messageTotalsDatabase, mailboxChangesDatabase);
 
         ResultsContainerMessageData resultsContainer = new ResultsContainerMessageData();
@@ -0,0 +1,90 @@
+package pack.frontend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.ApplicationConfiguration;
+import pack.frontend.databind.ResultsContainerMessageData;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Chart results by user, chart interval and data version (see DataVersionService), so requests between syncs are not recomputed
+// The chart window moves with the current time even when nothing was written, so results are also recomputed after a maximum age
+@Component
+public class ChartResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    @Autowired private ApplicationConfiguration applicationConfiguration;
+
+    // Access-ordered, so the least recently used result is first
+    private final LinkedHashMap<String, CachedChartResult> resultsByKey = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+
+    public synchronized CachedChartResult get(int userId, Integer chartIntervalHours, long dataVersion) {
+        String key = buildKey(userId, chartIntervalHours, dataVersion);
+        CachedChartResult cachedResult = resultsByKey.get(key);
+        if (cachedResult != null && cachedResult.computedMillis < System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(applicationConfiguration.chartCacheMaximumAgeSeconds)) {
+            resultsByKey.remove(key);
+            cachedResult = null;
+        }
+
+        if (cachedResult == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return cachedResult;
+    }
+
+    public synchronized CachedChartResult put(int userId, Integer chartIntervalHours, long dataVersion, ResultsContainerMessageData result) {
+        CachedChartResult cachedResult = new CachedChartResult(result, dataVersion, System.currentTimeMillis());
+        resultsByKey.put(buildKey(userId, chartIntervalHours, dataVersion), cachedResult);
+
+        // Results of older versions are never requested again, they are the first to go
+        Iterator<String> leastRecentlyUsed = resultsByKey.keySet().iterator();
+        while (resultsByKey.size() > applicationConfiguration.chartCacheSize) {
+            log.debug("Chart result cache is full, removing result: " + leastRecentlyUsed.next());
+            leastRecentlyUsed.remove();
+        }
+        return cachedResult;
+    }
+
+    public synchronized String describeStatistics() {
+        return "chart results cached: " + resultsByKey.size() + ", hits: " + hits + ", misses: " + misses;
+    }
+
+    // A null interval charts all data of the user
+    private static String buildKey(int userId, Integer chartIntervalHours, long dataVersion) {
+        return userId + ":" + (chartIntervalHours == null ? "all" : chartIntervalHours) + ":" + dataVersion;
+    }
+
+    public static class CachedChartResult {
+        private final ResultsContainerMessageData result;
+        private final long computedMillis;
+        private final String eTag;
+
+        private CachedChartResult(ResultsContainerMessageData result, long dataVersion, long computedMillis) {
+            this.result = result;
+            this.computedMillis = computedMillis;
+            // Versions restart with the application, the time of computation keeps tags from before a restart from matching
+            this.eTag = "\"" + dataVersion + "-" + computedMillis + "\"";
+        }
+
+        public ResultsContainerMessageData getResult() {
+            return result;
+        }
+
+        public long getComputedMillis() {
+            return computedMillis;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
@@ -5,10 +5,9 @@ import org.slf4j.LoggerFactory;
 import pack.frontend.databind.DataPointMessageCount;
 import pack.frontend.databind.DataSeriesLabelChangeSegments;
 import pack.frontend.databind.LongPoint;
-import pack.persist.data.GmailLabelUpdate;
-import pack.persist.data.HistoryEvent;
-import pack.persist.data.dummy.GmailLabelUpdateDummy;
 import pack.persist.data.dummy.HistoryEventDummy;
+import pack.persist.data.row.HistoryEventRow;
+import pack.persist.data.row.LabelCountRow;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,9 +18,9 @@ public class DataPreparationFrontend {
 
     private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
 
-    public static List<DataPointMessageCount> buildDataSeriesAllMessagesCount(List<GmailLabelUpdate> dataOverTimeMessageAndUnreadCount) {
-        List<DataPointMessageCount> dataPointsToReturn = new ArrayList<>();
-        for (GmailLabelUpdate nextLabelUpdate : dataOverTimeMessageAndUnreadCount) {
+    public static List<DataPointMessageCount> buildDataSeriesAllMessagesCount(List<LabelCountRow> dataOverTimeMessageAndUnreadCount) {
+        List<DataPointMessageCount> dataPointsToReturn = new ArrayList<>(dataOverTimeMessageAndUnreadCount.size());
+        for (LabelCountRow nextLabelUpdate : dataOverTimeMessageAndUnreadCount) {
             DataPointMessageCount messageCount = new DataPointMessageCount();
             messageCount.setDateTimeMillis(nextLabelUpdate.getUpdateTimeMillis());
             messageCount.setMessageCount(nextLabelUpdate.getMessagesTotal());
@@ -31,19 +30,57 @@ public class DataPreparationFrontend {
         return dataPointsToReturn;
     }
 
-    public static DataSeriesLabelChangeSegments buildDataSeriesForAllCountChanges(List<GmailLabelUpdate> dataOverTimeMessageAndUnreadCount, List<HistoryEvent> dataOverTimeMailboxMessageChanges) {
-        GmailLabelUpdate pointToCollectDeltas = null;
+    // Deltas of the events within [point, next point] are applied to each point, bounds inclusive (the first point gets [point, point])
+    // Events and points are merged in one pass in time order, so the cost is O(points + events) rather than O(points * events)
+    public static DataSeriesLabelChangeSegments buildDataSeriesForAllCountChanges(List<LabelCountRow> dataOverTimeMessageAndUnreadCount, List<HistoryEventRow> dataOverTimeMailboxMessageChanges) {
+        LabelCountRow pointToCollectDeltas = null;
 
         DataSeriesLabelChangeSegments returnDataSeries = new DataSeriesLabelChangeSegments();
+        List<HistoryEventRow> events = sortedByDateOccurred(dataOverTimeMailboxMessageChanges);
+        int eventCount = events.size();
 
-        for (GmailLabelUpdate nextPoint : dataOverTimeMessageAndUnreadCount) {
+        int firstEventInWindow = 0; // Index of the first event not before the current window start
+        long previousWindowStart = Long.MIN_VALUE;
+        for (LabelCountRow nextPoint : dataOverTimeMessageAndUnreadCount) {
             if (pointToCollectDeltas == null) {
                 pointToCollectDeltas = nextPoint; // Nothing to do on first iteration
             }
 
-            HistoryEventDummy aggregatedDeltasForPoint = collectDeltasForPoint(pointToCollectDeltas, nextPoint, dataOverTimeMailboxMessageChanges);// Collects the deltas for the 'previous' point
-            if (aggregatedDeltasForPoint.hasChanges()) {
-                // Don't collect an object that doesn't describe any mailbox changes
+            long timeWindowStart = pointToCollectDeltas.getUpdateTimeMillis();
+            long timeWindowEnd = nextPoint.getUpdateTimeMillis();
+            if (timeWindowStart < previousWindowStart) {
+                firstEventInWindow = indexOfFirstEventAtOrAfter(events, timeWindowStart); // Points out of order, search instead of moving back
+            } else {
+                while (firstEventInWindow < eventCount && events.get(firstEventInWindow).getDateOccurred() < timeWindowStart) {
+                    firstEventInWindow++;
+                }
+            }
+            previousWindowStart = timeWindowStart;
+
+            // Collects the deltas for the 'previous' point
+            // Events on the window end are left for the next window as well, since both bounds are inclusive
+            int messagesAdded = 0;
+            int messagesRemoved = 0;
+            int unreadAdded = 0;
+            int unreadRemoved = 0;
+            for (int i = firstEventInWindow; i < eventCount; i++) {
+                HistoryEventRow nextHistoryEvent = events.get(i);
+                if (timeWindowEnd < nextHistoryEvent.getDateOccurred()) {
+                    break;
+                }
+                messagesAdded += nextHistoryEvent.getMessagesAdded();
+                messagesRemoved += nextHistoryEvent.getMessagesRemoved();
+                unreadAdded += nextHistoryEvent.getUnreadAdded();
+                unreadRemoved += nextHistoryEvent.getUnreadRemoved();
+            }
+
+            // Don't collect an object that doesn't describe any mailbox changes
+            if (messagesAdded != 0 || messagesRemoved != 0 || unreadAdded != 0 || unreadRemoved != 0) {
+                HistoryEventDummy aggregatedDeltasForPoint = new HistoryEventDummy();
+                aggregatedDeltasForPoint.setMessagesAdded(messagesAdded);
+                aggregatedDeltasForPoint.setMessagesRemoved(messagesRemoved);
+                aggregatedDeltasForPoint.setUnreadAdded(unreadAdded);
+                aggregatedDeltasForPoint.setUnreadRemoved(unreadRemoved);
                 returnDataSeries.applyDeltas(aggregatedDeltasForPoint, pointToCollectDeltas);
             }
 
@@ -53,30 +90,32 @@ public class DataPreparationFrontend {
         return returnDataSeries;
     }
 
-
-
-    // Assumes HistoryEvent ordered by date ascending
-    private static HistoryEventDummy collectDeltasForPoint(GmailLabelUpdate pointToCollectDeltas, GmailLabelUpdate nextPoint, List<HistoryEvent> dataOverTimeMailboxMessageChanges) {
-        long timeWindowStart = pointToCollectDeltas.getUpdateTimeMillis();
-        long timeWindowEnd = nextPoint.getUpdateTimeMillis();
-
-        HistoryEventDummy eventToReturn = new HistoryEventDummy();
-
-        for (HistoryEvent nextHistoryEvent :  dataOverTimeMailboxMessageChanges) {
-            long eventTime = nextHistoryEvent.getDateOccurred();
-            if (eventTime < timeWindowStart) {
-                continue;
-            } else if (timeWindowEnd < eventTime) {
-                continue; // assuming data is ordered is outside this concern
+    // Both queries return events ordered by date, a sorted copy is only made if that ever stops being true
+    private static List<HistoryEventRow> sortedByDateOccurred(List<HistoryEventRow> events) {
+        long previousDate = Long.MIN_VALUE;
+        for (HistoryEventRow event : events) {
+            if (event.getDateOccurred() < previousDate) {
+                log.warn("History events were not ordered by date, sorting " + events.size() + " events");
+                List<HistoryEventRow> sortedEvents = new ArrayList<>(events);
+                sortedEvents.sort(Comparator.comparingLong(HistoryEventRow::getDateOccurred));
+                return sortedEvents;
             }
-
-            // Accumulate totals onto return event
-            eventToReturn.setMessagesAdded(eventToReturn.getMessagesAdded() + nextHistoryEvent.getMessagesAdded());
-            eventToReturn.setMessagesRemoved(eventToReturn.getMessagesRemoved() + nextHistoryEvent.getMessagesRemoved());
-            eventToReturn.setUnreadAdded(eventToReturn.getUnreadAdded() + nextHistoryEvent.getUnreadAdded());
-            eventToReturn.setUnreadRemoved(eventToReturn.getUnreadRemoved() + nextHistoryEvent.getUnreadRemoved());
+            previousDate = event.getDateOccurred();
         }
+        return events;
+    }
 
-        return eventToReturn;
+    private static int indexOfFirstEventAtOrAfter(List<HistoryEventRow> sortedEvents, long time) {
+        int lower = 0;
+        int upper = sortedEvents.size();
+        while (lower < upper) {
+            int middle = (lower + upper) >>> 1;
+            if (sortedEvents.get(middle).getDateOccurred() < time) {
+                lower = middle + 1;
+            } else {
+                upper = middle;
+            }
+        }
+        return lower;
     }
 }
@@ -9,8 +9,8 @@ import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import pack.persist.data.GmailLabelUpdate;
-import pack.persist.data.HistoryEvent;
 import pack.persist.data.User;
+import pack.persist.data.row.HistoryEventRow;
 import pack.service.UserService;
 import pack.service.google.gmail.GmailDataService;
 import pack.service.task.TaskService;
@@ -72,7 +72,7 @@ public class StatsController {
         model.addAttribute(ATTRIBUTE__CHART_TIME_WINDOW, statsTimeUrlParameter); // Used by template to set javascript variable for AJAX request
         model.addAttribute(AuthController.MODEL__GOOGLE_USER_ID_LOGGED_IN, userLoggedIn.getGoogleUserId());
 
-        HistoryEvent lastHistoryUpdate = gmailDataService.getLastHistoryUpdate(userIdLoggedIn);
+        HistoryEventRow lastHistoryUpdate = gmailDataService.getLastHistoryUpdate(userIdLoggedIn);
         if (lastHistoryUpdate == null) {
             model.addAttribute(ATTRIBUTE__LAST_HISTORY_UPDATE, "none yet - please refresh in 10-20s");
         } else {
@@ -90,7 +90,7 @@ public class StatsController {
             model.addAttribute(ATTRIBUTE__LAST_LABEL_UPDATE, labelInterval);
         }
 
-        ScheduledFuture scheduledFuture = taskService.getScheduledFuture();
+        ScheduledFuture scheduledFuture = taskService.getScheduledFuture(userIdLoggedIn);
         if (scheduledFuture == null) {
             log.info("Scheduled Task:  None scheduled");
         } else {
@@ -1,8 +1,7 @@
 package pack.frontend.databind;
 
-import pack.persist.data.GmailLabelUpdate;
-import pack.persist.data.dummy.GmailLabelUpdateDummy;
 import pack.persist.data.dummy.HistoryEventDummy;
+import pack.persist.data.row.LabelCountRow;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -13,7 +12,7 @@ public class DataSeriesLabelChangeSegments {
     private List<LongPoint[]> segmentsUnreadAdded = new ArrayList<>();
     private List<LongPoint[]> segmentsUnreadRemoved = new ArrayList<>();
 
-    public void applyDeltas(HistoryEventDummy aggregatedDeltasForPoint, GmailLabelUpdate pointToCollectDeltas) {
+    public void applyDeltas(HistoryEventDummy aggregatedDeltasForPoint, LabelCountRow pointToCollectDeltas) {
         long baseTime = pointToCollectDeltas.getUpdateTimeMillis();
         int messageCountBase = pointToCollectDeltas.getMessagesTotal();
         int unreadCountBase = pointToCollectDeltas.getMessagesUnread();
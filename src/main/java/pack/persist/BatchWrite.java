@@ -0,0 +1,113 @@
+package pack.persist;
+
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Collects parameter rows for one or more SQL statements, then executes them as JDBC batches within a single transaction
+// Statements are executed in the order they were first added
+public class BatchWrite {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    private final Map<String, List<Object[]>> rowsByStatement = new LinkedHashMap<>();
+    private int rowCount;
+
+    public void addRow(String sql, Object... arguments) {
+        List<Object[]> rows = rowsByStatement.get(sql);
+        if (rows == null) {
+            rows = new ArrayList<>();
+            rowsByStatement.put(sql, rows);
+        }
+        rows.add(arguments);
+        rowCount++;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public boolean isEmpty() {
+        return rowCount == 0;
+    }
+
+    // Returns the total number of rows reported as modified by the database
+    public int execute(ConnectionSource connectionSource) throws SQLException {
+        if (isEmpty()) {
+            return 0;
+        }
+
+        DatabaseConnection databaseConnection = connectionSource.getReadWriteConnection();
+        try {
+            // If the calling thread is already inside a transaction, the batches simply join it and leave commit/rollback to it
+            boolean savedHere = connectionSource.saveSpecialConnection(databaseConnection);
+            try {
+                Connection connection = ((JdbcDatabaseConnection) databaseConnection).getInternalConnection();
+                if (savedHere) {
+                    return executeInTransaction(connection);
+                }
+                return executeBatches(connection);
+            } finally {
+                // A save that joined a transaction still raised ORMLite's nesting count, it is lowered again either way
+                connectionSource.clearSpecialConnection(databaseConnection);
+            }
+        } finally {
+            connectionSource.releaseConnection(databaseConnection);
+        }
+    }
+
+    private int executeInTransaction(Connection connection) throws SQLException {
+        boolean autoCommitBefore = connection.getAutoCommit();
+        if (autoCommitBefore) {
+            connection.setAutoCommit(false);
+        }
+
+        try {
+            int rowsModified = executeBatches(connection);
+            connection.commit();
+            return rowsModified;
+
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Batch write of " + rowCount + " rows failed, rolling back: " + e.getMessage());
+            connection.rollback();
+            throw e;
+
+        } finally {
+            if (autoCommitBefore) {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private int executeBatches(Connection connection) throws SQLException {
+        int rowsModified = 0;
+        for (Map.Entry<String, List<Object[]>> statementRows : rowsByStatement.entrySet()) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(statementRows.getKey())) {
+                for (Object[] arguments : statementRows.getValue()) {
+                    for (int i = 0; i < arguments.length; i++) {
+                        preparedStatement.setObject(i + 1, arguments[i]);
+                    }
+                    preparedStatement.addBatch();
+                }
+
+                int[] results = preparedStatement.executeBatch();
+                for (int result : results) {
+                    if (result > 0) {
+                        rowsModified += result;
+                    }
+                }
+            }
+        }
+        return rowsModified;
+    }
+}
@@ -2,7 +2,6 @@ package pack.persist;
 
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.jdbc.JdbcConnectionSource;
 import com.j256.ormlite.support.ConnectionSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +11,7 @@ import pack.ApplicationConfiguration;
 import pack.persist.data.*;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.sql.SQLException;
 
 /**
@@ -25,7 +25,7 @@ public class DaoOwner {
 
     @Autowired ApplicationConfiguration applicationConfiguration;
 
-    private ConnectionSource connectionSource;
+    private MeteredPooledConnectionSource connectionSource;
 
     // Second generic parameter appears to be wrong, should match the type of ID field
     private Dao<GmailMessage, String> messageDao;
@@ -33,23 +33,51 @@ public class DaoOwner {
     private Dao<Schema, String> schemaDao;
     private Dao<HistoryEvent, String> historyDao;
     private Dao<User, String> userDao;
+    private Dao<HistoryEventPayload, String> historyPayloadDao;
+    private Dao<LabelRollup, String> labelRollupDao;
+    private Dao<HistoryRollup, String> historyRollupDao;
+    private Dao<BackfillCheckpoint, String> backfillCheckpointDao;
+    private Dao<PendingNotification, String> pendingNotificationDao;
 
     @PostConstruct
     public void postConstruct() throws SQLException { // Throwing on @PostConstruct method will cause application to exit
         log.info("DaoOwner postconstruct");
 
-        connectionSource = new JdbcConnectionSource(applicationConfiguration.databaseUrl);
+        // Pooled so that the PubSub receiver, scheduled tasks and web requests do not queue up behind a single connection
+        connectionSource = new MeteredPooledConnectionSource(applicationConfiguration.databaseUrl, applicationConfiguration.databasePoolConnectionsMax);
+        connectionSource.setMaxConnectionAgeMillis(applicationConfiguration.databasePoolConnectionMaxAgeMs);
+        connectionSource.setCheckConnectionsEveryMillis(applicationConfiguration.databasePoolCheckIntervalMs);
+        connectionSource.setTestBeforeGet(applicationConfiguration.databasePoolTestBeforeGet);
+        connectionSource.openConnections(applicationConfiguration.databasePoolConnectionsMin);
+        log.info("Opened database " + connectionSource.describeStatistics());
+
         schemaDao = DaoManager.createDao(connectionSource, Schema.class);
         labelDao = DaoManager.createDao(connectionSource, GmailLabelUpdate.class);
         messageDao = DaoManager.createDao(connectionSource, GmailMessage.class);
         historyDao = DaoManager.createDao(connectionSource, HistoryEvent.class);
         userDao = DaoManager.createDao(connectionSource, User.class);
+        historyPayloadDao = DaoManager.createDao(connectionSource, HistoryEventPayload.class);
+        labelRollupDao = DaoManager.createDao(connectionSource, LabelRollup.class);
+        historyRollupDao = DaoManager.createDao(connectionSource, HistoryRollup.class);
+        backfillCheckpointDao = DaoManager.createDao(connectionSource, BackfillCheckpoint.class);
+        pendingNotificationDao = DaoManager.createDao(connectionSource, PendingNotification.class);
+    }
+
+    @PreDestroy
+    public void preDestroy() throws Exception {
+        log.info("Closing database " + connectionSource.describeStatistics());
+        connectionSource.close();
     }
 
     public ConnectionSource getConnectionSource() {
         return connectionSource;
     }
 
+    // Exposes active/idle connection counts and wait times
+    public MeteredPooledConnectionSource getConnectionPool() {
+        return connectionSource;
+    }
+
     public Dao<GmailMessage, String> getMessageDao() {
         return messageDao;
     }
@@ -69,4 +97,24 @@ public class DaoOwner {
     public Dao<User, String> getUserDao() {
         return userDao;
     }
+
+    public Dao<HistoryEventPayload, String> getHistoryPayloadDao() {
+        return historyPayloadDao;
+    }
+
+    public Dao<LabelRollup, String> getLabelRollupDao() {
+        return labelRollupDao;
+    }
+
+    public Dao<HistoryRollup, String> getHistoryRollupDao() {
+        return historyRollupDao;
+    }
+
+    public Dao<BackfillCheckpoint, String> getBackfillCheckpointDao() {
+        return backfillCheckpointDao;
+    }
+
+    public Dao<PendingNotification, String> getPendingNotificationDao() {
+        return pendingNotificationDao;
+    }
 }
@@ -0,0 +1,140 @@
+package pack.persist;
+
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.Where;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.persist.data.BackfillCheckpoint;
+import pack.persist.data.HistoryEvent;
+import pack.persist.data.Schema;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Walks the history table one page at a time in id order, so only one page of entities is held in memory
+// Writes queued by the page handler are committed together with a checkpoint, an interrupted run resumes after the last committed page
+@Component
+public class HistoryEventBackfill {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    @Autowired private DaoOwner daoOwner;
+
+    private Dao<HistoryEvent, String> historyDao;
+    private Dao<BackfillCheckpoint, String> checkpointDao;
+
+    @PostConstruct
+    private void postConstruct() {
+        historyDao = daoOwner.getHistoryDao();
+        checkpointDao = daoOwner.getBackfillCheckpointDao();
+    }
+
+    public interface PageHandler {
+        // Queue any writes for the page on the batch, they are executed in the same transaction as the checkpoint
+        void processPage(List<HistoryEvent> page, BatchWrite batchWrite) throws SQLException, IOException;
+
+        // Called within the same transaction, after the queued writes were executed
+        default void afterPageWritten(List<HistoryEvent> page) throws SQLException {
+        }
+    }
+
+    public interface PageFilter {
+        // Narrow down the events visited, the id condition used for paging is added before this is called
+        void apply(Where<HistoryEvent, String> where) throws SQLException;
+    }
+
+    // Returns the number of events passed to the handler in this run
+    public long run(String backfillName, int pageSize, PageFilter pageFilter, PageHandler pageHandler) throws SQLException, IOException {
+        int lastId = startOrResume(backfillName);
+        long rowsProcessed = 0;
+        long startMillis = System.currentTimeMillis();
+
+        while (true) {
+            List<HistoryEvent> page = readPage(lastId, pageSize, pageFilter);
+            if (page.isEmpty()) {
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+
+            BatchWrite batchWrite = new BatchWrite();
+            pageHandler.processPage(page, batchWrite);
+            batchWrite.addRow("UPDATE `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` SET `"
+                            + BackfillCheckpoint.FIELD_LAST_ID + "` = ?, `"
+                            + BackfillCheckpoint.FIELD_ROWS_PROCESSED + "` = `" + BackfillCheckpoint.FIELD_ROWS_PROCESSED + "` + ?, `"
+                            + BackfillCheckpoint.FIELD_UPDATE_TIME_MILLIS + "` = ? WHERE `" + BackfillCheckpoint.FIELD_NAME + "` = ?",
+                    lastId, page.size(), System.currentTimeMillis(), backfillName);
+            // Page writes and checkpoint in a single transaction
+            TransactionManager.callInTransaction(daoOwner.getConnectionSource(), () -> {
+                batchWrite.execute(daoOwner.getConnectionSource());
+                pageHandler.afterPageWritten(page);
+                return null;
+            });
+
+            rowsProcessed += page.size();
+            log.info("Backfill " + backfillName + " processed " + rowsProcessed + " events so far, last id: " + lastId);
+        }
+
+        checkpointDao.executeRaw("DELETE FROM `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` WHERE `" + BackfillCheckpoint.FIELD_NAME + "` = ?", backfillName);
+        log.info("Backfill " + backfillName + " finished, processed " + rowsProcessed + " events in " + (System.currentTimeMillis() - startMillis) + "ms");
+        return rowsProcessed;
+    }
+
+    public long run(String backfillName, PageFilter pageFilter, PageHandler pageHandler) throws SQLException, IOException {
+        return run(backfillName, DEFAULT_PAGE_SIZE, pageFilter, pageHandler);
+    }
+
+    // Discards any saved progress, the next run starts from the beginning
+    public void resetCheckpoint(String backfillName) throws SQLException {
+        checkpointDao.executeRaw("DELETE FROM `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` WHERE `" + BackfillCheckpoint.FIELD_NAME + "` = ?", backfillName);
+    }
+
+    // Returns the id to continue after, creating a checkpoint if this backfill has not run before
+    private int startOrResume(String backfillName) throws SQLException {
+        return TransactionManager.callInTransaction(daoOwner.getConnectionSource(), () -> {
+            List<BackfillCheckpoint> checkpoints = checkpointDao.queryForEq(BackfillCheckpoint.FIELD_NAME, backfillName);
+            if (checkpoints.isEmpty() == false) {
+                BackfillCheckpoint checkpoint = checkpoints.get(0);
+                log.info("Resuming backfill " + backfillName + " after id " + checkpoint.getLastId() + ", " + checkpoint.getRowsProcessed() + " events were processed previously");
+                return checkpoint.getLastId();
+            }
+
+            checkpointDao.executeRaw("INSERT INTO `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` (`" + BackfillCheckpoint.FIELD_NAME + "`, `" + BackfillCheckpoint.FIELD_LAST_ID + "`, `"
+                            + BackfillCheckpoint.FIELD_ROWS_PROCESSED + "`, `" + BackfillCheckpoint.FIELD_UPDATE_TIME_MILLIS + "`) VALUES (?, 0, 0, ?)",
+                    backfillName, String.valueOf(System.currentTimeMillis()));
+            log.info("Starting backfill " + backfillName);
+            return 0;
+        });
+    }
+
+    private List<HistoryEvent> readPage(int afterId, int pageSize, PageFilter pageFilter) throws SQLException {
+        QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder();
+        qb.orderBy(HistoryEvent.FIELD_ID, true);
+        qb.limit((long) pageSize);
+        Where<HistoryEvent, String> where = qb.where().gt(HistoryEvent.FIELD_ID, afterId);
+        if (pageFilter != null) {
+            where.and();
+            pageFilter.apply(where);
+        }
+
+        List<HistoryEvent> page = new ArrayList<>(pageSize);
+        CloseableIterator<HistoryEvent> iterator = historyDao.iterator(qb.prepare());
+        try {
+            while (iterator.hasNext()) {
+                page.add(iterator.next());
+            }
+        } finally {
+            iterator.closeQuietly();
+        }
+        return page;
+    }
+}
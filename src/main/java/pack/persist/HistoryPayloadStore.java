@@ -0,0 +1,212 @@
+package pack.persist;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.ApplicationConfiguration;
+import pack.persist.data.HistoryEvent;
+import pack.persist.data.HistoryEventPayload;
+import pack.persist.data.Schema;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Stores the JSON of history events either inline in the history table, or deflated in the payload table
+// Most queries only need the counts on a history event, the JSON is read for one event or one page of events when it is needed
+@Component
+public class HistoryPayloadStore {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    public static final String STORAGE_INLINE = "inline";
+    public static final String STORAGE_DEFLATE = "deflate";
+
+    @Autowired private ApplicationConfiguration applicationConfiguration;
+    @Autowired private DaoOwner daoOwner;
+
+    private Dao<HistoryEvent, String> historyDao;
+    private Dao<HistoryEventPayload, String> historyPayloadDao;
+
+    @PostConstruct
+    private void postConstruct() {
+        historyDao = daoOwner.getHistoryDao();
+        historyPayloadDao = daoOwner.getHistoryPayloadDao();
+
+        String storage = applicationConfiguration.historyPayloadStorage;
+        if (!STORAGE_INLINE.equals(storage) && !STORAGE_DEFLATE.equals(storage)) {
+            throw new RuntimeException("Unknown history payload storage: " + storage + ", expected " + STORAGE_INLINE + " or " + STORAGE_DEFLATE);
+        }
+        log.info("History event JSON will be stored: " + storage);
+    }
+
+    public boolean isDeflateEnabled() {
+        return STORAGE_DEFLATE.equals(applicationConfiguration.historyPayloadStorage);
+    }
+
+    // Adds the payload row (if any) to the batch, returns the value to write to the history event's json column
+    public String addPayload(BatchWrite batchWrite, int userId, long historyId, String json) {
+        if (json == null || json.isEmpty() || isDeflateEnabled() == false) {
+            return json;
+        }
+
+        batchWrite.addRow(insertPayloadSql(), userId, historyId, HistoryEventPayload.FIELD_ENCODING__ENCODING_DEFLATE, deflate(json));
+        return HistoryEvent.FIELD_JSON__STORED_AS_PAYLOAD;
+    }
+
+    // Returns the JSON for the event, from the payload table when it is not stored inline
+    public String getJson(HistoryEvent historyEvent) throws SQLException {
+        if (historyEvent.isJsonStoredAsPayload() == false) {
+            return historyEvent.getJson();
+        }
+
+        List<HistoryEventPayload> payloads = historyPayloadDao.queryBuilder().where()
+                .eq(HistoryEventPayload.FIELD_USER_ID, historyEvent.getUserId())
+                .and()
+                .eq(HistoryEventPayload.FIELD_HISTORY_ID, historyEvent.getHistoryId())
+                .query();
+        if (payloads.size() != 1) {
+            throw new RuntimeException("Unexpected number of payloads: " + payloads.size() + " for " + historyEvent);
+        }
+        return decode(payloads.get(0));
+    }
+
+    // Returns the JSON of each event keyed by event id, payloads of each user in the list are read in one query
+    // Events without JSON are not included
+    public Map<Integer, String> getJson(List<HistoryEvent> historyEvents) throws SQLException {
+        Map<Integer, String> jsonByEventId = new HashMap<>();
+        Map<String, Integer> eventIdByUserAndHistoryId = new HashMap<>();
+        Map<Integer, List<Long>> payloadHistoryIdsByUser = new HashMap<>(); // History ids are only unique within a mailbox
+        for (HistoryEvent historyEvent : historyEvents) {
+            if (historyEvent.isJsonStoredAsPayload()) {
+                eventIdByUserAndHistoryId.put(historyEvent.getUserId() + ":" + historyEvent.getHistoryId(), historyEvent.getId());
+                payloadHistoryIdsByUser.computeIfAbsent(historyEvent.getUserId(), userId -> new ArrayList<>()).add(historyEvent.getHistoryId());
+            } else if (historyEvent.getJson() != null && historyEvent.getJson().isEmpty() == false) {
+                jsonByEventId.put(historyEvent.getId(), historyEvent.getJson());
+            }
+        }
+        if (payloadHistoryIdsByUser.isEmpty()) {
+            return jsonByEventId;
+        }
+
+        int payloadsFound = 0;
+        for (Map.Entry<Integer, List<Long>> userPayloadHistoryIds : payloadHistoryIdsByUser.entrySet()) {
+            List<HistoryEventPayload> payloads = historyPayloadDao.queryBuilder().where()
+                    .eq(HistoryEventPayload.FIELD_USER_ID, userPayloadHistoryIds.getKey())
+                    .and()
+                    .in(HistoryEventPayload.FIELD_HISTORY_ID, userPayloadHistoryIds.getValue())
+                    .query();
+            for (HistoryEventPayload payload : payloads) {
+                Integer eventId = eventIdByUserAndHistoryId.get(payload.getUserId() + ":" + payload.getHistoryId());
+                if (eventId != null) {
+                    jsonByEventId.put(eventId, decode(payload));
+                    payloadsFound++;
+                }
+            }
+        }
+        if (payloadsFound < eventIdByUserAndHistoryId.size()) {
+            log.warn("Found " + payloadsFound + " payloads for " + eventIdByUserAndHistoryId.size() + " history events stored as payload");
+        }
+        return jsonByEventId;
+    }
+
+    // Moves inline JSON into the payload table, one transaction per chunk so that progress is kept if interrupted
+    // Returns the number of history events converted
+    public int convertInlineJson(int chunkSize) throws SQLException {
+        int eventsConverted = 0;
+        int lastIdConverted = 0;
+
+        while (true) {
+            QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder();
+            qb.selectColumns(HistoryEvent.FIELD_ID, HistoryEvent.FIELD_USER_ID, HistoryEvent.FIELD_HISTORY_ID, HistoryEvent.FIELD_JSON);
+            qb.orderBy(HistoryEvent.FIELD_ID, true);
+            qb.limit((long) chunkSize);
+            qb.where()
+                    .gt(HistoryEvent.FIELD_ID, lastIdConverted)
+                    .and().not().eq(HistoryEvent.FIELD_JSON, "")
+                    .and().not().eq(HistoryEvent.FIELD_JSON, HistoryEvent.FIELD_JSON__STORED_AS_PAYLOAD);
+            List<HistoryEvent> chunk = qb.query();
+            if (chunk.isEmpty()) {
+                break;
+            }
+
+            BatchWrite batchWrite = new BatchWrite();
+            String updateSql = "UPDATE `" + Schema.TABLE_HISTORY_EVENTS + "` SET `" + HistoryEvent.FIELD_JSON + "` = ? WHERE `" + HistoryEvent.FIELD_ID + "` = ?";
+            for (HistoryEvent historyEvent : chunk) {
+                batchWrite.addRow(insertPayloadSql(), historyEvent.getUserId(), historyEvent.getHistoryId(), HistoryEventPayload.FIELD_ENCODING__ENCODING_DEFLATE, deflate(historyEvent.getJson()));
+                batchWrite.addRow(updateSql, HistoryEvent.FIELD_JSON__STORED_AS_PAYLOAD, historyEvent.getId());
+                lastIdConverted = historyEvent.getId();
+            }
+            batchWrite.execute(daoOwner.getConnectionSource());
+
+            eventsConverted += chunk.size();
+            log.info("Moved JSON of " + eventsConverted + " history events to payload table so far, last id: " + lastIdConverted);
+        }
+
+        return eventsConverted;
+    }
+
+    private static String insertPayloadSql() {
+        return "INSERT INTO `" + Schema.TABLE_HISTORY_EVENT_PAYLOADS + "` (`" + HistoryEventPayload.FIELD_USER_ID + "`, `" + HistoryEventPayload.FIELD_HISTORY_ID + "`, `"
+                + HistoryEventPayload.FIELD_ENCODING + "`, `" + HistoryEventPayload.FIELD_PAYLOAD + "`) VALUES (?, ?, ?, ?)";
+    }
+
+    ////////////////////////////////////////////////
+
+    static byte[] deflate(String json) {
+        byte[] input = json.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String decode(HistoryEventPayload payload) {
+        if (payload.getEncoding() == HistoryEventPayload.FIELD_ENCODING__ENCODING_UTF8) {
+            return new String(payload.getPayload(), StandardCharsets.UTF_8);
+        }
+        if (payload.getEncoding() != HistoryEventPayload.FIELD_ENCODING__ENCODING_DEFLATE) {
+            throw new RuntimeException("Unknown payload encoding: " + payload.getEncoding() + " for history id " + payload.getHistoryId());
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload.getPayload());
+            ByteArrayOutputStream output = new ByteArrayOutputStream(payload.getPayload().length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new RuntimeException("Truncated payload for history id " + payload.getHistoryId());
+                }
+                output.write(buffer, 0, length);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Corrupt payload for history id " + payload.getHistoryId(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package pack.persist;
+
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ORMLite's pool re-uses free connections but never limits how many are open at once.
+// This adds a maximum number of connections in use, plus counters for how long callers waited to obtain one.
+public class MeteredPooledConnectionSource extends JdbcPooledConnectionSource {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    private static final long CONNECTION_WAIT_TIMEOUT__SECONDS = 30;
+
+    private final int maximumConnections;
+    private final Semaphore connectionPermits;
+
+    private final AtomicLong connectionsObtained = new AtomicLong();
+    private final AtomicLong connectionsWaitedFor = new AtomicLong(); // Number of times no connection was immediately available
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong longestWaitNanos = new AtomicLong();
+
+    public MeteredPooledConnectionSource(String databaseUrl, int maximumConnections) throws SQLException {
+        super(databaseUrl);
+        this.maximumConnections = maximumConnections;
+        this.connectionPermits = new Semaphore(maximumConnections, true);
+        setMaxConnectionsFree(maximumConnections); // Keep every connection opened so far, idle ones are closed by age
+    }
+
+    // Open connections ahead of time so the first requests after startup do not pay for it
+    public void openConnections(int numberOfConnections) throws SQLException {
+        List<DatabaseConnection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(numberOfConnections, maximumConnections); i++) {
+                connections.add(getReadWriteConnection());
+            }
+        } finally {
+            for (DatabaseConnection connection : connections) {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    @Override
+    public DatabaseConnection getReadOnlyConnection() throws SQLException {
+        return getReadWriteConnection(); // Both kinds of connection count against the same maximum
+    }
+
+    @Override
+    public DatabaseConnection getReadWriteConnection() throws SQLException {
+        if (getSavedConnection() != null) {
+            // Thread is inside a transaction and will be handed the connection it already holds
+            return super.getReadWriteConnection();
+        }
+
+        acquirePermit();
+        try {
+            return super.getReadWriteConnection();
+        } catch (SQLException | RuntimeException e) {
+            connectionPermits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void releaseConnection(DatabaseConnection connection) throws SQLException {
+        if (isSavedConnection(connection)) {
+            // Still in use by the transaction, the permit is returned when the transaction releases it
+            super.releaseConnection(connection);
+            return;
+        }
+
+        try {
+            super.releaseConnection(connection);
+        } finally {
+            connectionPermits.release();
+        }
+    }
+
+    private void acquirePermit() throws SQLException {
+        connectionsObtained.incrementAndGet();
+        if (connectionPermits.tryAcquire()) {
+            return;
+        }
+
+        connectionsWaitedFor.incrementAndGet();
+        long waitStart = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = connectionPermits.tryAcquire(CONNECTION_WAIT_TIMEOUT__SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled database connection", e);
+        } finally {
+            long waitNanos = System.nanoTime() - waitStart;
+            totalWaitNanos.addAndGet(waitNanos);
+            longestWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+
+        if (acquired == false) {
+            log.warn("Timed out waiting for a database connection, " + describeStatistics());
+            throw new SQLException("No database connection became available within " + CONNECTION_WAIT_TIMEOUT__SECONDS + " seconds, all " + maximumConnections + " are in use");
+        }
+    }
+
+    ////////////////////////////////////////////////
+
+    public int getMaximumConnections() {
+        return maximumConnections;
+    }
+
+    public int getActiveConnections() {
+        return maximumConnections - connectionPermits.availablePermits();
+    }
+
+    public int getIdleConnections() {
+        return Math.max(0, getCurrentConnectionsManaged() - getActiveConnections());
+    }
+
+    public int getThreadsWaiting() {
+        return connectionPermits.getQueueLength();
+    }
+
+    public long getConnectionsObtained() {
+        return connectionsObtained.get();
+    }
+
+    public long getConnectionsWaitedFor() {
+        return connectionsWaitedFor.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public long getLongestWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(longestWaitNanos.get());
+    }
+
+    public String describeStatistics() {
+        return "connection pool - active: " + getActiveConnections() + "/" + maximumConnections
+                + " idle: " + getIdleConnections()
+                + " waiting: " + getThreadsWaiting()
+                + " obtained: " + getConnectionsObtained()
+                + " had to wait: " + getConnectionsWaitedFor()
+                + " total wait: " + getTotalWaitMillis() + "ms"
+                + " longest wait: " + getLongestWaitMillis() + "ms"
+                + " opened: " + getOpenCount()
+                + " closed: " + getCloseCount();
+    }
+}
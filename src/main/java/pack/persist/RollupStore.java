@@ -0,0 +1,332 @@
+package pack.persist;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.persist.data.GmailLabelUpdate;
+import pack.persist.data.HistoryEvent;
+import pack.persist.data.HistoryRollup;
+import pack.persist.data.LabelRollup;
+import pack.persist.data.Schema;
+import pack.persist.data.row.HistoryEventRow;
+import pack.persist.data.row.LabelCountRow;
+
+import javax.annotation.PostConstruct;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Keeps per-user minute, hour and day summaries of label counts and history event changes
+// Charts over long time ranges read these instead of every label update and history event
+@Component
+public class RollupStore {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    public static final long RESOLUTION_MINUTE = TimeUnit.MINUTES.toMillis(1);
+    public static final long RESOLUTION_HOUR = TimeUnit.HOURS.toMillis(1);
+    public static final long RESOLUTION_DAY = TimeUnit.DAYS.toMillis(1);
+    public static final long RESOLUTION_NONE = 0; // Read from label update and history event tables
+    private static final long[] RESOLUTIONS = {RESOLUTION_DAY, RESOLUTION_HOUR, RESOLUTION_MINUTE}; // Coarsest first
+
+    private static final int REBUILD_CHUNK_SIZE = 1000;
+
+    @Autowired private DaoOwner daoOwner;
+
+    private Dao<GmailLabelUpdate, String> labelDao;
+    private Dao<LabelRollup, String> labelRollupDao;
+    private Dao<HistoryRollup, String> historyRollupDao;
+
+    @PostConstruct
+    private void postConstruct() {
+        labelDao = daoOwner.getLabelDao();
+        labelRollupDao = daoOwner.getLabelRollupDao();
+        historyRollupDao = daoOwner.getHistoryRollupDao();
+    }
+
+    // The coarsest resolution that still gives at least one rollup row per chart bucket, or RESOLUTION_NONE
+    public static long selectResolution(long chartBucketSizeMillis) {
+        for (long resolution : RESOLUTIONS) {
+            if (resolution <= chartBucketSizeMillis) {
+                return resolution;
+            }
+        }
+        return RESOLUTION_NONE;
+    }
+
+    private static long bucketStart(long time, long resolution) {
+        return Math.floorDiv(time, resolution) * resolution;
+    }
+
+    ////////////////////////////////////////////////
+    // Writes - call within the transaction that writes the underlying rows
+    // Values placed in SQL are all numeric
+
+    public void recordLabelUpdate(int userId, long updateTimeMillis, int messagesTotal, int messagesUnread) throws SQLException {
+        for (long resolution : RESOLUTIONS) {
+            long bucketStart = bucketStart(updateTimeMillis, resolution);
+            int rowsUpdated = labelRollupDao.executeRaw("UPDATE `" + Schema.TABLE_LABEL_ROLLUPS + "` SET "
+                    + "`" + LabelRollup.FIELD_LAST_TOTAL + "` = CASE WHEN " + updateTimeMillis + " >= `" + LabelRollup.FIELD_LAST_TIME + "` THEN " + messagesTotal + " ELSE `" + LabelRollup.FIELD_LAST_TOTAL + "` END, "
+                    + "`" + LabelRollup.FIELD_LAST_UNREAD + "` = CASE WHEN " + updateTimeMillis + " >= `" + LabelRollup.FIELD_LAST_TIME + "` THEN " + messagesUnread + " ELSE `" + LabelRollup.FIELD_LAST_UNREAD + "` END, "
+                    + "`" + LabelRollup.FIELD_LAST_TIME + "` = GREATEST(`" + LabelRollup.FIELD_LAST_TIME + "`, " + updateTimeMillis + "), "
+                    + "`" + LabelRollup.FIELD_MIN_TOTAL + "` = LEAST(`" + LabelRollup.FIELD_MIN_TOTAL + "`, " + messagesTotal + "), "
+                    + "`" + LabelRollup.FIELD_MAX_TOTAL + "` = GREATEST(`" + LabelRollup.FIELD_MAX_TOTAL + "`, " + messagesTotal + "), "
+                    + "`" + LabelRollup.FIELD_SUM_TOTAL + "` = `" + LabelRollup.FIELD_SUM_TOTAL + "` + " + messagesTotal + ", "
+                    + "`" + LabelRollup.FIELD_MIN_UNREAD + "` = LEAST(`" + LabelRollup.FIELD_MIN_UNREAD + "`, " + messagesUnread + "), "
+                    + "`" + LabelRollup.FIELD_MAX_UNREAD + "` = GREATEST(`" + LabelRollup.FIELD_MAX_UNREAD + "`, " + messagesUnread + "), "
+                    + "`" + LabelRollup.FIELD_SUM_UNREAD + "` = `" + LabelRollup.FIELD_SUM_UNREAD + "` + " + messagesUnread + ", "
+                    + "`" + LabelRollup.FIELD_SAMPLES + "` = `" + LabelRollup.FIELD_SAMPLES + "` + 1"
+                    + whereBucket(userId, resolution, bucketStart));
+
+            if (rowsUpdated == 0) {
+                LabelBucket labelBucket = new LabelBucket(userId, resolution, bucketStart);
+                labelBucket.add(updateTimeMillis, messagesTotal, messagesUnread);
+                labelRollupDao.executeRaw(insertLabelRollupSql(labelBucket.valueList()));
+            }
+        }
+    }
+
+    // Adds the counts of history events (or the change in counts of events already recorded) to their buckets
+    // Events without a date, or believed to have happened before the user first authenticated, are skipped
+    public void recordHistoryChanges(int userId, List<HistoryEventRow> historyChanges) throws SQLException {
+        Map<String, int[]> sumsByBucket = new HashMap<>();
+        for (HistoryEventRow historyChange : historyChanges) {
+            if (historyChange.getDateOccurred() <= 0 || historyChange.getStatusObserved() == HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_FIRSTUPDATE || historyChange.hasChanges() == false) {
+                continue;
+            }
+            for (long resolution : RESOLUTIONS) {
+                String bucketKey = resolution + ":" + bucketStart(historyChange.getDateOccurred(), resolution);
+                int[] sums = sumsByBucket.get(bucketKey);
+                if (sums == null) {
+                    sums = new int[4];
+                    sumsByBucket.put(bucketKey, sums);
+                }
+                sums[0] += historyChange.getMessagesAdded();
+                sums[1] += historyChange.getMessagesRemoved();
+                sums[2] += historyChange.getUnreadAdded();
+                sums[3] += historyChange.getUnreadRemoved();
+            }
+        }
+
+        for (Map.Entry<String, int[]> bucketSums : sumsByBucket.entrySet()) {
+            String[] bucketKey = bucketSums.getKey().split(":");
+            long resolution = Long.parseLong(bucketKey[0]);
+            long bucketStart = Long.parseLong(bucketKey[1]);
+            int[] sums = bucketSums.getValue();
+
+            int rowsUpdated = historyRollupDao.executeRaw("UPDATE `" + Schema.TABLE_HISTORY_ROLLUPS + "` SET "
+                    + "`" + HistoryRollup.FIELD_MESSAGES_ADDED + "` = `" + HistoryRollup.FIELD_MESSAGES_ADDED + "` + " + sums[0] + ", "
+                    + "`" + HistoryRollup.FIELD_MESSAGES_REMOVED + "` = `" + HistoryRollup.FIELD_MESSAGES_REMOVED + "` + " + sums[1] + ", "
+                    + "`" + HistoryRollup.FIELD_UNREAD_ADDED + "` = `" + HistoryRollup.FIELD_UNREAD_ADDED + "` + " + sums[2] + ", "
+                    + "`" + HistoryRollup.FIELD_UNREAD_REMOVED + "` = `" + HistoryRollup.FIELD_UNREAD_REMOVED + "` + " + sums[3]
+                    + whereBucket(userId, resolution, bucketStart));
+
+            if (rowsUpdated == 0) {
+                historyRollupDao.executeRaw("INSERT INTO `" + Schema.TABLE_HISTORY_ROLLUPS + "` (`" + HistoryRollup.FIELD_USER_ID + "`, `" + HistoryRollup.FIELD_RESOLUTION + "`, `" + HistoryRollup.FIELD_BUCKET_START + "`, `"
+                        + HistoryRollup.FIELD_MESSAGES_ADDED + "`, `" + HistoryRollup.FIELD_MESSAGES_REMOVED + "`, `" + HistoryRollup.FIELD_UNREAD_ADDED + "`, `" + HistoryRollup.FIELD_UNREAD_REMOVED + "`)"
+                        + " VALUES (" + userId + ", " + resolution + ", " + bucketStart + ", " + sums[0] + ", " + sums[1] + ", " + sums[2] + ", " + sums[3] + ")");
+            }
+        }
+    }
+
+    // Label and history rollup tables use the same names for these columns
+    private static String whereBucket(int userId, long resolution, long bucketStart) {
+        return " WHERE `" + LabelRollup.FIELD_USER_ID + "` = " + userId
+                + " AND `" + LabelRollup.FIELD_RESOLUTION + "` = " + resolution
+                + " AND `" + LabelRollup.FIELD_BUCKET_START + "` = " + bucketStart;
+    }
+
+    private static String insertLabelRollupSql(String valueList) {
+        return "INSERT INTO `" + Schema.TABLE_LABEL_ROLLUPS + "` (`" + LabelRollup.FIELD_USER_ID + "`, `" + LabelRollup.FIELD_RESOLUTION + "`, `" + LabelRollup.FIELD_BUCKET_START + "`, `"
+                + LabelRollup.FIELD_LAST_TIME + "`, `" + LabelRollup.FIELD_LAST_TOTAL + "`, `" + LabelRollup.FIELD_LAST_UNREAD + "`, `"
+                + LabelRollup.FIELD_MIN_TOTAL + "`, `" + LabelRollup.FIELD_MAX_TOTAL + "`, `" + LabelRollup.FIELD_SUM_TOTAL + "`, `"
+                + LabelRollup.FIELD_MIN_UNREAD + "`, `" + LabelRollup.FIELD_MAX_UNREAD + "`, `" + LabelRollup.FIELD_SUM_UNREAD + "`, `" + LabelRollup.FIELD_SAMPLES + "`)"
+                + " VALUES (" + valueList + ")";
+    }
+
+    ////////////////////////////////////////////////
+    // Reads
+
+    // The last label counts of each rollup bucket, ordered by time. Only buckets with counts observed at or after the start time are included.
+    public List<LabelCountRow> getLastLabelCounts(int userId, long resolution, long startTime) throws SQLException {
+        QueryBuilder<LabelRollup, String> qb = labelRollupDao.queryBuilder();
+        qb.selectRaw("`" + LabelRollup.FIELD_LAST_TIME + "`, `" + LabelRollup.FIELD_LAST_TOTAL + "`, `" + LabelRollup.FIELD_LAST_UNREAD + "`");
+        qb.where()
+                .eq(LabelRollup.FIELD_USER_ID, userId)
+                .and()
+                .eq(LabelRollup.FIELD_RESOLUTION, resolution)
+                .and()
+                .ge(LabelRollup.FIELD_BUCKET_START, bucketStart(startTime, resolution))
+                .and()
+                .ge(LabelRollup.FIELD_LAST_TIME, startTime);
+        qb.orderBy(LabelRollup.FIELD_BUCKET_START, true);
+
+        GenericRawResults<LabelCountRow> rawResults = labelRollupDao.queryRaw(qb.prepareStatementString(), LabelCountRow.ROW_MAPPER);
+        return rawResults.getResults();
+    }
+
+    // Summed history changes per rollup bucket, ordered by time. Each row is dated at the start of its bucket.
+    public List<HistoryEventRow> getHistoryChanges(int userId, long resolution, long startTime) throws SQLException {
+        QueryBuilder<HistoryRollup, String> qb = historyRollupDao.queryBuilder();
+        qb.selectRaw("0, `" + HistoryRollup.FIELD_BUCKET_START + "`, " + HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME + ", `"
+                + HistoryRollup.FIELD_MESSAGES_ADDED + "`, `" + HistoryRollup.FIELD_MESSAGES_REMOVED + "`, `" + HistoryRollup.FIELD_UNREAD_ADDED + "`, `" + HistoryRollup.FIELD_UNREAD_REMOVED + "`");
+        qb.where()
+                .eq(HistoryRollup.FIELD_USER_ID, userId)
+                .and()
+                .eq(HistoryRollup.FIELD_RESOLUTION, resolution)
+                .and()
+                .ge(HistoryRollup.FIELD_BUCKET_START, bucketStart(startTime, resolution));
+        qb.orderBy(HistoryRollup.FIELD_BUCKET_START, true);
+
+        GenericRawResults<HistoryEventRow> rawResults = historyRollupDao.queryRaw(qb.prepareStatementString(), HistoryEventRow.ROW_MAPPER);
+        return rawResults.getResults();
+    }
+
+    ////////////////////////////////////////////////
+    // Rebuild
+
+    // Recreates all rollup rows from the label update and history event tables
+    public void rebuildAll() throws SQLException {
+        TransactionManager.callInTransaction(daoOwner.getConnectionSource(), () -> {
+            labelRollupDao.executeRaw("DELETE FROM `" + Schema.TABLE_LABEL_ROLLUPS + "`");
+            historyRollupDao.executeRaw("DELETE FROM `" + Schema.TABLE_HISTORY_ROLLUPS + "`");
+            return null;
+        });
+
+        int historyRollupRows = 0;
+        for (long resolution : RESOLUTIONS) {
+            String bucketExpression = "(`" + HistoryEvent.FIELD_DATE_OCCURRED + "` / " + resolution + ") * " + resolution;
+            historyRollupRows += historyRollupDao.executeRaw("INSERT INTO `" + Schema.TABLE_HISTORY_ROLLUPS + "` (`" + HistoryRollup.FIELD_USER_ID + "`, `" + HistoryRollup.FIELD_RESOLUTION + "`, `" + HistoryRollup.FIELD_BUCKET_START + "`, `"
+                    + HistoryRollup.FIELD_MESSAGES_ADDED + "`, `" + HistoryRollup.FIELD_MESSAGES_REMOVED + "`, `" + HistoryRollup.FIELD_UNREAD_ADDED + "`, `" + HistoryRollup.FIELD_UNREAD_REMOVED + "`)"
+                    + " SELECT `" + HistoryEvent.FIELD_USER_ID + "`, " + resolution + ", " + bucketExpression + ", "
+                    + "COALESCE(SUM(`" + HistoryEvent.FIELD_MESSAGES_ADDED + "`), 0), COALESCE(SUM(`" + HistoryEvent.FIELD_MESSAGES_REMOVED + "`), 0), "
+                    + "COALESCE(SUM(`" + HistoryEvent.FIELD_UNREAD_ADDED + "`), 0), COALESCE(SUM(`" + HistoryEvent.FIELD_UNREAD_REMOVED + "`), 0)"
+                    + " FROM `" + Schema.TABLE_HISTORY_EVENTS + "`"
+                    + " WHERE `" + HistoryEvent.FIELD_DATE_OCCURRED + "` > 0 AND `" + HistoryEvent.FIELD_STATUS_OBSERVED + "` <> " + HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_FIRSTUPDATE
+                    + " GROUP BY `" + HistoryEvent.FIELD_USER_ID + "`, " + bucketExpression);
+        }
+        log.info("Rebuilt history rollups, rows: " + historyRollupRows);
+
+        int labelRollupRows = rebuildLabelRollups();
+        log.info("Rebuilt label rollups, rows: " + labelRollupRows);
+    }
+
+    // Streams label updates ordered by user and time, each bucket is written once it is complete
+    private int rebuildLabelRollups() throws SQLException {
+        QueryBuilder<GmailLabelUpdate, String> qb = labelDao.queryBuilder();
+        qb.selectRaw("`" + GmailLabelUpdate.FIELD_USER_ID + "`, " + LabelCountRow.SELECT_COLUMNS);
+        qb.orderBy(GmailLabelUpdate.FIELD_USER_ID, true);
+        qb.orderBy(GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS, true);
+
+        LabelBucket[] currentBuckets = new LabelBucket[RESOLUTIONS.length];
+        BatchWrite batchWrite = new BatchWrite();
+        int rowsWritten = 0;
+
+        GenericRawResults<String[]> rawResults = labelDao.queryRaw(qb.prepareStatementString());
+        try {
+            for (String[] row : rawResults) {
+                int userId = Integer.parseInt(row[0]);
+                long updateTimeMillis = Long.parseLong(row[1]);
+                int messagesTotal = Integer.parseInt(row[2]);
+                int messagesUnread = Integer.parseInt(row[3]);
+
+                for (int i = 0; i < RESOLUTIONS.length; i++) {
+                    long bucketStart = bucketStart(updateTimeMillis, RESOLUTIONS[i]);
+                    LabelBucket currentBucket = currentBuckets[i];
+                    if (currentBucket == null || currentBucket.userId != userId || currentBucket.bucketStart != bucketStart) {
+                        if (currentBucket != null) {
+                            currentBucket.addInsert(batchWrite);
+                        }
+                        currentBucket = new LabelBucket(userId, RESOLUTIONS[i], bucketStart);
+                        currentBuckets[i] = currentBucket;
+                    }
+                    currentBucket.add(updateTimeMillis, messagesTotal, messagesUnread);
+                }
+
+                if (batchWrite.getRowCount() >= REBUILD_CHUNK_SIZE) {
+                    rowsWritten += batchWrite.getRowCount();
+                    batchWrite.execute(daoOwner.getConnectionSource());
+                    batchWrite = new BatchWrite();
+                }
+            }
+        } finally {
+            try {
+                rawResults.close();
+            } catch (Exception e) {
+                log.warn("Could not close query results: " + e.getMessage());
+            }
+        }
+
+        for (LabelBucket currentBucket : currentBuckets) {
+            if (currentBucket != null) {
+                currentBucket.addInsert(batchWrite);
+            }
+        }
+        rowsWritten += batchWrite.getRowCount();
+        batchWrite.execute(daoOwner.getConnectionSource());
+        return rowsWritten;
+    }
+
+    // Label rollup values for one bucket, accumulated in memory
+    private static class LabelBucket {
+        private final int userId;
+        private final long resolution;
+        private final long bucketStart;
+
+        private long lastTime = Long.MIN_VALUE;
+        private int lastTotal;
+        private int lastUnread;
+        private int minTotal = Integer.MAX_VALUE;
+        private int maxTotal = Integer.MIN_VALUE;
+        private long sumTotal;
+        private int minUnread = Integer.MAX_VALUE;
+        private int maxUnread = Integer.MIN_VALUE;
+        private long sumUnread;
+        private int samples;
+
+        LabelBucket(int userId, long resolution, long bucketStart) {
+            this.userId = userId;
+            this.resolution = resolution;
+            this.bucketStart = bucketStart;
+        }
+
+        void add(long updateTimeMillis, int messagesTotal, int messagesUnread) {
+            if (updateTimeMillis >= lastTime) {
+                lastTime = updateTimeMillis;
+                lastTotal = messagesTotal;
+                lastUnread = messagesUnread;
+            }
+            minTotal = Math.min(minTotal, messagesTotal);
+            maxTotal = Math.max(maxTotal, messagesTotal);
+            sumTotal += messagesTotal;
+            minUnread = Math.min(minUnread, messagesUnread);
+            maxUnread = Math.max(maxUnread, messagesUnread);
+            sumUnread += messagesUnread;
+            samples++;
+        }
+
+        Object[] values() {
+            return new Object[]{userId, resolution, bucketStart, lastTime, lastTotal, lastUnread, minTotal, maxTotal, sumTotal, minUnread, maxUnread, sumUnread, samples};
+        }
+
+        String valueList() {
+            List<String> values = new ArrayList<>();
+            for (Object value : values()) {
+                values.add(String.valueOf(value));
+            }
+            return String.join(", ", values);
+        }
+
+        void addInsert(BatchWrite batchWrite) {
+            batchWrite.addRow(insertLabelRollupSql("?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?"), values());
+        }
+    }
+}
@@ -9,13 +9,19 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import pack.GmailApiLaunch;
 import pack.persist.data.*;
+import pack.persist.data.tableinit.BackfillCheckpointTableInit;
 import pack.persist.data.tableinit.GmailLabelUpdateTableInit;
 import pack.persist.data.tableinit.GmailMessageTableInit;
+import pack.persist.data.tableinit.HistoryEventPayloadTableInit;
 import pack.persist.data.tableinit.HistoryEventTableInit;
+import pack.persist.data.tableinit.HistoryRollupTableInit;
+import pack.persist.data.tableinit.LabelRollupTableInit;
+import pack.persist.data.tableinit.PendingNotificationTableInit;
 import pack.persist.data.tableinit.UserTableInit;
 
 import javax.annotation.PostConstruct;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -29,6 +35,7 @@ public class SchemaUpdate {
 
 
     private final static Long DATABASE_SCHEMA_FIRST_VERSION = 1L;
+    private final static int PAYLOAD_CONVERSION_CHUNK_SIZE = 500;
 
 
     // Second generic parameter appears to be wrong?? should match the type of ID field
@@ -39,6 +46,10 @@ public class SchemaUpdate {
 
     @Autowired
     private DaoOwner daoOwner;
+    @Autowired
+    private HistoryPayloadStore historyPayloadStore;
+    @Autowired
+    private RollupStore rollupStore;
     private Dao<User, String> userDao;
 
 
@@ -78,6 +89,7 @@ public class SchemaUpdate {
 
             log.info("Schema version for " + appName + " : " + schemaObject.getSchemaVersion());
             performSchemaUpdatesIfNeeded(appName, schemaObject);
+            logQueryPlans();
 
 
         } catch (SQLException e) {
@@ -186,5 +198,149 @@ public class SchemaUpdate {
             log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
         }
 
+        if (schemaObject.getSchemaVersion() == 7) {
+            // Add indexes covering the columns that chart, merge and history queries filter on
+            // A history id is only recorded once per user, remove any duplicates before adding the unique index
+            int duplicatesRemoved = historyDao.executeRaw("DELETE FROM `" + Schema.TABLE_HISTORY_EVENTS + "` WHERE `" + HistoryEvent.FIELD_ID + "` NOT IN ("
+                    + "SELECT MIN(`" + HistoryEvent.FIELD_ID + "`) FROM `" + Schema.TABLE_HISTORY_EVENTS + "` GROUP BY `" + HistoryEvent.FIELD_USER_ID + "`, `" + HistoryEvent.FIELD_HISTORY_ID + "`);");
+            log.info("Removed " + duplicatesRemoved + " duplicate history events before adding unique index");
+
+            createIndex(historyDao, true, Schema.TABLE_HISTORY_EVENTS, HistoryEvent.FIELD_USER_ID, HistoryEvent.FIELD_HISTORY_ID);
+            createIndex(historyDao, false, Schema.TABLE_HISTORY_EVENTS, HistoryEvent.FIELD_USER_ID, HistoryEvent.FIELD_DATE_OCCURRED);
+            createIndex(messageDao, false, Schema.TABLE_GMAIL_MESSAGES, GmailMessage.FIELD_USER_ID, GmailMessage.FIELD_MESSAGE_ID);
+            createIndex(messageDao, false, Schema.TABLE_GMAIL_MESSAGES, GmailMessage.FIELD_USER_ID, GmailMessage.FIELD_HISTORY_ID);
+            createIndex(messageDao, false, Schema.TABLE_GMAIL_MESSAGES, GmailMessage.FIELD_USER_ID, GmailMessage.FIELD_HEADER_FROM);
+            createIndex(labelDao, false, Schema.TABLE_GMAIL_LABEL_UPDATE, GmailLabelUpdate.FIELD_USER_ID, GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS);
+
+            schemaObject.incrementSchemaVersion();
+            schemaDao.update(schemaObject);
+            log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
+        }
+
+        if (schemaObject.getSchemaVersion() == 8) {
+            // Create history event payload table, the JSON of history events can be moved here and stored deflated
+            TableUtils.createTable(daoOwner.getConnectionSource(), HistoryEventPayloadTableInit.class);
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_EVENT_PAYLOADS + "` ADD COLUMN `" + HistoryEventPayload.FIELD_USER_ID + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_EVENT_PAYLOADS + "` ADD COLUMN `" + HistoryEventPayload.FIELD_HISTORY_ID + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_EVENT_PAYLOADS + "` ADD COLUMN `" + HistoryEventPayload.FIELD_ENCODING + "` INT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_EVENT_PAYLOADS + "` ADD COLUMN `" + HistoryEventPayload.FIELD_PAYLOAD + "` BLOB;");
+            createIndex(historyDao, true, Schema.TABLE_HISTORY_EVENT_PAYLOADS, HistoryEventPayload.FIELD_USER_ID, HistoryEventPayload.FIELD_HISTORY_ID);
+
+            if (historyPayloadStore.isDeflateEnabled()) {
+                // Existing JSON is converted in chunks, each committed separately
+                int eventsConverted = historyPayloadStore.convertInlineJson(PAYLOAD_CONVERSION_CHUNK_SIZE);
+                log.info("Moved JSON of " + eventsConverted + " history events to payload table");
+            } else {
+                log.info("History event JSON is stored inline, existing JSON was not moved to payload table");
+            }
+
+            schemaObject.incrementSchemaVersion();
+            schemaDao.update(schemaObject);
+            log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
+        }
+
+        if (schemaObject.getSchemaVersion() == 9) {
+            // Create rollup tables holding label counts and history changes aggregated per minute, hour and day
+            TableUtils.createTable(daoOwner.getConnectionSource(), LabelRollupTableInit.class);
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_USER_ID + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_RESOLUTION + "` BIGINT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_BUCKET_START + "` BIGINT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_LAST_TIME + "` BIGINT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_LAST_TOTAL + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_LAST_UNREAD + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_MIN_TOTAL + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_MAX_TOTAL + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_SUM_TOTAL + "` BIGINT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_MIN_UNREAD + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_MAX_UNREAD + "` INT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_SUM_UNREAD + "` BIGINT NOT NULL;");
+            labelDao.executeRaw("ALTER TABLE `" + Schema.TABLE_LABEL_ROLLUPS + "` ADD COLUMN `" + LabelRollup.FIELD_SAMPLES + "` INT NOT NULL;");
+            createIndex(labelDao, true, Schema.TABLE_LABEL_ROLLUPS, LabelRollup.FIELD_USER_ID, LabelRollup.FIELD_RESOLUTION, LabelRollup.FIELD_BUCKET_START);
+
+            TableUtils.createTable(daoOwner.getConnectionSource(), HistoryRollupTableInit.class);
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_USER_ID + "` INT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_RESOLUTION + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_BUCKET_START + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_MESSAGES_ADDED + "` INT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_MESSAGES_REMOVED + "` INT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_UNREAD_ADDED + "` INT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_HISTORY_ROLLUPS + "` ADD COLUMN `" + HistoryRollup.FIELD_UNREAD_REMOVED + "` INT NOT NULL;");
+            createIndex(historyDao, true, Schema.TABLE_HISTORY_ROLLUPS, HistoryRollup.FIELD_USER_ID, HistoryRollup.FIELD_RESOLUTION, HistoryRollup.FIELD_BUCKET_START);
+
+            // Fill rollups from existing label updates and history events, new rows keep them current from here on
+            rollupStore.rebuildAll();
+
+            schemaObject.incrementSchemaVersion();
+            schemaDao.update(schemaObject);
+            log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
+        }
+
+        if (schemaObject.getSchemaVersion() == 10) {
+            // Create checkpoint table, lets backfills over the history table resume where they stopped
+            TableUtils.createTable(daoOwner.getConnectionSource(), BackfillCheckpointTableInit.class);
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` ADD COLUMN `" + BackfillCheckpoint.FIELD_NAME + "` VARCHAR(255) NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` ADD COLUMN `" + BackfillCheckpoint.FIELD_LAST_ID + "` INT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` ADD COLUMN `" + BackfillCheckpoint.FIELD_ROWS_PROCESSED + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_BACKFILL_CHECKPOINTS + "` ADD COLUMN `" + BackfillCheckpoint.FIELD_UPDATE_TIME_MILLIS + "` BIGINT NOT NULL;");
+            createIndex(historyDao, true, Schema.TABLE_BACKFILL_CHECKPOINTS, BackfillCheckpoint.FIELD_NAME);
+
+            schemaObject.incrementSchemaVersion();
+            schemaDao.update(schemaObject);
+            log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
+        }
+
+        if (schemaObject.getSchemaVersion() == 11) {
+            // Create durable queue for PubSub notifications, lets the subscriber acknowledge before the database work is done
+            TableUtils.createTable(daoOwner.getConnectionSource(), PendingNotificationTableInit.class);
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` ADD COLUMN `" + PendingNotification.FIELD_GOOGLE_USER_ID + "` VARCHAR(255) NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` ADD COLUMN `" + PendingNotification.FIELD_HISTORY_ID + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` ADD COLUMN `" + PendingNotification.FIELD_RECEIVED_MILLIS + "` BIGINT NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` ADD COLUMN `" + PendingNotification.FIELD_REALTIME + "` BOOLEAN NOT NULL;");
+            historyDao.executeRaw("ALTER TABLE `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` ADD COLUMN `" + PendingNotification.FIELD_ATTEMPTS + "` INT NOT NULL;");
+            createIndex(historyDao, true, Schema.TABLE_PENDING_NOTIFICATIONS, PendingNotification.FIELD_GOOGLE_USER_ID, PendingNotification.FIELD_HISTORY_ID);
+
+            schemaObject.incrementSchemaVersion();
+            schemaDao.update(schemaObject);
+            log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
+        }
+
+        if (schemaObject.getSchemaVersion() == 12) {
+            // Count failed detail requests per message, and page through one user's messages by id
+            messageDao.executeRaw("ALTER TABLE `" + Schema.TABLE_GMAIL_MESSAGES + "` ADD COLUMN `" + GmailMessage.FIELD_DETAIL_FAILURES + "` INT DEFAULT 0 NOT NULL;");
+            createIndex(messageDao, false, Schema.TABLE_GMAIL_MESSAGES, GmailMessage.FIELD_USER_ID, GmailMessage.FIELD_ID);
+
+            schemaObject.incrementSchemaVersion();
+            schemaDao.update(schemaObject);
+            log.info("Upgraded schema for " + appName + " to version " + schemaObject.getSchemaVersion());
+        }
+
+    }
+
+    // Index name is derived from table and column names, e.g. idx_gmailMessages_user_id_messageId
+    private void createIndex(Dao<?, String> dao, boolean unique, String tableName, String... columnNames) throws SQLException {
+        String indexName = (unique ? "unique_" : "idx_") + tableName + "_" + String.join("_", columnNames);
+        String columnList = "`" + String.join("`, `", columnNames) + "`";
+        dao.executeRaw("CREATE " + (unique ? "UNIQUE " : "") + "INDEX IF NOT EXISTS `" + indexName + "` ON `" + tableName + "` (" + columnList + ");");
+        log.info("Created index " + indexName);
+    }
+
+    // Logs the database's query plan for the queries run most often, makes a missing or unused index visible on startup
+    private void logQueryPlans() throws SQLException {
+        String userIdForPlan = "0"; // Plans do not depend on the user, any value will do
+
+        List<String> queries = new ArrayList<>();
+        queries.add("SELECT * FROM `" + Schema.TABLE_GMAIL_MESSAGES + "` WHERE `" + GmailMessage.FIELD_USER_ID + "` = " + userIdForPlan + " AND `" + GmailMessage.FIELD_MESSAGE_ID + "` IN ('a', 'b')");
+        queries.add("SELECT * FROM `" + Schema.TABLE_GMAIL_MESSAGES + "` WHERE `" + GmailMessage.FIELD_USER_ID + "` = " + userIdForPlan + " AND `" + GmailMessage.FIELD_HISTORY_ID + "` >= 0 ORDER BY `" + GmailMessage.FIELD_HISTORY_ID + "`");
+        queries.add("SELECT `" + GmailMessage.FIELD_HEADER_FROM + "`, COUNT(`" + GmailMessage.FIELD_HEADER_FROM + "`) FROM `" + Schema.TABLE_GMAIL_MESSAGES + "` WHERE `" + GmailMessage.FIELD_USER_ID + "` = " + userIdForPlan + " GROUP BY `" + GmailMessage.FIELD_HEADER_FROM + "`");
+        queries.add("SELECT * FROM `" + Schema.TABLE_HISTORY_EVENTS + "` WHERE `" + HistoryEvent.FIELD_USER_ID + "` = " + userIdForPlan + " AND `" + HistoryEvent.FIELD_HISTORY_ID + "` >= 0 ORDER BY `" + HistoryEvent.FIELD_HISTORY_ID + "`");
+        queries.add("SELECT * FROM `" + Schema.TABLE_HISTORY_EVENTS + "` WHERE `" + HistoryEvent.FIELD_USER_ID + "` = " + userIdForPlan + " AND `" + HistoryEvent.FIELD_DATE_OCCURRED + "` >= 0");
+        queries.add("SELECT * FROM `" + Schema.TABLE_GMAIL_LABEL_UPDATE + "` WHERE `" + GmailLabelUpdate.FIELD_USER_ID + "` = " + userIdForPlan + " AND `" + GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS + "` >= 0 ORDER BY `" + GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS + "`");
+
+        for (String query : queries) {
+            List<String[]> planRows = schemaDao.queryRaw("EXPLAIN " + query).getResults();
+            for (String[] planRow : planRows) {
+                log.info("Query plan: " + String.join(" ", planRow).replaceAll("\\s+", " "));
+            }
+        }
     }
 }
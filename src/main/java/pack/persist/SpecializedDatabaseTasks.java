@@ -4,14 +4,13 @@ import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.gmail.model.History;
 import com.google.api.services.gmail.model.Message;
-import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.stmt.PreparedQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import pack.persist.data.GmailMessage;
 import pack.persist.data.HistoryEvent;
+import pack.persist.data.Schema;
+import pack.persist.data.row.HistoryEventRow;
 import pack.service.google.gmail.DataPreparationService;
 import pack.service.google.gmail.GmailDataService;
 import pack.service.google.gmail.GmailService;
@@ -20,9 +19,7 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.math.BigInteger;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 
 // Contains things used in development that are run "manually" by editing code
@@ -34,149 +31,150 @@ public class SpecializedDatabaseTasks {
     @Autowired private DaoOwner daoOwner;
     @Autowired private GmailDataService gmailDataService;
     @Autowired private DataPreparationService dataPreparationService;
+    @Autowired private HistoryPayloadStore historyPayloadStore;
+    @Autowired private HistoryEventBackfill historyEventBackfill;
+    @Autowired private RollupStore rollupStore;
+
+    // Checkpoint names, see HistoryEventBackfill
+    private static final String BACKFILL_COUNT_CHANGES = "historyCountChanges";
+    private static final String BACKFILL_MISSING_DATE_INFO = "historyMissingDateInfo";
+    private static final String BACKFILL_REWRITE_DATES = "historyRewriteDates:user";
 
     // Uses the JSON already stored to update history event stats such as the added/removed counts, date observed
     public void parseHistoryEventJsonForCountChanges() throws SQLException, IOException {
+        String updateCountsSql = "UPDATE `" + Schema.TABLE_HISTORY_EVENTS + "` SET `"
+                + HistoryEvent.FIELD_MESSAGES_ADDED + "` = ?, `" + HistoryEvent.FIELD_MESSAGES_REMOVED + "` = ?, `"
+                + HistoryEvent.FIELD_UNREAD_ADDED + "` = ?, `" + HistoryEvent.FIELD_UNREAD_REMOVED + "` = ? WHERE `" + HistoryEvent.FIELD_ID + "` = ?";
 
-        Dao<HistoryEvent, String> historyDao = daoOwner.getHistoryDao();
-        List<HistoryEvent> historyEvents = historyDao.queryForAll();
-        log.info("Got " + historyEvents.size() + " history event records");
+        historyEventBackfill.run(BACKFILL_COUNT_CHANGES, null, (page, batchWrite) -> {
+            Map<Integer, String> jsonByEventId = historyPayloadStore.getJson(page);
 
-        for (HistoryEvent historyEvent : historyEvents) {
+            for (HistoryEvent historyEvent : page) {
 
-            String jsonString = historyEvent.getJson();
-            if (jsonString == null || jsonString.isEmpty()) {
-                // Nothing to do here
-                continue;
-            }
+                String jsonString = jsonByEventId.get(historyEvent.getId());
+                if (jsonString == null || jsonString.isEmpty()) {
+                    // Nothing to do here
+                    continue;
+                }
 
-            // Used to determine if there were destructive changes
-            boolean hasCountChangesBefore = hasCountChanges(historyEvent);
-            String countSignatureBefore = getCountSignature(historyEvent);
+                // Used to determine if there were destructive changes
+                boolean hasCountChangesBefore = hasCountChanges(historyEvent);
+                String countSignatureBefore = getCountSignature(historyEvent);
 
-            History gmailHistory = parseJsonToGoogleApiHistoryEvent(historyEvent);
+                History gmailHistory = parseJsonToGoogleApiHistoryEvent(jsonString);
 
 
 
-            if (null == null) {
-                historyEvent.setUserId(0);
-                throw new RuntimeException("Need to provide user id");
-            }
-
-            dataPreparationService.populateEntityObjectFromApi(historyEvent, gmailHistory);
-            String countSignatureAfter = getCountSignature(historyEvent);
+                if (null == null) {
+                    historyEvent.setUserId(0);
+                    throw new RuntimeException("Need to provide user id");
+                }
 
-            boolean countSignatureChanged = !countSignatureBefore.equals(countSignatureAfter);
-            if (hasCountChangesBefore & countSignatureChanged) {
-                if (countSignatureBefore.equals("0100") & countSignatureAfter.equals("0101")) {
-                    // Fixes an existing bug
-                } else {
-                    log.info("Warning - destructive changes appear to have occurred processing historyId: " + historyEvent.getHistoryId());
-                    throw new RuntimeException();
+                dataPreparationService.populateEntityObjectFromApi(historyEvent, gmailHistory);
+                String countSignatureAfter = getCountSignature(historyEvent);
+
+                boolean countSignatureChanged = !countSignatureBefore.equals(countSignatureAfter);
+                if (hasCountChangesBefore & countSignatureChanged) {
+                    if (countSignatureBefore.equals("0100") & countSignatureAfter.equals("0101")) {
+                        // Fixes an existing bug
+                    } else {
+                        log.info("Warning - destructive changes appear to have occurred processing historyId: " + historyEvent.getHistoryId());
+                        throw new RuntimeException();
+                    }
                 }
-            }
 
-            historyDao.update(historyEvent);
-        }
+                batchWrite.addRow(updateCountsSql, historyEvent.getMessagesAdded(), historyEvent.getMessagesRemoved(), historyEvent.getUnreadAdded(), historyEvent.getUnreadRemoved(), historyEvent.getId());
+            }
+        });
     }
 
     // A non-automated test to determine if the history event JSON contains any date information.  We expect it (unfortunately) does not.
     public void parseHistoryEventJsonForMissingDateInfo() throws SQLException, IOException {
 
-        Dao<HistoryEvent, String> historyDao = daoOwner.getHistoryDao();
-        Dao<GmailMessage, String> messageDao = daoOwner.getMessageDao();
+        // Read-only, restarts from the beginning each time
+        historyEventBackfill.resetCheckpoint(BACKFILL_MISSING_DATE_INFO);
+        historyEventBackfill.run(BACKFILL_MISSING_DATE_INFO, where -> where.eq(HistoryEvent.FIELD_DATE_OCCURRED, 0), (page, batchWrite) -> {
+            Map<Integer, String> jsonByEventId = historyPayloadStore.getJson(page);
+
+            // Parse the whole page first so that message dates can be looked up together, per user
+            List<History> gmailHistories = new ArrayList<>();
+            List<Integer> userIdOfHistories = new ArrayList<>();
+            Map<Integer, Set<String>> messageIdsByUser = new HashMap<>(); // Message ids are only unique within a mailbox
+            for (HistoryEvent historyEvent : page) {
+                String jsonString = jsonByEventId.get(historyEvent.getId());
+                if (jsonString == null || jsonString.isEmpty()) {
+                    // Nothing to do here
+                    continue;
+                }
 
-        List<HistoryEvent> historyEvents = historyDao.queryForAll();
-        log.info("Got " + historyEvents.size() + " history event records");
+                if (! hasCountChanges(historyEvent)) {
+                    // Mailboxes we care about were not affected
+                    continue;
+                }
 
-        for (HistoryEvent historyEvent : historyEvents) {
-            if (historyEvent.getDateOccurred() != 0) {
-                // Already has date info
-                continue;
+                History gmailHistory = parseJsonToGoogleApiHistoryEvent(jsonString);
+                gmailHistories.add(gmailHistory);
+                userIdOfHistories.add(historyEvent.getUserId());
+                Set<String> messageIds = messageIdsByUser.computeIfAbsent(historyEvent.getUserId(), userId -> new HashSet<>());
+                for (Message nextMessage : gmailHistory.getMessages()) {
+                    messageIds.add(nextMessage.getId());
+                }
             }
 
-            String jsonString = historyEvent.getJson();
-            if (jsonString == null || jsonString.isEmpty()) {
-                // Nothing to do here
-                continue;
+            Map<Integer, Map<String, List<Long>>> datesByUserAndMessageId = new HashMap<>();
+            for (Map.Entry<Integer, Set<String>> userMessageIds : messageIdsByUser.entrySet()) {
+                datesByUserAndMessageId.put(userMessageIds.getKey(), gmailDataService.getInternalDatesByMessageId(userMessageIds.getKey(), userMessageIds.getValue()));
             }
 
-            if (! hasCountChanges(historyEvent)) {
-                // Mailboxes we care about were not affected
-                continue;
-            }
+            for (int i = 0; i < gmailHistories.size(); i++) {
+                History gmailHistory = gmailHistories.get(i);
+                Map<String, List<Long>> datesByMessageId = datesByUserAndMessageId.get(userIdOfHistories.get(i));
+                List<Message> messages = gmailHistory.getMessages();
 
-            History gmailHistory = parseJsonToGoogleApiHistoryEvent(historyEvent);
-            List<Message> messages = gmailHistory.getMessages();
+                List<Long> datesFromMessages = new ArrayList<>();
+                for (Message nextMessage : messages) {
 
-            List<Long> datesFromMessages = new ArrayList<>();
-            for (Message nextMessage : messages) {
+                    Long dateFromHistory = nextMessage.getInternalDate();
+                    if (dateFromHistory != null) {
+                        log.info("Date is surprisingly not null");
+                        continue;
+                    }
 
-                Long dateFromHistory = nextMessage.getInternalDate();
-                if (dateFromHistory != null) {
-                    log.info("Date is surprisingly not null");
-                    continue;
-                }
 
+                    String messageId = nextMessage.getId();
+                    List<Long> datesFromQuery = datesByMessageId.getOrDefault(messageId, Collections.emptyList());
+                    if (datesFromQuery.size() > 1) {
+                        log.info("Unexpected number of query results");
+                        continue;
+                    }
 
-                String messageId = nextMessage.getId();
-                PreparedQuery<GmailMessage> prepared = messageDao.queryBuilder().where().eq(GmailMessage.FIELD_MESSAGE_ID, messageId).prepare();
+                    if (datesFromQuery.size() == 0) {
+                        log.info("No message was found with the ID from this history event: " + messageId);
+                        continue;
+                    }
 
-                List<GmailMessage> messagesFromQuery = messageDao.query(prepared);
-                if (messagesFromQuery.size() > 1) {
-                    log.info("Unexpected number of query results");
-                    continue;
-                }
-
-                if (messagesFromQuery.size() == 0) {
-                    log.info("No message was found with the ID from this history event: " + messageId);
-                    continue;
+                    Long dateFromMessage = datesFromQuery.get(0);
+                    datesFromMessages.add(dateFromMessage);
                 }
 
-                GmailMessage gmailMessage = messagesFromQuery.get(0);
 
-                Long dateFromMessage = gmailMessage.getInternalDate();
-                datesFromMessages.add(dateFromMessage);
-            }
-
-
-            if (datesFromMessages.size() >= 2) {
-                Collections.sort(datesFromMessages);
-                Long first = datesFromMessages.get(0);
-                Long last = datesFromMessages.get(datesFromMessages.size() - 1);
-                long differenceInMillis = (last - first);
-                log.info("Dates in history event differ by : " + differenceInMillis + "ms");
+                if (datesFromMessages.size() >= 2) {
+                    Collections.sort(datesFromMessages);
+                    Long first = datesFromMessages.get(0);
+                    Long last = datesFromMessages.get(datesFromMessages.size() - 1);
+                    long differenceInMillis = (last - first);
+                    log.info("Dates in history event differ by : " + differenceInMillis + "ms");
+                }
             }
-
-
-            //
-            // // Used to determine if there were destructive changes
-            // boolean hasCountChangesBefore = hasCountChanges(historyEvent);
-            // String countSignatureBefore = getCountSignature(historyEvent);
-            //
-            // String countSignatureAfter = getCountSignature(historyEvent);
-            //
-            // boolean countSignatureChanged = !countSignatureBefore.equals(countSignatureAfter);
-            // if (hasCountChangesBefore & countSignatureChanged) {
-            //     if (countSignatureBefore.equals("0100") & countSignatureAfter.equals("0101")) {
-            //         // Fixes an existing bug
-            //     } else {
-            //         log.info("Warning - destructive changes appear to have occurred processing historyId: " + historyEvent.getHistoryId());
-            //         throw new RuntimeException();
-            //     }
-            // }
-            //
-            // historyDao.update(historyEvent);
-        }
+        });
     }
 
-    private History parseJsonToGoogleApiHistoryEvent(HistoryEvent historyEvent) throws IOException {
+    private History parseJsonToGoogleApiHistoryEvent(String json) throws IOException {
         // This also works, but it produces an "arbitrary json" object
         // JsonObject parsed = (JsonObject) parser.parse(json);
         // ((JsonObject) parsed).has("labelsAdded");
         // log.info(parsed);
 
-        String json = historyEvent.getJson();
         JsonObjectParser jsonObjectParser = new JsonObjectParser(JacksonFactory.getDefaultInstance());
 
         History gmailHistory = jsonObjectParser.parseAndClose(new StringReader(json), History.class);
@@ -203,37 +201,50 @@ public class SpecializedDatabaseTasks {
         return countSignature;
     }
 
-    public void rewriteDatesOnHistoryEventsWithChanges(int userId) throws SQLException {
-        List<HistoryEvent> historyEventsWithDate = gmailDataService.getHistoryEventsWithDateStartingAt(userId, BigInteger.ZERO);
-        List<HistoryEvent> historyEventsWithoutDateStartingAt = gmailDataService.getHistoryEventsWithoutDateStartingAt(userId, BigInteger.ZERO);
+    public void rewriteDatesOnHistoryEventsWithChanges(int userId) throws SQLException, IOException {
+        List<HistoryEventRow> historyEventsWithDate = gmailDataService.getHistoryEventsWithDateStartingAt(userId, BigInteger.ZERO);
 
-        int hadToLookForwardCount = 0;
-        int datesUpdatedCount = 0;
+        String updateDateSql = "UPDATE `" + Schema.TABLE_HISTORY_EVENTS + "` SET `" + HistoryEvent.FIELD_DATE_OCCURRED + "` = ? WHERE `" + HistoryEvent.FIELD_ID + "` = ?";
+        int[] datesUpdatedCount = {0};
 
-        for (HistoryEvent historyEventWithoutDate : historyEventsWithoutDateStartingAt) {
-            if (historyEventWithoutDate.getMessagesAdded() + historyEventWithoutDate.getMessagesRemoved() + historyEventWithoutDate.getUnreadAdded() + historyEventWithoutDate.getUnreadRemoved() == 0) {
-                // Has no message changes, not interested in assigning a date to this one
-                continue;
-            }
+        historyEventBackfill.run(BACKFILL_REWRITE_DATES + userId, where -> where.eq(HistoryEvent.FIELD_USER_ID, userId).and().eq(HistoryEvent.FIELD_DATE_OCCURRED, 0), new HistoryEventBackfill.PageHandler() {
 
-            long historyIdToSearchBefore = historyEventWithoutDate.getHistoryId();
-            BigInteger historyIdToSearchBeforeBigInteger = BigInteger.valueOf(historyIdToSearchBefore);
-            HistoryEvent historyEventToExtractDate = gmailDataService.getFirstHistoryPreceding(historyEventsWithDate, historyIdToSearchBeforeBigInteger);
+            private final List<HistoryEventRow> datedInPage = new ArrayList<>();
 
-            if (historyEventToExtractDate == null) {
-                System.out.format("Could not find a preceding event for history id %s%n", historyEventWithoutDate.getHistoryId());
-                continue;
+            @Override
+            public void processPage(List<HistoryEvent> page, BatchWrite batchWrite) {
+                datedInPage.clear();
+                for (HistoryEvent historyEventWithoutDate : page) {
+                    if (historyEventWithoutDate.getMessagesAdded() + historyEventWithoutDate.getMessagesRemoved() + historyEventWithoutDate.getUnreadAdded() + historyEventWithoutDate.getUnreadRemoved() == 0) {
+                        // Has no message changes, not interested in assigning a date to this one
+                        continue;
+                    }
 
-            }
+                    long historyIdToSearchBefore = historyEventWithoutDate.getHistoryId();
+                    BigInteger historyIdToSearchBeforeBigInteger = BigInteger.valueOf(historyIdToSearchBefore);
+                    HistoryEventRow historyEventToExtractDate = gmailDataService.getFirstHistoryPreceding(historyEventsWithDate, historyIdToSearchBeforeBigInteger);
 
-                // Everything is OK
-                historyEventWithoutDate.setDateOccurred(historyEventToExtractDate.getDateOccurred());
-                Dao<HistoryEvent, String> historyDao = daoOwner.getHistoryDao();
-                historyDao.update(historyEventWithoutDate);
-                datesUpdatedCount++;
+                    if (historyEventToExtractDate == null) {
+                        System.out.format("Could not find a preceding event for history id %s%n", historyEventWithoutDate.getHistoryId());
+                        continue;
 
+                    }
 
-        }
-        System.out.format("Updated %s dates%n", datesUpdatedCount);
+                    // Everything is OK
+                    historyEventWithoutDate.setDateOccurred(historyEventToExtractDate.getDateOccurred());
+                    batchWrite.addRow(updateDateSql, historyEventWithoutDate.getDateOccurred(), historyEventWithoutDate.getId());
+                    datedInPage.add(new HistoryEventRow(historyEventWithoutDate.getHistoryId(), historyEventWithoutDate.getDateOccurred(), historyEventWithoutDate.getStatusObserved(),
+                            historyEventWithoutDate.getMessagesAdded(), historyEventWithoutDate.getMessagesRemoved(), historyEventWithoutDate.getUnreadAdded(), historyEventWithoutDate.getUnreadRemoved()));
+                }
+            }
+
+            @Override
+            public void afterPageWritten(List<HistoryEvent> page) throws SQLException {
+                // Events without a date were left out of the rollups, now that they have one their changes are counted
+                rollupStore.recordHistoryChanges(userId, datedInPage);
+                datesUpdatedCount[0] += datedInPage.size();
+            }
+        });
+        System.out.format("Updated %s dates%n", datesUpdatedCount[0]);
     }
 }
@@ -0,0 +1,54 @@
+package pack.persist.data;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+// Progress of a backfill over the history table, so that an interrupted run resumes after the last page it committed
+// A row exists only while its backfill is unfinished
+@DatabaseTable(tableName = Schema.TABLE_BACKFILL_CHECKPOINTS)
+public class BackfillCheckpoint {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_NAME = "name";
+    public static final String FIELD_LAST_ID = "last_id"; // Id of the last row processed
+    public static final String FIELD_ROWS_PROCESSED = "rows_processed";
+    public static final String FIELD_UPDATE_TIME_MILLIS = "updateTimeMillis";
+
+    @DatabaseField(columnName = FIELD_ID, generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = FIELD_NAME, canBeNull = false)
+    private String name;
+
+    @DatabaseField(columnName = FIELD_LAST_ID, canBeNull = false)
+    private int lastId;
+
+    @DatabaseField(columnName = FIELD_ROWS_PROCESSED, canBeNull = false)
+    private long rowsProcessed;
+
+    @DatabaseField(columnName = FIELD_UPDATE_TIME_MILLIS, canBeNull = false)
+    private long updateTimeMillis;
+
+    //////////////////////////////////
+
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLastId() {
+        return lastId;
+    }
+
+    public long getRowsProcessed() {
+        return rowsProcessed;
+    }
+
+    public long getUpdateTimeMillis() {
+        return updateTimeMillis;
+    }
+}
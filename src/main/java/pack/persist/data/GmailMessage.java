@@ -20,6 +20,7 @@ public class GmailMessage {
     public static final String FIELD_THREAD_ID = "threadId";
     public static final String FIELD_HEADER_FROM = "headerFrom";
     public static final String FIELD_INTERNAL_DATE = "internalDate";
+    public static final String FIELD_DETAIL_FAILURES = "detailFailures"; // Times the API refused to return details for this message, or returned them incomplete
 
 
     @DatabaseField(columnName = FIELD_ID, generatedId = true)
@@ -45,6 +46,9 @@ public class GmailMessage {
     @DatabaseField(columnName = FIELD_HISTORY_ID, canBeNull = true)
     private Long historyId;
 
+    @DatabaseField(columnName = FIELD_DETAIL_FAILURES, canBeNull = false)
+    private int detailFailures;
+
 
     GmailMessage() {
         // ORMLite requirement: all persisted classes must define a no-arg constructor with at least package visibility
@@ -138,6 +142,10 @@ public class GmailMessage {
         return userId;
     }
 
+    public int getDetailFailures() {
+        return detailFailures;
+    }
+
     public void setUserId(int userId) {
         this.userId = userId;
     }
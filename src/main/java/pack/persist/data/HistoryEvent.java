@@ -19,6 +19,7 @@ public class HistoryEvent {
     public static final int FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME = 1; // History event was recorded while system was running at steady-state (event probably observed in real-time)
     public static final int FIELD_STATUS_OBSERVED__STATUS_OBSERVED_DELAY = 0; // History event was recorded as system was starting up, (event possibly occurred while system was offline, now catching up)
     public static final String FIELD_JSON = "json";
+    public static final String FIELD_JSON__STORED_AS_PAYLOAD = "payload"; // JSON is kept in the payload table, see HistoryEventPayload.  An empty value means there is no JSON
     public static final String FIELD_MESSAGES_ADDED = "messages_added";
     public static final String FIELD_MESSAGES_REMOVED = "messages_removed";
     public static final String FIELD_UNREAD_ADDED = "unread_added";
@@ -77,6 +78,10 @@ public class HistoryEvent {
                 ;
     }
 
+    public boolean isJsonStoredAsPayload() {
+        return FIELD_JSON__STORED_AS_PAYLOAD.equals(json);
+    }
+
     public boolean hasChanges() {
         return messagesAdded != 0 || messagesRemoved !=  0 || unreadAdded != 0 || unreadRemoved != 0;
     }
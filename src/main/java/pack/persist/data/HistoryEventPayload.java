@@ -0,0 +1,90 @@
+package pack.persist.data;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.util.Objects;
+
+// The JSON of a history event as received from the API, kept apart from the event so that it is only read when asked for
+@DatabaseTable(tableName = Schema.TABLE_HISTORY_EVENT_PAYLOADS)
+public class HistoryEventPayload {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_USER_ID = "user_id";
+    public static final String FIELD_HISTORY_ID = "history_id";
+    public static final String FIELD_ENCODING = "encoding";
+    public static final int FIELD_ENCODING__ENCODING_UTF8 = 0; // Payload is the JSON as UTF-8 bytes
+    public static final int FIELD_ENCODING__ENCODING_DEFLATE = 1; // Payload is the JSON as UTF-8 bytes, deflated
+    public static final String FIELD_PAYLOAD = "payload";
+
+    @DatabaseField(columnName = FIELD_ID, generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = FIELD_USER_ID, canBeNull = false)
+    private Integer userId;
+
+    @DatabaseField(columnName = FIELD_HISTORY_ID, canBeNull = false)
+    private long historyId;
+
+    @DatabaseField(columnName = FIELD_ENCODING, canBeNull = false)
+    private int encoding;
+
+    @DatabaseField(columnName = FIELD_PAYLOAD, dataType = DataType.BYTE_ARRAY)
+    private byte[] payload;
+
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, userId, historyId, encoding);
+    }
+
+    @Override
+    public boolean equals(Object other) { // Do not compare database primary key
+        // Unclear if we depend on these at all
+        throw new RuntimeException("Not Implemented");
+    }
+
+    //////////////////////////////////
+
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+
+    public long getHistoryId() {
+        return historyId;
+    }
+
+    public void setHistoryId(long historyId) {
+        this.historyId = historyId;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(int encoding) {
+        this.encoding = encoding;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+}
@@ -0,0 +1,78 @@
+package pack.persist.data;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+// Summed mailbox changes from the history events of one user within one time bucket
+// Events observed before the user first authenticated (FIRSTUPDATE) are not included, as in the charts
+@DatabaseTable(tableName = Schema.TABLE_HISTORY_ROLLUPS)
+public class HistoryRollup {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_USER_ID = "user_id";
+    public static final String FIELD_RESOLUTION = "resolution"; // Bucket size in milliseconds
+    public static final String FIELD_BUCKET_START = "bucket_start"; // Aligned to a multiple of the resolution
+    public static final String FIELD_MESSAGES_ADDED = "messages_added";
+    public static final String FIELD_MESSAGES_REMOVED = "messages_removed";
+    public static final String FIELD_UNREAD_ADDED = "unread_added";
+    public static final String FIELD_UNREAD_REMOVED = "unread_removed";
+
+    @DatabaseField(columnName = FIELD_ID, generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = FIELD_USER_ID, canBeNull = false)
+    private int userId;
+
+    @DatabaseField(columnName = FIELD_RESOLUTION, canBeNull = false)
+    private long resolution;
+
+    @DatabaseField(columnName = FIELD_BUCKET_START, canBeNull = false)
+    private long bucketStart;
+
+    @DatabaseField(columnName = FIELD_MESSAGES_ADDED, canBeNull = false)
+    private int messagesAdded;
+
+    @DatabaseField(columnName = FIELD_MESSAGES_REMOVED, canBeNull = false)
+    private int messagesRemoved;
+
+    @DatabaseField(columnName = FIELD_UNREAD_ADDED, canBeNull = false)
+    private int unreadAdded;
+
+    @DatabaseField(columnName = FIELD_UNREAD_REMOVED, canBeNull = false)
+    private int unreadRemoved;
+
+    //////////////////////////////////
+
+
+    public int getId() {
+        return id;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public long getBucketStart() {
+        return bucketStart;
+    }
+
+    public int getMessagesAdded() {
+        return messagesAdded;
+    }
+
+    public int getMessagesRemoved() {
+        return messagesRemoved;
+    }
+
+    public int getUnreadAdded() {
+        return unreadAdded;
+    }
+
+    public int getUnreadRemoved() {
+        return unreadRemoved;
+    }
+}
@@ -0,0 +1,126 @@
+package pack.persist.data;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+// Summary of the label updates (inbox counts) of one user within one time bucket
+// Kept up to date as label updates are added, see RollupStore
+@DatabaseTable(tableName = Schema.TABLE_LABEL_ROLLUPS)
+public class LabelRollup {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_USER_ID = "user_id";
+    public static final String FIELD_RESOLUTION = "resolution"; // Bucket size in milliseconds
+    public static final String FIELD_BUCKET_START = "bucket_start"; // Aligned to a multiple of the resolution
+    public static final String FIELD_LAST_TIME = "last_time";
+    public static final String FIELD_LAST_TOTAL = "last_total";
+    public static final String FIELD_LAST_UNREAD = "last_unread";
+    public static final String FIELD_MIN_TOTAL = "min_total";
+    public static final String FIELD_MAX_TOTAL = "max_total";
+    public static final String FIELD_SUM_TOTAL = "sum_total";
+    public static final String FIELD_MIN_UNREAD = "min_unread";
+    public static final String FIELD_MAX_UNREAD = "max_unread";
+    public static final String FIELD_SUM_UNREAD = "sum_unread";
+    public static final String FIELD_SAMPLES = "samples"; // Averages are sum / samples
+
+    @DatabaseField(columnName = FIELD_ID, generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = FIELD_USER_ID, canBeNull = false)
+    private int userId;
+
+    @DatabaseField(columnName = FIELD_RESOLUTION, canBeNull = false)
+    private long resolution;
+
+    @DatabaseField(columnName = FIELD_BUCKET_START, canBeNull = false)
+    private long bucketStart;
+
+    @DatabaseField(columnName = FIELD_LAST_TIME, canBeNull = false)
+    private long lastTime;
+
+    @DatabaseField(columnName = FIELD_LAST_TOTAL, canBeNull = false)
+    private int lastTotal;
+
+    @DatabaseField(columnName = FIELD_LAST_UNREAD, canBeNull = false)
+    private int lastUnread;
+
+    @DatabaseField(columnName = FIELD_MIN_TOTAL, canBeNull = false)
+    private int minTotal;
+
+    @DatabaseField(columnName = FIELD_MAX_TOTAL, canBeNull = false)
+    private int maxTotal;
+
+    @DatabaseField(columnName = FIELD_SUM_TOTAL, canBeNull = false)
+    private long sumTotal;
+
+    @DatabaseField(columnName = FIELD_MIN_UNREAD, canBeNull = false)
+    private int minUnread;
+
+    @DatabaseField(columnName = FIELD_MAX_UNREAD, canBeNull = false)
+    private int maxUnread;
+
+    @DatabaseField(columnName = FIELD_SUM_UNREAD, canBeNull = false)
+    private long sumUnread;
+
+    @DatabaseField(columnName = FIELD_SAMPLES, canBeNull = false)
+    private int samples;
+
+    //////////////////////////////////
+
+
+    public int getId() {
+        return id;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public long getBucketStart() {
+        return bucketStart;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public int getLastTotal() {
+        return lastTotal;
+    }
+
+    public int getLastUnread() {
+        return lastUnread;
+    }
+
+    public int getMinTotal() {
+        return minTotal;
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public double getAverageTotal() {
+        return samples == 0 ? 0 : (double) sumTotal / samples;
+    }
+
+    public int getMinUnread() {
+        return minUnread;
+    }
+
+    public int getMaxUnread() {
+        return maxUnread;
+    }
+
+    public double getAverageUnread() {
+        return samples == 0 ? 0 : (double) sumUnread / samples;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+}
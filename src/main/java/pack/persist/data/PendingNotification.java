@@ -0,0 +1,62 @@
+package pack.persist.data;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+// A PubSub notification that was acknowledged but not yet recorded as a history event
+// Rows are written on the subscriber thread and removed once a queue worker has recorded the history event
+@DatabaseTable(tableName = Schema.TABLE_PENDING_NOTIFICATIONS)
+public class PendingNotification {
+
+    public static final String FIELD_ID = "id";
+    public static final String FIELD_GOOGLE_USER_ID = "google_user_id";
+    public static final String FIELD_HISTORY_ID = "history_id";
+    public static final String FIELD_RECEIVED_MILLIS = "received_millis";
+    public static final String FIELD_REALTIME = "realtime"; // Received while the subscriber was at steady-state, see MessageReceiverPersistData
+    public static final String FIELD_ATTEMPTS = "attempts"; // Failed attempts at recording the history event
+
+    @DatabaseField(columnName = FIELD_ID, generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = FIELD_GOOGLE_USER_ID, canBeNull = false)
+    private String googleUserId;
+
+    @DatabaseField(columnName = FIELD_HISTORY_ID, canBeNull = false)
+    private long historyId;
+
+    @DatabaseField(columnName = FIELD_RECEIVED_MILLIS, canBeNull = false)
+    private long receivedMillis;
+
+    @DatabaseField(columnName = FIELD_REALTIME, canBeNull = false)
+    private boolean realtime;
+
+    @DatabaseField(columnName = FIELD_ATTEMPTS, canBeNull = false)
+    private int attempts;
+
+    //////////////////////////////////
+
+
+    public int getId() {
+        return id;
+    }
+
+    public String getGoogleUserId() {
+        return googleUserId;
+    }
+
+    public long getHistoryId() {
+        return historyId;
+    }
+
+    public long getReceivedMillis() {
+        return receivedMillis;
+    }
+
+    public boolean isRealtime() {
+        return realtime;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
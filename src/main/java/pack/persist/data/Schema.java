@@ -19,6 +19,11 @@ public class Schema {
     public static final String TABLE_HISTORY_EVENTS = "gmailHistoryEvents";
     public static final String TABLE_USERS = "users";
     public static final String TABLE_GMAIL_LABEL_UPDATE = "gmailLabels";
+    public static final String TABLE_HISTORY_EVENT_PAYLOADS = "gmailHistoryEventPayloads";
+    public static final String TABLE_LABEL_ROLLUPS = "gmailLabelRollups";
+    public static final String TABLE_HISTORY_ROLLUPS = "gmailHistoryRollups";
+    public static final String TABLE_BACKFILL_CHECKPOINTS = "backfillCheckpoints";
+    public static final String TABLE_PENDING_NOTIFICATIONS = "pendingNotifications";
 
     @DatabaseField(generatedId = true)
     private int id;
@@ -0,0 +1,88 @@
+package pack.persist.data.row;
+
+import com.j256.ormlite.dao.RawRowMapper;
+import pack.persist.data.HistoryEvent;
+
+// Read-only projection of a history event: dates and counts, without the JSON or the database primary key
+// Filled from raw query results, so that charting a long time range creates one small object per row
+public class HistoryEventRow {
+
+    // Columns in the order expected by ROW_MAPPER
+    public static final String[] COLUMNS = {
+            HistoryEvent.FIELD_HISTORY_ID,
+            HistoryEvent.FIELD_DATE_OCCURRED,
+            HistoryEvent.FIELD_STATUS_OBSERVED,
+            HistoryEvent.FIELD_MESSAGES_ADDED,
+            HistoryEvent.FIELD_MESSAGES_REMOVED,
+            HistoryEvent.FIELD_UNREAD_ADDED,
+            HistoryEvent.FIELD_UNREAD_REMOVED,
+    };
+    public static final String SELECT_COLUMNS = RowParsing.columnList(COLUMNS); // For QueryBuilder.selectRaw
+
+    public static final RawRowMapper<HistoryEventRow> ROW_MAPPER = new RawRowMapper<HistoryEventRow>() {
+        @Override
+        public HistoryEventRow mapRow(String[] columnNames, String[] resultColumns) {
+            return new HistoryEventRow(
+                    RowParsing.parseLong(resultColumns[0]),
+                    RowParsing.parseLong(resultColumns[1]),
+                    RowParsing.parseInt(resultColumns[2]),
+                    RowParsing.parseInt(resultColumns[3]),
+                    RowParsing.parseInt(resultColumns[4]),
+                    RowParsing.parseInt(resultColumns[5]),
+                    RowParsing.parseInt(resultColumns[6]));
+        }
+    };
+
+    private final long historyId;
+    private final long dateOccurred;
+    private final int statusObserved;
+    private final int messagesAdded;
+    private final int messagesRemoved;
+    private final int unreadAdded;
+    private final int unreadRemoved;
+
+    public HistoryEventRow(long historyId, long dateOccurred, int statusObserved, int messagesAdded, int messagesRemoved, int unreadAdded, int unreadRemoved) {
+        this.historyId = historyId;
+        this.dateOccurred = dateOccurred;
+        this.statusObserved = statusObserved;
+        this.messagesAdded = messagesAdded;
+        this.messagesRemoved = messagesRemoved;
+        this.unreadAdded = unreadAdded;
+        this.unreadRemoved = unreadRemoved;
+    }
+
+    public boolean hasChanges() {
+        return messagesAdded != 0 || messagesRemoved !=  0 || unreadAdded != 0 || unreadRemoved != 0;
+    }
+
+    //////////////////////////////////
+
+
+    public long getHistoryId() {
+        return historyId;
+    }
+
+    public long getDateOccurred() {
+        return dateOccurred;
+    }
+
+    public int getStatusObserved() {
+        return statusObserved;
+    }
+
+    public int getMessagesAdded() {
+        return messagesAdded;
+    }
+
+    public int getMessagesRemoved() {
+        return messagesRemoved;
+    }
+
+    public int getUnreadAdded() {
+        return unreadAdded;
+    }
+
+    public int getUnreadRemoved() {
+        return unreadRemoved;
+    }
+}
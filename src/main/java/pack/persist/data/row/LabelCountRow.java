@@ -0,0 +1,51 @@
+package pack.persist.data.row;
+
+import com.j256.ormlite.dao.RawRowMapper;
+import pack.persist.data.GmailLabelUpdate;
+
+// Read-only projection of a label update: time and message counts only
+public class LabelCountRow {
+
+    // Columns in the order expected by ROW_MAPPER
+    public static final String[] COLUMNS = {
+            GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS,
+            GmailLabelUpdate.FIELD_MESSAGES_TOTAL,
+            GmailLabelUpdate.FIELD_MESSAGES_UNREAD,
+    };
+    public static final String SELECT_COLUMNS = RowParsing.columnList(COLUMNS); // For QueryBuilder.selectRaw
+
+    public static final RawRowMapper<LabelCountRow> ROW_MAPPER = new RawRowMapper<LabelCountRow>() {
+        @Override
+        public LabelCountRow mapRow(String[] columnNames, String[] resultColumns) {
+            return new LabelCountRow(
+                    RowParsing.parseLong(resultColumns[0]),
+                    RowParsing.parseInt(resultColumns[1]),
+                    RowParsing.parseInt(resultColumns[2]));
+        }
+    };
+
+    private final long updateTimeMillis;
+    private final int messagesTotal;
+    private final int messagesUnread;
+
+    public LabelCountRow(long updateTimeMillis, int messagesTotal, int messagesUnread) {
+        this.updateTimeMillis = updateTimeMillis;
+        this.messagesTotal = messagesTotal;
+        this.messagesUnread = messagesUnread;
+    }
+
+    //////////////////////////////////
+
+
+    public long getUpdateTimeMillis() {
+        return updateTimeMillis;
+    }
+
+    public int getMessagesTotal() {
+        return messagesTotal;
+    }
+
+    public int getMessagesUnread() {
+        return messagesUnread;
+    }
+}
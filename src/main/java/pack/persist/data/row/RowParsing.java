@@ -0,0 +1,18 @@
+package pack.persist.data.row;
+
+// Raw results arrive as strings.  Columns added by schema updates may hold NULL in older rows, read as 0 like ORMLite does for primitive fields
+class RowParsing {
+
+    static long parseLong(String value) {
+        return value == null ? 0L : Long.parseLong(value);
+    }
+
+    static int parseInt(String value) {
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    // Builds a quoted column list for QueryBuilder.selectRaw
+    static String columnList(String[] columns) {
+        return "`" + String.join("`, `", columns) + "`";
+    }
+}
@@ -0,0 +1,13 @@
+package pack.persist.data.tableinit;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+import pack.persist.data.BackfillCheckpoint;
+import pack.persist.data.Schema;
+
+@DatabaseTable(tableName = Schema.TABLE_BACKFILL_CHECKPOINTS)
+public class BackfillCheckpointTableInit {
+
+    @DatabaseField(columnName = BackfillCheckpoint.FIELD_ID, generatedId = true)
+    private int id;
+}
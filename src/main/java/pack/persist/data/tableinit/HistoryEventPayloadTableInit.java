@@ -0,0 +1,13 @@
+package pack.persist.data.tableinit;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+import pack.persist.data.HistoryEventPayload;
+import pack.persist.data.Schema;
+
+@DatabaseTable(tableName = Schema.TABLE_HISTORY_EVENT_PAYLOADS)
+public class HistoryEventPayloadTableInit {
+
+    @DatabaseField(columnName = HistoryEventPayload.FIELD_ID, generatedId = true)
+    private int id;
+}
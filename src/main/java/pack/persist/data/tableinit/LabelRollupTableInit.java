@@ -0,0 +1,13 @@
+package pack.persist.data.tableinit;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+import pack.persist.data.LabelRollup;
+import pack.persist.data.Schema;
+
+@DatabaseTable(tableName = Schema.TABLE_LABEL_ROLLUPS)
+public class LabelRollupTableInit {
+
+    @DatabaseField(columnName = LabelRollup.FIELD_ID, generatedId = true)
+    private int id;
+}
@@ -0,0 +1,13 @@
+package pack.persist.data.tableinit;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+import pack.persist.data.PendingNotification;
+import pack.persist.data.Schema;
+
+@DatabaseTable(tableName = Schema.TABLE_PENDING_NOTIFICATIONS)
+public class PendingNotificationTableInit {
+
+    @DatabaseField(columnName = PendingNotification.FIELD_ID, generatedId = true)
+    private int id;
+}
@@ -0,0 +1,25 @@
+package pack.service;
+
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-user stamp of the data charts are built from (label updates, history events and their rollups)
+// Raised after each committed write of such rows, a result computed under an older version may be out of date
+@Service
+public class DataVersionService {
+
+    private final Map<Integer, AtomicLong> versionByUser = new ConcurrentHashMap<>();
+
+    public void dataChanged(int userId) {
+        versionByUser.computeIfAbsent(userId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    // Versions start at 0 on every startup, so they are only comparable within one run of the application
+    public long getVersion(int userId) {
+        AtomicLong version = versionByUser.get(userId);
+        return version == null ? 0 : version.get();
+    }
+}
@@ -13,6 +13,8 @@ import pack.persist.data.User;
 import javax.annotation.PostConstruct;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class UserService {
@@ -25,14 +27,48 @@ public class UserService {
     private Dao<User, String> userDao;
     private Dao<HistoryEvent, String> historyDao;
 
+    // Users are only ever added, so the directory is loaded once and then kept up to date by addNewUser
+    // Loaded on first use rather than in postConstruct, the users table may not exist before schema updates have run
+    private final Map<Integer, User> usersById = new ConcurrentHashMap<>();
+    private final Map<String, User> usersByGoogleUserId = new ConcurrentHashMap<>();
+    private volatile boolean userDirectoryLoaded;
+
+    // Once a user has a history event, the earliest date can only stay the same
+    private final Map<Integer, Long> firstHistoryUpdateTimeByUser = new ConcurrentHashMap<>();
+
     @PostConstruct
     private void postConstruct() {
         userDao = daoOwner.getUserDao();
         historyDao = daoOwner.getHistoryDao();
     }
 
+    private void loadUserDirectoryIfNeeded() throws SQLException {
+        if (userDirectoryLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (userDirectoryLoaded == false) {
+                List<User> users = userDao.queryForAll();
+                for (User user : users) {
+                    cacheUser(user);
+                }
+                userDirectoryLoaded = true;
+                log.info("Loaded user directory with " + users.size() + " users");
+            }
+        }
+    }
+
+    private void cacheUser(User user) {
+        User previous = usersByGoogleUserId.putIfAbsent(user.getGoogleUserId(), user);
+        if (previous != null && previous.getId() != user.getId()) {
+            throw new RuntimeException("Warning - more than one user was found matching googleUserId: " + user.getGoogleUserId());
+        }
+        usersById.put(user.getId(), user);
+    }
+
     // Create a user for this google Id, if one doesn't exist - otherwise do nothing
-    public void addUserWithGoogleId(String googleUserId) throws SQLException {
+    // Synchronized so that two threads seeing the same new google Id do not both create it
+    public synchronized void addUserWithGoogleId(String googleUserId) throws SQLException {
         boolean userExists = userExistsWithGoogleUserId(googleUserId);
         if (userExists == false) {
             // consider recording date created
@@ -42,19 +78,16 @@ public class UserService {
         }
     }
 
+    // Must not be called within a transaction, the new user is cached before the transaction would commit
     private void addNewUser(String googleUserId) throws SQLException {
         User newUser = new User();
         newUser.setGoogleUserId(googleUserId);
-        userDao.create(newUser);
+        userDao.create(newUser); // Generated id is set on newUser
+        cacheUser(newUser);
     }
 
     public boolean userExistsWithId(int userId) throws SQLException {
-        String userIdToQuery = (new Integer(userId)).toString();
-        User user = userDao.queryForId(userIdToQuery);
-        if (user != null) {
-            return true;
-        }
-        return false;
+        return getUserWithId(userId) != null;
     }
 
     public boolean userExistsWithGoogleUserId(String googleUserId) throws SQLException {
@@ -67,31 +100,19 @@ public class UserService {
 
     // Created for development use
     public User getUserWithId(long userId) throws SQLException {
-        QueryBuilder<User, String> qb = userDao.queryBuilder();
-        qb.where().eq(User.FIELD_USER_ID, userId);
-        List<User> userResults = userDao.queryRaw(qb.prepareStatementString(), userDao.getRawRowMapper()).getResults();
-
-        if (userResults.size() == 0) {
+        loadUserDirectoryIfNeeded();
+        if (userId > Integer.MAX_VALUE || userId < Integer.MIN_VALUE) {
             return null;
-        } else if (userResults.size() == 1) {
-            return userResults.get(0);
         }
-
-        throw new RuntimeException("Warning - more than one user was found matching userId: " + userId);
+        return usersById.get((int) userId);
     }
 
     public User getUserWithGoogleUserId(String googleUserId) throws SQLException {
-        QueryBuilder<User, String> qb = userDao.queryBuilder();
-        qb.where().eq(User.FIELD_GOOGLE_USER_ID, googleUserId);
-        List<User> userResults = userDao.queryRaw(qb.prepareStatementString(), userDao.getRawRowMapper()).getResults();
-
-        if (userResults.size() == 0) {
+        loadUserDirectoryIfNeeded();
+        if (googleUserId == null) {
             return null;
-        } else if (userResults.size() == 1) {
-            return userResults.get(0);
         }
-
-        throw new RuntimeException("Warning - more than one user was found matching googleUserId: " + googleUserId);
+        return usersByGoogleUserId.get(googleUserId);
     }
 
     public void logAllUsers() throws SQLException {
@@ -103,6 +124,10 @@ public class UserService {
 
     // Candidate for moving to HistoryService, if one is created
     public Long getFirstHistoryUpdateTimeForUser(long userId) throws SQLException {
+        Long cachedFirstHistoryUpdateTime = firstHistoryUpdateTimeByUser.get((int) userId);
+        if (cachedFirstHistoryUpdateTime != null) {
+            return cachedFirstHistoryUpdateTime;
+        }
 
         QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder();
         qb.where().eq(HistoryEvent.FIELD_USER_ID, userId);
@@ -115,6 +140,7 @@ public class UserService {
         }
 
         long dateOccurred = historyResults.get(0).getDateOccurred();
+        firstHistoryUpdateTimeByUser.put((int) userId, dateOccurred); // Not cached while there are no events, the first one may arrive any time
         return dateOccurred;
     }
 }
@@ -1,13 +1,15 @@
 package pack.service.google.gmail;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.*;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
@@ -25,10 +27,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class GmailApiService {
@@ -36,7 +43,20 @@ public class GmailApiService {
     private static final Logger log = LoggerFactory.getLogger((new Object() {}).getClass().getEnclosingClass());
     public static final String MESSAGE_FORMAT__METADATA = "metadata"; // Not requesting full message data e.g. body  // https://developers.google.com/gmail/api/v1/reference/users/messages/get
 
+    // Each request names only the headers and fields the application reads, see https://developers.google.com/gmail/api/guides/performance#partial
+    public static final List<String> MESSAGE_METADATA_HEADERS = Arrays.asList("From");
+    public static final String MESSAGE_FIELDS = "id,historyId,internalDate,payload/headers";
+    public static final String LABEL_FIELDS = "id,name,messagesTotal,messagesUnread,threadsTotal,threadsUnread";
+    // Message ids and labels of each change, as read by DataPreparationService, plus thread ids
+    private static final String HISTORY_MESSAGE_FIELDS = "id,threadId,labelIds";
+    public static final String HISTORY_LIST_FIELDS = "history(id,messages/id"
+            + ",messagesAdded/message(" + HISTORY_MESSAGE_FIELDS + "),messagesDeleted/message(" + HISTORY_MESSAGE_FIELDS + ")"
+            + ",labelsAdded(labelIds,message(" + HISTORY_MESSAGE_FIELDS + ")),labelsRemoved(labelIds,message(" + HISTORY_MESSAGE_FIELDS + ")))"
+            + ",nextPageToken";
+    public static final List<String> HISTORY_TYPES = Arrays.asList("messageAdded", "messageDeleted", "labelAdded", "labelRemoved"); // All four are counted
+
     @Autowired ApplicationConfiguration applicationConfiguration;
+    @Autowired GmailQuotaLimiter gmailQuotaLimiter;
 
     private static final String APPLICATION_NAME = "Gmail API Java Quickstart";
 
@@ -73,12 +93,20 @@ public class GmailApiService {
 
     private static GoogleAuthorizationCodeFlow googleAuthorizationCodeFlow; // Appears to contain nothing user-specific, made static
 
+    // Gmail clients by google user id, saves reading the credential store and building a client on every API call
+    // Access-ordered, so the least recently used client is first
+    private final LinkedHashMap<String, CachedGmailClient> gmailClientCache = new LinkedHashMap<>(16, 0.75f, true);
+
 
     @PostConstruct
     private void init() {
 
         try {
-            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+            // HttpURLConnection keeps this many idle connections per host alive for re-use (JDK default is 5)
+            // Must be set before the first connection is opened
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", String.valueOf(applicationConfiguration.gmailHttpMaxConnections));
+            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport(); // Shared by all clients and token requests
             DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
 
             // Load client secrets.
@@ -103,7 +131,7 @@ public class GmailApiService {
         // Specify the same redirect URI that you use with your web app. If you don't have a web version of your app, you can specify an empty string.
 
         GoogleTokenResponse tokenResponse = new GoogleAuthorizationCodeTokenRequest(
-                new NetHttpTransport(),
+                HTTP_TRANSPORT,
                 JacksonFactory.getDefaultInstance(),
                 clientSecrets.getDetails().getClientId(),
                 clientSecrets.getDetails().getClientSecret(),
@@ -113,9 +141,10 @@ public class GmailApiService {
         return tokenResponse;
     }
 
-    private static GoogleAuthorizationCodeFlow buildGoogleAuthorizationCodeFlow() throws IOException {
+    private GoogleAuthorizationCodeFlow buildGoogleAuthorizationCodeFlow() throws IOException {
         GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
                 .setDataStoreFactory(DATA_STORE_FACTORY)
+                .addRefreshListener(new CachedClientRefreshListener())
                 .setAccessType(TOKEN_ACCESS_TYPE_OFFLINE)
                 .setApprovalPrompt(APPROVAL_PROMPT_FORCE) // Might be important for token (auto?) refresh
                 .build();
@@ -153,6 +182,10 @@ public class GmailApiService {
     }
 
     public boolean isCredentialValid(String googleUserId) throws IOException {
+        if (getCachedGmailClient(googleUserId) != null) {
+            return true; // Removed from the cache if its token could not be refreshed
+        }
+
         Credential credentialForUser = googleAuthorizationCodeFlow.loadCredential(googleUserId);
         if (credentialForUser == null) {
             return false;
@@ -170,27 +203,106 @@ public class GmailApiService {
 
     // The Gmail object represents the service object through which Gmail API functions are performed
     public Gmail getGmailService(String googleUserId) throws IOException {
+        CachedGmailClient cachedGmailClient = getCachedGmailClient(googleUserId);
+        if (cachedGmailClient != null) {
+            return cachedGmailClient.gmail;
+        }
 
-        if (isCredentialValid(googleUserId) == false) {
+        Credential credentialForUser = googleAuthorizationCodeFlow.loadCredential(googleUserId);
+        if (credentialForUser == null) {
             throw new RuntimeException("Called without valid credential");
         }
 
-        Credential credentialForUser = googleAuthorizationCodeFlow.loadCredential(googleUserId);
         String refreshToken = credentialForUser.getRefreshToken();
         if (refreshToken == null) {
             log.info("Warning - credential lacks refresh token - should examine token when it is first obtained");
         }
         Gmail service = buildGmailService(credentialForUser);
+        putCachedGmailClient(googleUserId, new CachedGmailClient(credentialForUser, service));
         return service;
     }
 
+    // Returns null if there is no client for the user, or it was idle for too long
+    private synchronized CachedGmailClient getCachedGmailClient(String googleUserId) {
+        evictIdleGmailClients();
+        CachedGmailClient cachedGmailClient = gmailClientCache.get(googleUserId);
+        if (cachedGmailClient != null) {
+            cachedGmailClient.lastUsedMillis = System.currentTimeMillis();
+        }
+        return cachedGmailClient;
+    }
+
+    private synchronized void putCachedGmailClient(String googleUserId, CachedGmailClient cachedGmailClient) {
+        gmailClientCache.put(googleUserId, cachedGmailClient);
+        Iterator<String> leastRecentlyUsed = gmailClientCache.keySet().iterator();
+        while (gmailClientCache.size() > applicationConfiguration.gmailClientCacheSize) {
+            log.info("Gmail client cache is full, removing client for user: " + leastRecentlyUsed.next());
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private void evictIdleGmailClients() {
+        long idleBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(applicationConfiguration.gmailClientCacheIdleMinutes);
+        Iterator<Map.Entry<String, CachedGmailClient>> entries = gmailClientCache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, CachedGmailClient> entry = entries.next();
+            if (entry.getValue().lastUsedMillis < idleBefore) {
+                log.debug("Removing idle Gmail client for user: " + entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+
+    // The next API call for this user reloads the credential from the store
+    public synchronized void invalidateGmailClient(String googleUserId) {
+        if (gmailClientCache.remove(googleUserId) != null) {
+            log.info("Removed cached Gmail client for user: " + googleUserId);
+        }
+    }
+
+    private synchronized void invalidateGmailClient(Credential credential) {
+        Iterator<Map.Entry<String, CachedGmailClient>> entries = gmailClientCache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, CachedGmailClient> entry = entries.next();
+            if (entry.getValue().credential == credential) {
+                log.info("Removed cached Gmail client after token refresh failure for user: " + entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+
+    private static class CachedGmailClient {
+        private final Credential credential;
+        private final Gmail gmail;
+        private volatile long lastUsedMillis = System.currentTimeMillis();
+
+        CachedGmailClient(Credential credential, Gmail gmail) {
+            this.credential = credential;
+            this.gmail = gmail;
+        }
+    }
+
+    // Added to every credential the flow loads, a cached client whose token cannot be refreshed is dropped
+    private class CachedClientRefreshListener implements CredentialRefreshListener {
+        @Override
+        public void onTokenResponse(Credential credential, TokenResponse tokenResponse) {
+        }
+
+        @Override
+        public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) {
+            invalidateGmailClient(credential);
+        }
+    }
+
     public Message getMessageDetailsById(String googleUserId, String messageId) throws IOException {
         // Build a new authorized API client pack.service.
         Gmail service = getGmailService(googleUserId);
 
-        final Message message = service.users().messages().get("me", messageId)
+        final Message message = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__MESSAGES_GET, () -> service.users().messages().get("me", messageId)
                 .setFormat(MESSAGE_FORMAT__METADATA)
-                .execute();
+                .setMetadataHeaders(MESSAGE_METADATA_HEADERS)
+                .setFields(MESSAGE_FIELDS)
+                .execute());
         final String snippet = message.getSnippet();
         log.debug("Got details for messageId:" + messageId + " snippet: " + snippet);
         return message;
@@ -198,7 +310,8 @@ public class GmailApiService {
 
     public List<History> getHistoryFrom(String googleUserId, String startingHistoryId) throws IOException {
         Gmail service = getGmailService(googleUserId);
-        ListHistoryResponse response = service.users().history().list("me").setStartHistoryId(new BigInteger(startingHistoryId)).execute();
+        ListHistoryResponse response = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__HISTORY_LIST,
+                () -> historyListRequest(service, new BigInteger(startingHistoryId)).execute());
         List<History> history = response.getHistory();
         return history;
     }
@@ -206,35 +319,39 @@ public class GmailApiService {
     public Label getLabelInfo(String googleUserId, String labelId) throws IOException {
         Gmail service = getGmailService(googleUserId);
 
-        Label label = service.users().labels().get("me", labelId).execute();
+        Label label = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__LABELS_GET, () -> service.users().labels().get("me", labelId).setFields(LABEL_FIELDS).execute());
         log.info("Got label:" + label.toString());
         return label;
     }
 
     public List<Message> getAllMessagesForLabel(String googleUserId, String labelId) throws IOException, InterruptedException {
-        StatefulMessagePageFetcher pageFetcher = getMessagePageFetcherForLabel(googleUserId, labelId, null);
+        MessagePageFetcher pageFetcher = getMessagePageFetcherForLabel(googleUserId, labelId, null);
 
         List<Message> nextPageMessages;
         List<Message> messagesFromAllPages = new ArrayList<>();
         HashMap<String, Message> messageIdToMessageMap = new HashMap<>(); // For accounting purposes only, at the moment
-        while (true) {
-            nextPageMessages = pageFetcher.getNextPage();
-            if (nextPageMessages == null) {
-                break;
-            }
-
-            for (Message nextMessage : nextPageMessages) {
-                if (nextMessage.getHistoryId() != null) {
-                    log.info("Found history ID: " + nextMessage.getHistoryId());
+        try {
+            while (true) {
+                nextPageMessages = pageFetcher.getNextPage();
+                if (nextPageMessages == null) {
+                    break;
                 }
-                if (messageIdToMessageMap.containsKey(nextMessage.getId())) {
-                    log.info("Duplicate message id within page: " + nextMessage.getId());
-                } else {
-                    messageIdToMessageMap.put(nextMessage.getId(), nextMessage);
+
+                for (Message nextMessage : nextPageMessages) {
+                    if (nextMessage.getHistoryId() != null) {
+                        log.info("Found history ID: " + nextMessage.getHistoryId());
+                    }
+                    if (messageIdToMessageMap.containsKey(nextMessage.getId())) {
+                        log.info("Duplicate message id within page: " + nextMessage.getId());
+                    } else {
+                        messageIdToMessageMap.put(nextMessage.getId(), nextMessage);
+                    }
                 }
-            }
 
-            messagesFromAllPages.addAll(nextPageMessages);
+                messagesFromAllPages.addAll(nextPageMessages);
+            }
+        } finally {
+            pageFetcher.close();
         }
 
         int totalMessages = messagesFromAllPages.size();
@@ -248,33 +365,56 @@ public class GmailApiService {
         return messagesFromAllPages;
     }
 
-    public StatefulMessagePageFetcher getMessagePageFetcherForLabel(String googleUserId, String labelId, Integer softMaximum) throws IOException {
+    // Pages after the first are fetched in the background when a read-ahead depth is configured, close the fetcher when done with it
+    public MessagePageFetcher getMessagePageFetcherForLabel(String googleUserId, String labelId, Integer softMaximum) throws IOException {
         Gmail gmailService = getGmailService(googleUserId);
-        StatefulMessagePageFetcher pageFetcher = new StatefulMessagePageFetcher(gmailService, labelId, softMaximum);
-        return pageFetcher;
+        StatefulMessagePageFetcher pageFetcher = new StatefulMessagePageFetcher(gmailService, gmailQuotaLimiter, googleUserId, labelId, softMaximum, applicationConfiguration.gmailMessagePageSize);
+        if (applicationConfiguration.gmailMessagePageReadAhead <= 0) {
+            return pageFetcher;
+        }
+        return new PrefetchingMessagePageFetcher(pageFetcher, applicationConfiguration.gmailMessagePageReadAhead, googleUserId + "-" + labelId);
+    }
+
+    public static final int HISTORY_EXPIRED = -1; // Returned by forEachHistoryPageFrom when Gmail no longer has history from the starting id
+
+    // Receives each page of history events as it arrives from the API
+    public interface HistoryPageConsumer {
+        void accept(List<History> historyPage) throws IOException, SQLException;
     }
 
     // Get history events since provided History Id
     public List<History> getMessageHistoryFrom(String googleUserId, Long startHistoryId) throws IOException {
+        List<History> histories = new ArrayList<History>();
+        try {
+            forEachHistoryPageFrom(googleUserId, startHistoryId, histories::addAll);
+        } catch (SQLException e) {
+            throw new RuntimeException("Unexpected, collecting history pages does not access the database", e);
+        }
+        return histories;
+    }
+
+    // Hands each page of history events since provided History Id to the consumer before fetching the next page
+    // Only one page is held at a time.  Returns the number of events received, or HISTORY_EXPIRED
+    public int forEachHistoryPageFrom(String googleUserId, Long startHistoryId, HistoryPageConsumer historyPageConsumer) throws IOException, SQLException {
         // Build a new authorized API client pack.service.
         Gmail service = getGmailService(googleUserId);
 
 
         BigInteger startHistoryIdBigInteger = BigInteger.valueOf(Long.valueOf(startHistoryId));
-        final Gmail.Users.History.List request = service.users().history().list("me")
-                .setStartHistoryId(startHistoryIdBigInteger);
+        final Gmail.Users.History.List request = historyListRequest(service, startHistoryIdBigInteger);
 
-        List<History> histories = new ArrayList<History>();
+        int historiesReceived = 0;
         try {
-            ListHistoryResponse response = request.execute();
+            ListHistoryResponse response = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__HISTORY_LIST, request::execute);
 
             while (response.getHistory() != null) {
-                histories.addAll(response.getHistory());
+                historyPageConsumer.accept(response.getHistory());
+                historiesReceived += response.getHistory().size();
                 if (response.getNextPageToken() != null) {
                     String pageToken = response.getNextPageToken();
                     log.info("Getting next page, token: " + pageToken);
-                    response = service.users().history().list("me").setPageToken(pageToken)
-                            .setStartHistoryId(startHistoryIdBigInteger).execute();
+                    response = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__HISTORY_LIST,
+                            () -> historyListRequest(service, startHistoryIdBigInteger).setPageToken(pageToken).execute());
                 } else {
                     log.info("Response has no next page");
                     break;
@@ -283,11 +423,21 @@ public class GmailApiService {
 
         } catch (GoogleJsonResponseException e) {
             log.info("---");
-            log.info(e.getClass().getCanonicalName() + " occurred when accessing history info for history id: " + startHistoryIdBigInteger + ", details: " + e.getDetails().toString());
+            log.info(e.getClass().getCanonicalName() + " occurred when accessing history info for history id: " + startHistoryIdBigInteger + ", details: " + e.getDetails());
+            if (e.getStatusCode() == 404 && historiesReceived == 0) {
+                return HISTORY_EXPIRED;
+            }
         }
 
-        log.info("Done collecting histories - got " + histories.size() + " events following history id: " + startHistoryId);
-        return histories;
+        log.info("Done collecting histories - got " + historiesReceived + " events following history id: " + startHistoryId);
+        return historiesReceived;
+    }
+
+    private static Gmail.Users.History.List historyListRequest(Gmail service, BigInteger startHistoryId) throws IOException {
+        return service.users().history().list("me")
+                .setStartHistoryId(startHistoryId)
+                .setHistoryTypes(HISTORY_TYPES)
+                .setFields(HISTORY_LIST_FIELDS);
     }
 
     public boolean isHistoryIdValid(String googleUserId, String historyId) throws IOException {
@@ -295,10 +445,13 @@ public class GmailApiService {
         Gmail service = getGmailService(googleUserId);
 
         BigInteger startHistoryIdBigInteger = BigInteger.valueOf(Long.valueOf(historyId));
+        // Only the validity of the id matters, not the events following it
         final Gmail.Users.History.List request = service.users().history().list("me")
-                .setStartHistoryId(startHistoryIdBigInteger);
+                .setStartHistoryId(startHistoryIdBigInteger)
+                .setMaxResults(1L)
+                .setFields("historyId");
         try {
-            ListHistoryResponse response = request.execute();
+            gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__HISTORY_LIST, request::execute);
         } catch (GoogleJsonResponseException e) {
             if (e.getDetails().getCode() == 404) {
                 return false;
@@ -315,8 +468,8 @@ public class GmailApiService {
 
         // Print the labels in the user's account.
         String userId = "me";
-        ListLabelsResponse listResponse =
-                service.users().labels().list(userId).execute();
+        ListLabelsResponse listResponse = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__LABELS_LIST,
+                () -> service.users().labels().list(userId).execute());
         List<Label> labels = listResponse.getLabels();
 
         return labels;
@@ -335,7 +488,8 @@ public class GmailApiService {
 
         // Use access token to determine the google user id (email address) of the user that was just authorized
         Gmail service = buildGmailService(credentialForNewUser);
-        Profile newUserProfile = service.users().getProfile("me").execute();
+        Profile newUserProfile = gmailQuotaLimiter.execute(null, GmailQuotaLimiter.COST__GET_PROFILE,
+                () -> service.users().getProfile("me").setFields("emailAddress").execute()); // User is not known yet
         String googleUserId = newUserProfile.getEmailAddress();
         log.info("Got profile for user: " + googleUserId);
 
@@ -343,6 +497,7 @@ public class GmailApiService {
             throw new RuntimeException("Could not obtain a meaningful google User Id, cannot save credential");
         }
         googleAuthorizationCodeFlow.createAndStoreCredential(tokenResponse, googleUserId);
+        invalidateGmailClient(googleUserId); // Any cached client still holds the previous credential
         return googleUserId;
     }
 }
@@ -1,11 +1,15 @@
 package pack.service.google.gmail;
 
 import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryLabelAdded;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.HistoryMessageDeleted;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.Message;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.GenericRawResults;
 import com.j256.ormlite.dao.RawRowMapper;
+import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.stmt.SelectArg;
@@ -15,12 +19,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import pack.persist.BatchWrite;
 import pack.persist.DaoOwner;
+import pack.persist.HistoryPayloadStore;
+import pack.persist.RollupStore;
 import pack.persist.data.GmailLabelUpdate;
 import pack.persist.data.GmailMessage;
 import pack.persist.data.HistoryEvent;
+import pack.persist.data.Schema;
 import pack.persist.data.User;
 import pack.persist.data.dummy.GmailLabelUpdateDummy;
+import pack.persist.data.row.HistoryEventRow;
+import pack.persist.data.row.LabelCountRow;
+import pack.service.DataVersionService;
 import pack.service.UserService;
 
 import javax.annotation.PostConstruct;
@@ -40,10 +51,15 @@ public class GmailDataService {
     public static final String LABEL_SPAM = "SPAM";
     public static final String LABEL_INBOX = "INBOX";
 
+    private static final int QUERY_CHUNK_SIZE__IN_CLAUSE = 500; // Number of values placed in one IN (...) clause
+
 
     @Autowired private UserService userService;
     @Autowired private DaoOwner daoOwner;
     @Autowired private DataPreparationService dataPreparationService;
+    @Autowired private HistoryPayloadStore historyPayloadStore;
+    @Autowired private RollupStore rollupStore;
+    @Autowired private DataVersionService dataVersionService;
 
     private Dao<GmailMessage, String> messageDao;
     private Dao<GmailLabelUpdate, String> labelDao;
@@ -66,27 +82,38 @@ public class GmailDataService {
         messageDao.update(messageToUpdate);
     }
 
+    // Writes history id, internal date and 'From' header of each message in a single batched transaction
+    public int updateMessageDetails(List<GmailMessage> messagesToUpdate) throws SQLException {
+        String updateDetailsSql = "UPDATE `" + Schema.TABLE_GMAIL_MESSAGES + "` SET `" + GmailMessage.FIELD_HISTORY_ID + "` = ?, `"
+                + GmailMessage.FIELD_INTERNAL_DATE + "` = ?, `" + GmailMessage.FIELD_HEADER_FROM + "` = ? WHERE `" + GmailMessage.FIELD_ID + "` = ?";
+        BatchWrite batchWrite = new BatchWrite();
+        for (GmailMessage messageToUpdate : messagesToUpdate) {
+            batchWrite.addRow(updateDetailsSql, messageToUpdate.getHistoryId(), messageToUpdate.getInternalDate(), messageToUpdate.getHeaderFrom(), messageToUpdate.getId());
+        }
+        return batchWrite.execute(daoOwner.getConnectionSource());
+    }
+
     public void updateGmailLabel(GmailLabelUpdate labelToUpdate) throws SQLException {
         labelDao.update(labelToUpdate);
     }
 
     public MessagesMergeResults mergeNewOrUpdatedMessages(User user, List<Message> inboxMessages) throws SQLException {
-        // a SelectArg here to generate a ? in statement string below, makes queryBuilder re-usable for each message
-        QueryBuilder<GmailMessage, String> qb = messageDao.queryBuilder();
-        qb.where()
-                .eq(GmailMessage.FIELD_MESSAGE_ID, new SelectArg())
-                .and()
-                .eq(GmailMessage.FIELD_USER_ID, user.getId());
-
         int newMessagesAdded = 0;
         int existingMessagesModified = 0;
         int existingMessagesUnchanged = 0;
 
+        // Look up every message of this page/list that is already persisted, a chunk of ids per query
+        Map<String, List<GmailMessage>> persistedMessagesById = getPersistedMessagesById(user, inboxMessages);
+
+        String insertSql = "INSERT INTO `" + Schema.TABLE_GMAIL_MESSAGES + "` (`" + GmailMessage.FIELD_USER_ID + "`, `" + GmailMessage.FIELD_MESSAGE_ID + "`, `"
+                + GmailMessage.FIELD_THREAD_ID + "`, `" + GmailMessage.FIELD_INTERNAL_DATE + "`) VALUES (?, ?, ?, ?)";
+        String updateThreadIdSql = "UPDATE `" + Schema.TABLE_GMAIL_MESSAGES + "` SET `" + GmailMessage.FIELD_THREAD_ID + "` = ? WHERE `" + GmailMessage.FIELD_ID + "` = ?";
+        BatchWrite batchWrite = new BatchWrite();
+
         // for each message
         for (Message nextMessage : inboxMessages) {
-            final GenericRawResults<GmailMessage> persistedMessagesResults = messageDao.queryRaw(qb.prepareStatementString(), messageDao.getRawRowMapper(), nextMessage.getId());
-            final List<GmailMessage> persistedMessages = persistedMessagesResults.getResults();
-            final int numberOfMatches = persistedMessages.size();
+            final List<GmailMessage> persistedMessages = persistedMessagesById.get(nextMessage.getId());
+            final int numberOfMatches = persistedMessages == null ? 0 : persistedMessages.size();
             final String newThreadId = nextMessage.getThreadId();
             final Long newInternalDate = nextMessage.getInternalDate();
 
@@ -103,7 +130,7 @@ public class GmailDataService {
                 }
 
                 if (updated) {
-                    messageDao.update(firstResult);
+                    batchWrite.addRow(updateThreadIdSql, newThreadId, firstResult.getId());
                     existingMessagesModified++;
                 } else {
                     existingMessagesUnchanged++;
@@ -115,16 +142,21 @@ public class GmailDataService {
 
                 gmailMessageToPersist.setUserId(user.getId());
                 gmailMessageToPersist.setInternalDate(newInternalDate);
-                messageDao.create(gmailMessageToPersist);
+                batchWrite.addRow(insertSql, user.getId(), nextMessage.getId(), newThreadId, newInternalDate);
                 newMessagesAdded++;
 
+                // A message listed twice is treated as already persisted the second time, as when it was created one row at a time
+                persistedMessagesById.put(nextMessage.getId(), new ArrayList<>(Collections.singletonList(gmailMessageToPersist)));
+
             } else {
                 log.warn("Unexpected number of matches on existing message ID " + nextMessage.getId() + " for user " + user.getGoogleUserId() + ", " + numberOfMatches + " matches were found");
                 persistedMessages.forEach(gmailMessage -> log.warn(gmailMessage.toString()));
             }
         }
 
-        log.info("Messages total: " + messageDao.countOf() + "  Added " + newMessagesAdded + " messages, updated " + existingMessagesModified + " messages, " + existingMessagesUnchanged + " messages unchanged.");
+        batchWrite.execute(daoOwner.getConnectionSource()); // All inserts and updates in a single transaction
+
+        log.info("Added " + newMessagesAdded + " messages, updated " + existingMessagesModified + " messages, " + existingMessagesUnchanged + " messages unchanged.");
         MessagesMergeResults mergeResults = new MessagesMergeResults();
         mergeResults.setNewAdded(newMessagesAdded);
         mergeResults.setExistingUnchanged(existingMessagesUnchanged);
@@ -133,6 +165,138 @@ public class GmailDataService {
         return mergeResults;
     }
 
+    // Applies the message changes in one page of history to the persisted inbox messages, instead of scanning inbox pages
+    // Messages added to the inbox (new, or labelled INBOX) are merged as a page scan would merge them, deleted messages are removed
+    // Messages that only leave the inbox are kept, as they are when scanning
+    private MessagesMergeResults applyHistoryToMessages(User user, List<History> historyPage) throws SQLException {
+        Map<String, Message> inboxMessagesById = new LinkedHashMap<>();
+        Set<String> deletedMessageIds = new LinkedHashSet<>();
+
+        for (History history : historyPage) {
+            if (history.getMessagesAdded() != null) {
+                for (HistoryMessageAdded messageAdded : history.getMessagesAdded()) {
+                    Message message = messageAdded.getMessage();
+                    if (message != null && message.getLabelIds() != null && message.getLabelIds().contains(LABEL_INBOX)) {
+                        inboxMessagesById.put(message.getId(), message);
+                    }
+                }
+            }
+            if (history.getLabelsAdded() != null) {
+                for (HistoryLabelAdded labelAdded : history.getLabelsAdded()) {
+                    Message message = labelAdded.getMessage();
+                    if (message != null && labelAdded.getLabelIds() != null && labelAdded.getLabelIds().contains(LABEL_INBOX)) {
+                        inboxMessagesById.put(message.getId(), message);
+                    }
+                }
+            }
+            if (history.getMessagesDeleted() != null) {
+                for (HistoryMessageDeleted messageDeleted : history.getMessagesDeleted()) {
+                    if (messageDeleted.getMessage() != null) {
+                        deletedMessageIds.add(messageDeleted.getMessage().getId());
+                    }
+                }
+            }
+        }
+        inboxMessagesById.keySet().removeAll(deletedMessageIds); // Deleted later within the same page
+
+        MessagesMergeResults mergeResults = new MessagesMergeResults();
+        if (inboxMessagesById.isEmpty() == false) {
+            mergeResults = mergeNewOrUpdatedMessages(user, new ArrayList<>(inboxMessagesById.values()));
+        }
+
+        int messagesDeleted = deleteMessages(user, new ArrayList<>(deletedMessageIds));
+        if (messagesDeleted > 0) {
+            log.info("Removed " + messagesDeleted + " deleted messages for user " + user.getGoogleUserId());
+        }
+        return mergeResults;
+    }
+
+    // Returns the number of rows deleted
+    private int deleteMessages(User user, List<String> messageIds) throws SQLException {
+        int rowsDeleted = 0;
+        for (int chunkStart = 0; chunkStart < messageIds.size(); chunkStart += QUERY_CHUNK_SIZE__IN_CLAUSE) {
+            List<String> messageIdsChunk = messageIds.subList(chunkStart, Math.min(chunkStart + QUERY_CHUNK_SIZE__IN_CLAUSE, messageIds.size()));
+
+            StringBuilder placeholders = new StringBuilder();
+            String[] arguments = new String[messageIdsChunk.size() + 1];
+            arguments[0] = String.valueOf(user.getId());
+            for (int i = 0; i < messageIdsChunk.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+                arguments[i + 1] = messageIdsChunk.get(i);
+            }
+
+            rowsDeleted += messageDao.executeRaw("DELETE FROM `" + Schema.TABLE_GMAIL_MESSAGES + "` WHERE `" + GmailMessage.FIELD_USER_ID + "` = ?"
+                    + " AND `" + GmailMessage.FIELD_MESSAGE_ID + "` IN (" + placeholders + ")", arguments);
+        }
+        return rowsDeleted;
+    }
+
+    // Returns persisted messages for this user having any of the message ids provided, keyed by message id
+    private Map<String, List<GmailMessage>> getPersistedMessagesById(User user, List<Message> messages) throws SQLException {
+        List<String> messageIds = new ArrayList<>(messages.size());
+        for (Message nextMessage : messages) {
+            messageIds.add(nextMessage.getId());
+        }
+
+        Map<String, List<GmailMessage>> persistedMessagesById = new HashMap<>();
+        for (int chunkStart = 0; chunkStart < messageIds.size(); chunkStart += QUERY_CHUNK_SIZE__IN_CLAUSE) {
+            List<String> messageIdsChunk = messageIds.subList(chunkStart, Math.min(chunkStart + QUERY_CHUNK_SIZE__IN_CLAUSE, messageIds.size()));
+
+            QueryBuilder<GmailMessage, String> qb = messageDao.queryBuilder();
+            qb.selectColumns(GmailMessage.FIELD_ID, GmailMessage.FIELD_MESSAGE_ID, GmailMessage.FIELD_THREAD_ID);
+            qb.where()
+                    .eq(GmailMessage.FIELD_USER_ID, user.getId())
+                    .and()
+                    .in(GmailMessage.FIELD_MESSAGE_ID, selectArgsFor(messageIdsChunk));
+
+            for (GmailMessage persistedMessage : qb.query()) {
+                List<GmailMessage> matches = persistedMessagesById.get(persistedMessage.getMessageId());
+                if (matches == null) {
+                    matches = new ArrayList<>(1);
+                    persistedMessagesById.put(persistedMessage.getMessageId(), matches);
+                }
+                matches.add(persistedMessage);
+            }
+        }
+        return persistedMessagesById;
+    }
+
+    // Internal dates of this user's messages with these ids, keyed by message id, a chunk of ids per query
+    // A message id is expected to be found once, more than one date means the id was stored more than once
+    public Map<String, List<Long>> getInternalDatesByMessageId(int userId, Collection<String> messageIds) throws SQLException {
+        List<String> messageIdList = new ArrayList<>(messageIds);
+        Map<String, List<Long>> datesByMessageId = new HashMap<>();
+        for (int chunkStart = 0; chunkStart < messageIdList.size(); chunkStart += QUERY_CHUNK_SIZE__IN_CLAUSE) {
+            List<String> messageIdsChunk = messageIdList.subList(chunkStart, Math.min(chunkStart + QUERY_CHUNK_SIZE__IN_CLAUSE, messageIdList.size()));
+
+            QueryBuilder<GmailMessage, String> qb = messageDao.queryBuilder();
+            qb.selectColumns(GmailMessage.FIELD_MESSAGE_ID, GmailMessage.FIELD_INTERNAL_DATE);
+            qb.where()
+                    .eq(GmailMessage.FIELD_USER_ID, userId)
+                    .and()
+                    .in(GmailMessage.FIELD_MESSAGE_ID, selectArgsFor(messageIdsChunk));
+
+            for (GmailMessage gmailMessage : qb.query()) {
+                List<Long> dates = datesByMessageId.get(gmailMessage.getMessageId());
+                if (dates == null) {
+                    dates = new ArrayList<>(1);
+                    datesByMessageId.put(gmailMessage.getMessageId(), dates);
+                }
+                dates.add(gmailMessage.getInternalDate());
+            }
+        }
+        return datesByMessageId;
+    }
+
+    // Message ids come from the API, so they are passed as arguments rather than written into the statement
+    private static List<SelectArg> selectArgsFor(List<String> values) {
+        List<SelectArg> selectArgs = new ArrayList<>(values.size());
+        for (String value : values) {
+            selectArgs.add(new SelectArg(value));
+        }
+        return selectArgs;
+    }
+
     private boolean hasThreadIdChanged(String newThreadId, String oldThreadId) {
         return (oldThreadId != null || newThreadId != null)
                 && !oldThreadId.equals(newThreadId);
@@ -140,19 +304,32 @@ public class GmailDataService {
 
 
     // Update the database using the collection of History events.  Will create and/or update history event records
-    public void persistAndUpdateHistoryData(int userId, List<History> historyEventsFromApi) throws SQLException {
+    // With applyToMessages, the message changes in these events are also applied to the persisted messages (see applyHistoryToMessages)
+    // in the same transaction, so events are never recorded as examined without their message changes
+    public void persistAndUpdateHistoryData(int userId, List<History> historyEventsFromApi, boolean applyToMessages) throws SQLException {
         int historyEventsNew = 0;
         int historyEventsAlreadyPersisted = 0;
         int historyEventErrors = 0;
 
+        if (historyEventsFromApi.isEmpty()) {
+            return;
+        }
 
         // Determine date to assign to new/updated history event objects
         BigInteger smallestHistoryId = findSmallestHistoryId(historyEventsFromApi);
-        List<HistoryEvent> historyEventsWithDate = getHistoryEventsWithDateStartingAt(userId, smallestHistoryId);
+        BigInteger largestHistoryId = findLargestHistoryId(historyEventsFromApi);
+        List<HistoryEventRow> historyEventsWithDate = getHistoryEventsWithDateStartingAt(userId, smallestHistoryId);
 
+        // See which records for these history IDs already exist in the DB, with a single query
+        Map<Long, List<HistoryEvent>> alreadyPersistedByHistoryId = getHistoryEventsInRange(userId, smallestHistoryId, largestHistoryId);
+
+        BatchWrite batchWrite = new BatchWrite();
+        List<HistoryEventRow> rollupChanges = new ArrayList<>(); // Counts added by new events, or the change in counts of existing events
         for (History nextHistoryEventFromApi : historyEventsFromApi) {
-            // See if a record for this history ID already exists in the DB
-            final List<HistoryEvent> alreadyPersistedHistoryEvents = getHistoryEvent(userId, nextHistoryEventFromApi.getId());
+            List<HistoryEvent> alreadyPersistedHistoryEvents = alreadyPersistedByHistoryId.get(nextHistoryEventFromApi.getId().longValue());
+            if (alreadyPersistedHistoryEvents == null) {
+                alreadyPersistedHistoryEvents = Collections.emptyList();
+            }
 
             if (alreadyPersistedHistoryEvents.isEmpty()) {
                 //Create new event
@@ -163,8 +340,8 @@ public class GmailDataService {
                 dataPreparationService.populateEntityObjectFromApi(historyEventToPersist, nextHistoryEventFromApi);
 
                 // Set estimated date of this event, plus realtime observation status
-                HistoryEvent firstEventPreceding = getFirstHistoryPreceding(historyEventsWithDate, nextHistoryEventFromApi.getId());
-                HistoryEvent firstEventFollowing = getFirstHistoryFollowing(historyEventsWithDate, nextHistoryEventFromApi.getId());
+                HistoryEventRow firstEventPreceding = getFirstHistoryPreceding(historyEventsWithDate, nextHistoryEventFromApi.getId());
+                HistoryEventRow firstEventFollowing = getFirstHistoryFollowing(historyEventsWithDate, nextHistoryEventFromApi.getId());
 
                 // The Pub/Sub event is added to the history AFTER the events that triggered it and therefore has a greater HistoryId
                 // Therefore, when ordered by HistoryId the Pub/Sub event (push notification) will appear to FOLLOW (not Precede) the history events that it should be grouped with
@@ -185,9 +362,12 @@ public class GmailDataService {
                 }
 
                 log.debug("Persisting new history event, id: " + historyEventToPersist.getHistoryId() + " est. date: " + historyEventToPersist.getDateOccurred() + " realtime observed status: " + historyEventToPersist.getStatusObserved());
-                historyDao.create(historyEventToPersist);
+                addHistoryEventInsert(batchWrite, historyEventToPersist);
+                rollupChanges.add(toRow(historyEventToPersist, 0, 0, 0, 0));
                 historyEventsNew++;
 
+                // A history id listed twice is updated the second time, as when events were created one row at a time
+                alreadyPersistedByHistoryId.put(historyEventToPersist.getHistoryId(), new ArrayList<>(Collections.singletonList(historyEventToPersist)));
 
             } else if (alreadyPersistedHistoryEvents.size() == 1) {
 
@@ -196,9 +376,11 @@ public class GmailDataService {
                 log.warn("Updating existing history event, id: " + historyEventToUpdate.getHistoryId() + " est. date: " + historyEventToUpdate.getDateOccurred() + " realtime observed status: " + historyEventToUpdate.getStatusObserved());
 
                 int hashBefore = historyEventToUpdate.hashCode();
+                HistoryEventRow countsBefore = toRow(historyEventToUpdate, 0, 0, 0, 0);
                 dataPreparationService.populateEntityObjectFromApi(historyEventToUpdate, nextHistoryEventFromApi); // Repopulate field data
 
-                historyDao.update(historyEventToUpdate);
+                addHistoryEventCountsUpdate(batchWrite, historyEventToUpdate);
+                rollupChanges.add(toRow(historyEventToUpdate, countsBefore.getMessagesAdded(), countsBefore.getMessagesRemoved(), countsBefore.getUnreadAdded(), countsBefore.getUnreadRemoved()));
                 historyEventsAlreadyPersisted++;
 
                 int hashAfter = historyEventToUpdate.hashCode();
@@ -214,35 +396,100 @@ public class GmailDataService {
             }
         }
 
+        // All inserts and updates in a single transaction, together with the rollups and messages they change
+        TransactionManager.callInTransaction(daoOwner.getConnectionSource(), () -> {
+            batchWrite.execute(daoOwner.getConnectionSource());
+            rollupStore.recordHistoryChanges(userId, rollupChanges);
+            if (applyToMessages) {
+                applyHistoryToMessages(userService.getUserWithId(userId), historyEventsFromApi);
+            }
+            return null;
+        });
+        dataVersionService.dataChanged(userId);
+
         log.info("Processed " + historyEventsFromApi.size() + " history events from API, new added: " + historyEventsNew + ", already persisted: " + historyEventsAlreadyPersisted + ", errors: " + historyEventErrors);
     }
 
-    private List<HistoryEvent> getHistoryEvent(int userId, BigInteger historyId) throws SQLException {
-        HashMap<String, Object> queryMap = new HashMap<>();
-        queryMap.put(HistoryEvent.FIELD_HISTORY_ID, historyId);
-        queryMap.put(HistoryEvent.FIELD_USER_ID, userId);
-        List<HistoryEvent> queryResults = historyDao.queryForFieldValues(queryMap);
-        return queryResults;
+    // Counts of the event less the counts provided
+    private static HistoryEventRow toRow(HistoryEvent historyEvent, int messagesAddedBefore, int messagesRemovedBefore, int unreadAddedBefore, int unreadRemovedBefore) {
+        return new HistoryEventRow(historyEvent.getHistoryId(), historyEvent.getDateOccurred(), historyEvent.getStatusObserved(),
+                historyEvent.getMessagesAdded() - messagesAddedBefore, historyEvent.getMessagesRemoved() - messagesRemovedBefore,
+                historyEvent.getUnreadAdded() - unreadAddedBefore, historyEvent.getUnreadRemoved() - unreadRemovedBefore);
+    }
+
+    // JSON is written to the payload table or inline, depending on configured storage
+    private void addHistoryEventInsert(BatchWrite batchWrite, HistoryEvent historyEvent) {
+        String jsonColumnValue = historyPayloadStore.addPayload(batchWrite, historyEvent.getUserId(), historyEvent.getHistoryId(), historyEvent.getJson());
+        String insertSql = "INSERT INTO `" + Schema.TABLE_HISTORY_EVENTS + "` (`" + HistoryEvent.FIELD_USER_ID + "`, `" + HistoryEvent.FIELD_HISTORY_ID + "`, `"
+                + HistoryEvent.FIELD_DATE_OCCURRED + "`, `" + HistoryEvent.FIELD_STATUS_OBSERVED + "`, `" + HistoryEvent.FIELD_JSON + "`, `"
+                + HistoryEvent.FIELD_MESSAGES_ADDED + "`, `" + HistoryEvent.FIELD_MESSAGES_REMOVED + "`, `" + HistoryEvent.FIELD_UNREAD_ADDED + "`, `" + HistoryEvent.FIELD_UNREAD_REMOVED + "`)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        batchWrite.addRow(insertSql, historyEvent.getUserId(), historyEvent.getHistoryId(), historyEvent.getDateOccurred(), historyEvent.getStatusObserved(), jsonColumnValue,
+                historyEvent.getMessagesAdded(), historyEvent.getMessagesRemoved(), historyEvent.getUnreadAdded(), historyEvent.getUnreadRemoved());
     }
 
-    public HistoryEvent getFirstHistoryPreceding(List<HistoryEvent> historyEventsWithDates, BigInteger historyIdToSearch) {
-        HistoryEvent previousEvent = null;
-        for (HistoryEvent nextHistoryEvent : historyEventsWithDates) {
-            if (nextHistoryEvent.getHistoryId() > historyIdToSearch.longValue()) {
-                return previousEvent;
+    // Only the counts are re-derived from the API data, other columns are left as they are
+    private void addHistoryEventCountsUpdate(BatchWrite batchWrite, HistoryEvent historyEvent) {
+        String updateSql = "UPDATE `" + Schema.TABLE_HISTORY_EVENTS + "` SET `" + HistoryEvent.FIELD_MESSAGES_ADDED + "` = ?, `" + HistoryEvent.FIELD_MESSAGES_REMOVED + "` = ?, `"
+                + HistoryEvent.FIELD_UNREAD_ADDED + "` = ?, `" + HistoryEvent.FIELD_UNREAD_REMOVED + "` = ?"
+                + " WHERE `" + HistoryEvent.FIELD_USER_ID + "` = ? AND `" + HistoryEvent.FIELD_HISTORY_ID + "` = ?";
+        batchWrite.addRow(updateSql, historyEvent.getMessagesAdded(), historyEvent.getMessagesRemoved(), historyEvent.getUnreadAdded(), historyEvent.getUnreadRemoved(),
+                historyEvent.getUserId(), historyEvent.getHistoryId());
+    }
+
+    // History events with history ids in the (inclusive) range provided, keyed by history id. The json column is not loaded.
+    private Map<Long, List<HistoryEvent>> getHistoryEventsInRange(int userId, BigInteger smallestHistoryId, BigInteger largestHistoryId) throws SQLException {
+        QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder();
+        qb.selectColumns(HistoryEvent.FIELD_ID, HistoryEvent.FIELD_USER_ID, HistoryEvent.FIELD_HISTORY_ID, HistoryEvent.FIELD_DATE_OCCURRED, HistoryEvent.FIELD_STATUS_OBSERVED,
+                HistoryEvent.FIELD_MESSAGES_ADDED, HistoryEvent.FIELD_MESSAGES_REMOVED, HistoryEvent.FIELD_UNREAD_ADDED, HistoryEvent.FIELD_UNREAD_REMOVED);
+        qb.where()
+                .eq(HistoryEvent.FIELD_USER_ID, userId)
+                .and()
+                .between(HistoryEvent.FIELD_HISTORY_ID, smallestHistoryId.longValue(), largestHistoryId.longValue());
+
+        Map<Long, List<HistoryEvent>> historyEventsById = new HashMap<>();
+        for (HistoryEvent historyEvent : qb.query()) {
+            List<HistoryEvent> matches = historyEventsById.get(historyEvent.getHistoryId());
+            if (matches == null) {
+                matches = new ArrayList<>(1);
+                historyEventsById.put(historyEvent.getHistoryId(), matches);
             }
-            previousEvent = nextHistoryEvent;
+            matches.add(historyEvent);
+        }
+        return historyEventsById;
+    }
+
+    // Assumes events are ordered by history id ascending
+    public HistoryEventRow getFirstHistoryPreceding(List<HistoryEventRow> historyEventsWithDates, BigInteger historyIdToSearch) {
+        int indexFollowing = indexOfFirstHistoryFollowing(historyEventsWithDates, historyIdToSearch.longValue());
+        if (indexFollowing == historyEventsWithDates.size() || indexFollowing == 0) {
+            return null; // As before, no event is reported as preceding unless one also follows
+        }
+        return historyEventsWithDates.get(indexFollowing - 1);
+    }
+
+    // Assumes events are ordered by history id ascending
+    public HistoryEventRow getFirstHistoryFollowing(List<HistoryEventRow> historyHavingDate, BigInteger historyIdToSearch) {
+        int indexFollowing = indexOfFirstHistoryFollowing(historyHavingDate, historyIdToSearch.longValue());
+        if (indexFollowing == historyHavingDate.size()) {
+            return null;
         }
-        return null;
+        return historyHavingDate.get(indexFollowing);
     }
 
-    public HistoryEvent getFirstHistoryFollowing(List<HistoryEvent> historyHavingDate, BigInteger historyIdToSearch) {
-        for (HistoryEvent nextHistoryEvent : historyHavingDate) {
-            if (nextHistoryEvent.getHistoryId() > historyIdToSearch.longValue()) {
-                return nextHistoryEvent;
+    // Binary search for the first event having a greater history id, returns list size if there is none
+    private static int indexOfFirstHistoryFollowing(List<HistoryEventRow> historyEventsSorted, long historyIdToSearch) {
+        int lower = 0;
+        int upper = historyEventsSorted.size();
+        while (lower < upper) {
+            int middle = (lower + upper) >>> 1;
+            if (historyEventsSorted.get(middle).getHistoryId() > historyIdToSearch) {
+                upper = middle;
+            } else {
+                lower = middle + 1;
             }
         }
-        return null;
+        return lower;
     }
 
     private static Comparator<History> HistoryComparator = new Comparator<History>() {
@@ -253,13 +500,11 @@ public class GmailDataService {
     };
 
     public static BigInteger findSmallestHistoryId(List<History> historyEventsFromApi) {
-        ArrayList<History> clonedList = new ArrayList<>(historyEventsFromApi);
-        clonedList.sort(HistoryComparator);
+        return Collections.min(historyEventsFromApi, HistoryComparator).getId();
+    }
 
-        BigInteger firstId = clonedList.get(0).getId();
-        // BigInteger lastId = clonedList.get(clonedList.size()-1).getId();
-        // log.info("First HistoryId: " + firstId + " last HistoryId: " + lastId); // Made sure the sort order is what was expected
-        return firstId;
+    public static BigInteger findLargestHistoryId(List<History> historyEventsFromApi) {
+        return Collections.max(historyEventsFromApi, HistoryComparator).getId();
     }
 
     public GmailLabelUpdate getLastLabelUpdate(int userId) throws SQLException {
@@ -275,13 +520,11 @@ public class GmailDataService {
         return results.get(0);
     }
 
-    public HistoryEvent getLastHistoryUpdate(int userId) throws SQLException {
-        PreparedQuery<HistoryEvent> preparedQuery = historyDao.queryBuilder().limit(1L)
-                .orderBy(HistoryEvent.FIELD_DATE_OCCURRED, false)
-                .where()
-                .eq(HistoryEvent.FIELD_USER_ID, userId)
-                .prepare();
-        List<HistoryEvent> results = historyDao.query(preparedQuery);
+    public HistoryEventRow getLastHistoryUpdate(int userId) throws SQLException {
+        QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder().limit(1L)
+                .orderBy(HistoryEvent.FIELD_DATE_OCCURRED, false);
+        qb.where().eq(HistoryEvent.FIELD_USER_ID, userId);
+        List<HistoryEventRow> results = queryHistoryEventRows(qb);
         if (results.size() == 0) {
             return null;
         }
@@ -289,18 +532,23 @@ public class GmailDataService {
     }
 
     // Get history records that we know the date/time for
-    public List<HistoryEvent> getHistoryEventsWithDateStartingAt(int userId, BigInteger startingHistoryId) throws SQLException {
-        PreparedQuery<HistoryEvent> preparedQuery = historyDao.queryBuilder()
-                .orderBy(HistoryEvent.FIELD_HISTORY_ID, true)
-                .where()
+    public List<HistoryEventRow> getHistoryEventsWithDateStartingAt(int userId, BigInteger startingHistoryId) throws SQLException {
+        QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder()
+                .orderBy(HistoryEvent.FIELD_HISTORY_ID, true);
+        qb.where()
                 .eq(HistoryEvent.FIELD_USER_ID, userId)
                 .and()
                 .ge(HistoryEvent.FIELD_HISTORY_ID, startingHistoryId)
                 .and()
-                .ge(HistoryEvent.FIELD_DATE_OCCURRED, 0)
-                .prepare();
-        List<HistoryEvent> results = historyDao.query(preparedQuery);
-        return results;
+                .ge(HistoryEvent.FIELD_DATE_OCCURRED, 0);
+        return queryHistoryEventRows(qb);
+    }
+
+    // Runs the query selecting only the columns of HistoryEventRow, no entities are created
+    private List<HistoryEventRow> queryHistoryEventRows(QueryBuilder<HistoryEvent, String> qb) throws SQLException {
+        qb.selectRaw(HistoryEventRow.SELECT_COLUMNS);
+        GenericRawResults<HistoryEventRow> rawResults = historyDao.queryRaw(qb.prepareStatementString(), HistoryEventRow.ROW_MAPPER);
+        return rawResults.getResults();
     }
 
     // Get history records that we don't know the date/time for
@@ -327,7 +575,7 @@ public class GmailDataService {
 
 
 
-    public List<HistoryEvent> getMailboxMessageChanges(int userIdLoggedIn, long dataStartTime) throws SQLException {
+    public List<HistoryEventRow> getMailboxMessageChanges(int userIdLoggedIn, long dataStartTime) throws SQLException {
         boolean userExists = userService.userExistsWithId(userIdLoggedIn);
         if (userExists == false) {
             log.info("Warning, logged-in user was not found, userId: " + userIdLoggedIn);
@@ -342,123 +590,80 @@ public class GmailDataService {
                 .ge(HistoryEvent.FIELD_DATE_OCCURRED, dataStartTime) // Only records having a date estimate;
                 .and() // Only history events believed to occur after the user first authenticated
                 .not().eq(HistoryEvent.FIELD_STATUS_OBSERVED, HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_FIRSTUPDATE);
+        HistoryEventStringQueryBuilder.orderBy(HistoryEvent.FIELD_DATE_OCCURRED, true); // Charts merge these with label counts in time order
 
-        List<HistoryEvent> results = HistoryEventStringQueryBuilder.query();
+        List<HistoryEventRow> results = queryHistoryEventRows(HistoryEventStringQueryBuilder);
         return results;
     }
 
-    // Select label updates (total/unread message counts) starting a certain number of days ago
-    // Since observations may not be at regular intervals, group by 'time buckets' and present the average from each bucket
-    public List<GmailLabelUpdate> getMessageAndUnreadCountClose(int userIdLoggedIn, long chartTimeStart) throws SQLException {
+    // Same as above, but read from pre-aggregated rollups when a resolution is given (RollupStore.RESOLUTION_NONE reads raw events)
+    // Each row then holds the summed changes of one rollup bucket, dated at the start of that bucket
+    public List<HistoryEventRow> getMailboxMessageChanges(int userIdLoggedIn, long dataStartTime, long rollupResolution) throws SQLException {
+        if (rollupResolution == RollupStore.RESOLUTION_NONE) {
+            return getMailboxMessageChanges(userIdLoggedIn, dataStartTime);
+        }
+
         boolean userExists = userService.userExistsWithId(userIdLoggedIn);
         if (userExists == false) {
             log.info("Warning, logged-in user was not found, userId: " + userIdLoggedIn);
             return new ArrayList<>();
         }
 
-        long bucketSizeMillis = calculateBucketSizeFromStartTime(chartTimeStart);
-        List<GmailLabelUpdate> gmailLabelUpdates = selectLabelUpdateInterval(userIdLoggedIn, chartTimeStart);
-
-
-        // Prepare list to be sorted by time index
-        List<Object> combinedListForSorting = prepareObjectListForSorting(chartTimeStart, bucketSizeMillis, gmailLabelUpdates);
-        sortCombinedList(combinedListForSorting);
-
-        List<GmailLabelUpdate> lastGmailLabelUpdatePerBucket = filterLastLabelUpdatesFromSortedListBuckets(combinedListForSorting);
-
-        return lastGmailLabelUpdatePerBucket;
+        return rollupStore.getHistoryChanges(userIdLoggedIn, rollupResolution, dataStartTime);
     }
 
-    private List<GmailLabelUpdate> filterLastLabelUpdatesFromSortedListBuckets(List<Object> combinedListForSorting) {
-        GmailLabelUpdate lastUpdate = null;
-        List<GmailLabelUpdate> returnList = new ArrayList<>();
-        for (Object nextObject : combinedListForSorting) {
-            if (nextObject instanceof GmailLabelUpdate) {
-                GmailLabelUpdate labelUpdate = (GmailLabelUpdate)nextObject;
-                lastUpdate = labelUpdate;
-            } else {
-                if (lastUpdate != null) {
-                    returnList.add(lastUpdate);
-                    lastUpdate = null;
-                }
-            }
+    // Same as below, but the last counts per chart bucket are picked from the last counts per rollup bucket
+    // The rollup resolution must not be larger than the chart bucket size, see RollupStore.selectResolution
+    public List<LabelCountRow> getMessageAndUnreadCountClose(int userIdLoggedIn, long chartTimeStart, long rollupResolution) throws SQLException {
+        if (rollupResolution == RollupStore.RESOLUTION_NONE) {
+            return getMessageAndUnreadCountClose(userIdLoggedIn, chartTimeStart);
         }
 
-        if (lastUpdate != null) {
-            returnList.add(lastUpdate);
+        boolean userExists = userService.userExistsWithId(userIdLoggedIn);
+        if (userExists == false) {
+            log.info("Warning, logged-in user was not found, userId: " + userIdLoggedIn);
+            return new ArrayList<>();
         }
-        return returnList;
-    }
 
-    private List<Object> prepareObjectListForSorting(long chartTimeStart, long bucketSizeMillis, List<GmailLabelUpdate> gmailLabelUpdates) {
-        List<Object> combinedListForSorting = new ArrayList<>();
-        combinedListForSorting.addAll(gmailLabelUpdates);
-        for (long bucketStart = chartTimeStart; bucketStart <= System.currentTimeMillis(); bucketStart += bucketSizeMillis) {
-            combinedListForSorting.add(bucketStart); // Add this time index as Long
+        long bucketSizeMillis = calculateBucketSizeFromStartTime(chartTimeStart);
+        LastLabelCountPerBucket lastGmailLabelUpdatePerBucket = new LastLabelCountPerBucket(chartTimeStart, bucketSizeMillis, System.currentTimeMillis());
+        for (LabelCountRow rollupRow : rollupStore.getLastLabelCounts(userIdLoggedIn, rollupResolution, chartTimeStart)) {
+            lastGmailLabelUpdatePerBucket.offer(rollupRow.getUpdateTimeMillis(), rollupRow.getMessagesTotal(), rollupRow.getMessagesUnread());
         }
-        return combinedListForSorting;
-    }
 
-    private List<Object> sortCombinedList(List<Object> combinedListForSorting) {
-
-        Comparator<Object> complexComparator = new Comparator<Object>() {
-            @Override
-            public int compare(Object o1, Object o2) {
-                if (o1 == null || o2 == null) {
-                    throw new RuntimeException("Unexpected:  One or more sort objects was null");
-                }
-
-                long timeIndex1 = getTimeIndex(o1);
-                long timeIndex2 = getTimeIndex(o2);
-
-                if (o1.getClass().equals(o2.getClass())) {
-                    if (timeIndex1 == timeIndex2) {
-
-                        // Unclear if this should ever happen in the case of GmailLabelUpdate
-                        log.warn("Two data items of type: " + o1.getClass() + " have the same time index: " + timeIndex1);
-                    }
-
-                    int compareResult = Long.compare(timeIndex1, timeIndex2);
-                    return compareResult;
-                }
+        return lastGmailLabelUpdatePerBucket.finish();
+    }
 
-                // Classes not equal
-                if (timeIndex1 == timeIndex2) {
-                    // Do this trick where Long's (Closing the old bucket) always get sorted before label updates
-                    if (o1 instanceof Long) {
-                        // Assumes (Long)o1 (GmailLabelUpdate)o2
-                        return -1; // o1 comes first
-                    } else {
-                        // Assumes (GmailLabelUpdate)o1 (Long)o2
-                        return 1;
-                    }
-                }
+    // Select label updates (total/unread message counts) starting a certain number of days ago
+    // Since observations may not be at regular intervals, group by 'time buckets' and present the average from each bucket
+    public List<LabelCountRow> getMessageAndUnreadCountClose(int userIdLoggedIn, long chartTimeStart) throws SQLException {
+        boolean userExists = userService.userExistsWithId(userIdLoggedIn);
+        if (userExists == false) {
+            log.info("Warning, logged-in user was not found, userId: " + userIdLoggedIn);
+            return new ArrayList<>();
+        }
 
-                // Classes and time-stamps not equal
-                int compareResult = Long.compare(timeIndex1, timeIndex2);
-                return compareResult;
-            }
+        long bucketSizeMillis = calculateBucketSizeFromStartTime(chartTimeStart);
+        LastLabelCountPerBucket lastGmailLabelUpdatePerBucket = new LastLabelCountPerBucket(chartTimeStart, bucketSizeMillis, System.currentTimeMillis());
 
-            private long getTimeIndex(Object input) {
-                if (input instanceof Long) {
-                    Long longAsBoxedObject = (Long) input;
-                    return longAsBoxedObject.longValue();
-                } else if (input instanceof GmailLabelUpdate) {
-                    GmailLabelUpdate gmailLabelUpdate = (GmailLabelUpdate) input;
-                    return gmailLabelUpdate.getUpdateTimeMillis();
-                } else {
-                    throw new RuntimeException("Object of unexpected type: " + input.getClass().getName());
-                }
+        // Rows are ordered by time, so only the latest row is held while streaming through the results
+        GenericRawResults<String[]> rawResults = selectLabelUpdateInterval(userIdLoggedIn, chartTimeStart);
+        try {
+            for (String[] row : rawResults) {
+                lastGmailLabelUpdatePerBucket.offer(Long.parseLong(row[0]), Integer.parseInt(row[1]), Integer.parseInt(row[2]));
             }
-        };
+        } finally {
+            closeQuietly(rawResults);
+        }
 
-        Collections.sort(combinedListForSorting, complexComparator);
-        return combinedListForSorting;
+        return lastGmailLabelUpdatePerBucket.finish();
     }
 
-    private List<GmailLabelUpdate> selectLabelUpdateInterval(int userIdLoggedIn, long chartTimeStart) throws SQLException {
+    // Columns are those of LabelCountRow, ordered by time
+    private GenericRawResults<String[]> selectLabelUpdateInterval(int userIdLoggedIn, long chartTimeStart) throws SQLException {
         QueryBuilder<GmailLabelUpdate, String> gmailLabelUpdateStringQueryBuilder = labelDao.queryBuilder();
-        // Select *
+        // Select time and counts only
+        gmailLabelUpdateStringQueryBuilder.selectRaw(LabelCountRow.SELECT_COLUMNS);
         // Where
         gmailLabelUpdateStringQueryBuilder.where()
                 .eq(GmailLabelUpdate.FIELD_USER_ID, userIdLoggedIn)
@@ -467,8 +672,15 @@ public class GmailDataService {
         // Order by
         gmailLabelUpdateStringQueryBuilder.orderBy(GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS, true);
 
-        List<GmailLabelUpdate> results = gmailLabelUpdateStringQueryBuilder.query();
-        return results;
+        return labelDao.queryRaw(gmailLabelUpdateStringQueryBuilder.prepareStatementString());
+    }
+
+    private static void closeQuietly(GenericRawResults<?> rawResults) {
+        try {
+            rawResults.close();
+        } catch (Exception e) {
+            log.warn("Could not close query results: " + e.getMessage());
+        }
     }
 
 
@@ -521,7 +733,7 @@ public class GmailDataService {
     }
 
 
-    private long calculateBucketSizeFromStartTime(long chartTimeStart) {
+    public static long calculateBucketSizeFromStartTime(long chartTimeStart) {
         long bucketSizeUsingChartTime = (System.currentTimeMillis() - chartTimeStart) / 60;
 
         // If chartTimeStart is very close to current time, this can lead to suggesting a ridiculous number of buckets
@@ -541,22 +753,34 @@ public class GmailDataService {
         gmailLabelUpdate.setThreadsUnread(labelFromApi.getThreadsUnread());
         gmailLabelUpdate.setUpdateTimeMillis(updateTime);
 
-        labelDao.create(gmailLabelUpdate);
+        TransactionManager.callInTransaction(daoOwner.getConnectionSource(), () -> {
+            labelDao.create(gmailLabelUpdate);
+            rollupStore.recordLabelUpdate(user.getId(), updateTime, gmailLabelUpdate.getMessagesTotal(), gmailLabelUpdate.getMessagesUnread());
+            return null;
+        });
+        dataVersionService.dataChanged(user.getId());
         return gmailLabelUpdate;
     }
 
-    public List<GmailMessage> getMessagesAfterHistoryId(User user, String hint) throws SQLException {
+    // History ids of the user's messages at or after the hint, ascending.  Only the one column is read
+    public long[] getMessageHistoryIdsFrom(User user, String hint) throws SQLException {
         QueryBuilder<GmailMessage, String> qb = messageDao.queryBuilder();
-        Where<GmailMessage, String> whereInProgress = qb.where().eq(GmailMessage.FIELD_USER_ID, user.getId());
+        qb.selectRaw("`" + GmailMessage.FIELD_HISTORY_ID + "`");
+        Where<GmailMessage, String> whereInProgress = qb.where().eq(GmailMessage.FIELD_USER_ID, user.getId())
+                .and().isNotNull(GmailMessage.FIELD_HISTORY_ID); // Field was added later
         if (hint != null) {  // This part is added conditionally
-            whereInProgress.and().ge(GmailMessage.FIELD_HISTORY_ID, hint);
+            whereInProgress.and().ge(GmailMessage.FIELD_HISTORY_ID, Long.valueOf(hint));
         }
 
         // Previously this was sorted by FIELD_INTERNAL_DATE but that is probably not the most correct choice
-        qb.orderBy(GmailMessage.FIELD_HISTORY_ID, true); // Field was added later
+        qb.orderBy(GmailMessage.FIELD_HISTORY_ID, true);
 
-        final GenericRawResults<GmailMessage> matchingMessagesResultsContainer = messageDao.queryRaw(qb.prepareStatementString(), messageDao.getRawRowMapper());
-        return matchingMessagesResultsContainer.getResults();
+        List<String[]> rows = messageDao.queryRaw(qb.prepareStatementString()).getResults();
+        long[] historyIds = new long[rows.size()];
+        for (int i = 0; i < historyIds.length; i++) {
+            historyIds[i] = Long.parseLong(rows.get(i)[0]);
+        }
+        return historyIds;
     }
 
     // Return the latest history ID we have not filled in the details for,
@@ -593,6 +817,7 @@ public class GmailDataService {
         User userWithGoogleUserId = userService.getUserWithGoogleUserId(googleUserId);
 
         QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder();
+        qb.selectColumns(HistoryEvent.FIELD_ID, HistoryEvent.FIELD_HISTORY_ID);
 
         qb.where().eq(HistoryEvent.FIELD_USER_ID, userWithGoogleUserId.getId())
                 .and().not().eq(HistoryEvent.FIELD_JSON, "");
@@ -613,16 +838,37 @@ public class GmailDataService {
         return lastHistoryId;
     }
 
-    public List<GmailMessage> getMessagesWithoutDetails() throws SQLException {
+    // One page of this user's messages that still need details, in id order after the given id
+    // Messages the API refused too often are left out, so they are not retried forever
+    public List<GmailMessage> getMessagesWithoutDetails(int userId, int afterId, long pageSize, int maximumFailures) throws SQLException {
         QueryBuilder<GmailMessage, String> qb = messageDao.queryBuilder();
-        qb.where().isNull(GmailMessage.FIELD_HEADER_FROM)
-                .or().isNull(GmailMessage.FIELD_INTERNAL_DATE)
-                .or().isNull(GmailMessage.FIELD_HISTORY_ID); // Field was added later
+        // Clauses are combined by count from the top of the where stack, the varargs forms of and/or would create generic arrays
+        Where<GmailMessage, String> where = qb.where();
+        where.eq(GmailMessage.FIELD_USER_ID, userId);
+        where.gt(GmailMessage.FIELD_ID, afterId);
+        where.lt(GmailMessage.FIELD_DETAIL_FAILURES, maximumFailures);
+        where.isNull(GmailMessage.FIELD_HEADER_FROM);
+        where.isNull(GmailMessage.FIELD_INTERNAL_DATE);
+        where.isNull(GmailMessage.FIELD_HISTORY_ID); // Field was added later
+        where.or(3); // Any detail missing
+        where.and(4);
+        qb.orderBy(GmailMessage.FIELD_ID, true);
+        qb.limit(pageSize);
 
         List<GmailMessage> results = qb.query();
         return results;
     }
 
+    public int recordMessageDetailFailures(List<GmailMessage> messagesFailed) throws SQLException {
+        String incrementFailuresSql = "UPDATE `" + Schema.TABLE_GMAIL_MESSAGES + "` SET `" + GmailMessage.FIELD_DETAIL_FAILURES + "` = `"
+                + GmailMessage.FIELD_DETAIL_FAILURES + "` + 1 WHERE `" + GmailMessage.FIELD_ID + "` = ?";
+        BatchWrite batchWrite = new BatchWrite();
+        for (GmailMessage messageFailed : messagesFailed) {
+            batchWrite.addRow(incrementFailuresSql, messageFailed.getId());
+        }
+        return batchWrite.execute(daoOwner.getConnectionSource());
+    }
+
     public long getFirstUsableDataForUser(Integer userIdLoggedIn) throws SQLException {
         int expectedResults = 2;
 
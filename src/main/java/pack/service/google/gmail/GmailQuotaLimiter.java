@@ -0,0 +1,212 @@
+package pack.service.google.gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.ApplicationConfiguration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Paces all Gmail API calls by quota units, per user and for the whole project, and retries calls refused for rate or server reasons
+// Each user's rate is halved when Gmail reports a rate limit and recovers gradually as calls succeed
+// https://developers.google.com/gmail/api/v1/reference/quota
+@Component
+public class GmailQuotaLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    // Quota units per method
+    public static final int COST__MESSAGES_GET = 5;
+    public static final int COST__MESSAGES_LIST = 5;
+    public static final int COST__HISTORY_LIST = 2;
+    public static final int COST__LABELS_GET = 1;
+    public static final int COST__LABELS_LIST = 1;
+    public static final int COST__GET_PROFILE = 1;
+
+    @Autowired private ApplicationConfiguration applicationConfiguration;
+
+    private final Map<String, TokenBucket> bucketsByUser = new ConcurrentHashMap<>();
+    private volatile TokenBucket projectBucket;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong unitsSpent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rateLimitedResponses = new AtomicLong();
+    private final AtomicLong pacingWaitMillis = new AtomicLong();
+
+    public interface ApiCall<T> {
+        T execute() throws IOException;
+    }
+
+    // Runs the call once quota allows, retrying with exponential backoff and jitter while Gmail reports a rate limit or server error
+    // googleUserId may be null for calls made before the user is known, these only count against the project
+    public <T> T execute(String googleUserId, int quotaUnits, ApiCall<T> apiCall) throws IOException {
+        int maximumAttempts = getMaximumAttempts();
+        for (int attempt = 1; ; attempt++) {
+            acquire(googleUserId, quotaUnits);
+            try {
+                T result = apiCall.execute();
+                onSuccess(googleUserId);
+                return result;
+
+            } catch (GoogleJsonResponseException e) {
+                if (isRateLimited(e.getStatusCode(), e.getDetails())) {
+                    onRateLimited(googleUserId);
+                } else if (isServerError(e.getStatusCode()) == false) {
+                    throw e; // e.g. 404 for an expired history id, callers handle these
+                }
+                if (attempt >= maximumAttempts) {
+                    log.warn("Giving up on Gmail API call for " + googleUserId + " after " + attempt + " attempts, status " + e.getStatusCode());
+                    throw e;
+                }
+
+                log.info("Gmail API call for " + googleUserId + " returned " + e.getStatusCode() + ", retrying (attempt " + attempt + " of " + maximumAttempts + ")");
+                backOff(googleUserId, attempt);
+            }
+        }
+    }
+
+    public int getMaximumAttempts() {
+        return Math.max(1, applicationConfiguration.gmailRetryMaximumAttempts);
+    }
+
+    // Waits before the next attempt of a call that failed, for callers that retry themselves (e.g. batch requests)
+    public void backOff(String googleUserId, int attempt) throws InterruptedIOException {
+        long backoffMillis = backoffMillis(attempt);
+        retries.incrementAndGet();
+        log.debug("Backing off " + backoffMillis + "ms before attempt " + (attempt + 1) + " for " + googleUserId);
+        sleep(TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+    }
+
+    // Waits until the quota units may be spent, for calls that are not made through execute (e.g. batch requests)
+    public void acquire(String googleUserId, int quotaUnits) throws InterruptedIOException {
+        long now = System.nanoTime();
+        long waitNanos = getProjectBucket().reserve(quotaUnits, now);
+        if (googleUserId != null) {
+            waitNanos = Math.max(waitNanos, getUserBucket(googleUserId).reserve(quotaUnits, now));
+        }
+
+        calls.incrementAndGet();
+        unitsSpent.addAndGet(quotaUnits);
+        if (waitNanos > 0) {
+            pacingWaitMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            sleep(waitNanos);
+        }
+    }
+
+    public void onSuccess(String googleUserId) {
+        if (googleUserId != null) {
+            getUserBucket(googleUserId).recover();
+        }
+    }
+
+    public void onRateLimited(String googleUserId) {
+        rateLimitedResponses.incrementAndGet();
+        if (googleUserId != null) {
+            double newRate = getUserBucket(googleUserId).slowDown(System.nanoTime());
+            log.info("Gmail rate limit reached for " + googleUserId + ", pacing at " + Math.round(newRate) + " units/s");
+        }
+    }
+
+    public static boolean isRateLimited(int statusCode, GoogleJsonError error) {
+        if (statusCode == 429) {
+            return true;
+        }
+        if (statusCode == 403 && error != null && error.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo errorInfo : error.getErrors()) {
+                if ("rateLimitExceeded".equals(errorInfo.getReason()) || "userRateLimitExceeded".equals(errorInfo.getReason())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean isServerError(int statusCode) {
+        return statusCode == 500 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    // Exponentially growing cap, waiting a random amount between half the cap and the cap so that retrying callers spread out
+    private long backoffMillis(int attempt) {
+        long cap = Math.min(applicationConfiguration.gmailRetryMaximumBackoffMillis,
+                applicationConfiguration.gmailRetryInitialBackoffMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    public String describeStatistics() {
+        return "Gmail quota: " + calls.get() + " calls, " + unitsSpent.get() + " units, " + retries.get() + " retries, "
+                + rateLimitedResponses.get() + " rate limited, " + pacingWaitMillis.get() + "ms spent pacing";
+    }
+
+    private TokenBucket getProjectBucket() {
+        if (projectBucket == null) {
+            synchronized (this) {
+                if (projectBucket == null) {
+                    projectBucket = new TokenBucket(applicationConfiguration.gmailQuotaProjectUnitsPerSecond, System.nanoTime());
+                }
+            }
+        }
+        return projectBucket;
+    }
+
+    private TokenBucket getUserBucket(String googleUserId) {
+        return bucketsByUser.computeIfAbsent(googleUserId, id -> new TokenBucket(applicationConfiguration.gmailQuotaUserUnitsPerSecond, System.nanoTime()));
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Gmail API quota");
+        }
+    }
+
+    // Holds up to one second of units, reservations may take it below zero and the caller waits until it would have refilled
+    static class TokenBucket {
+        private final double configuredRate;
+        private double rate;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TokenBucket(double unitsPerSecond, long now) {
+            this.configuredRate = Math.max(1, unitsPerSecond);
+            this.rate = configuredRate;
+            this.tokens = configuredRate;
+            this.lastRefillNanos = now;
+        }
+
+        // Returns the nanoseconds to wait before the units may be spent
+        synchronized long reserve(int units, long now) {
+            refill(now);
+            tokens -= units;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        // Halves the rate (down to a sixteenth of the configured rate) and discards any saved-up burst
+        synchronized double slowDown(long now) {
+            refill(now);
+            rate = Math.max(configuredRate / 16, rate / 2);
+            tokens = Math.min(tokens, 0);
+            return rate;
+        }
+
+        synchronized void recover() {
+            rate = Math.min(configuredRate, rate + configuredRate / 20);
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(rate, tokens + (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+        }
+    }
+}
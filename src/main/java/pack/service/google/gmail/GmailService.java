@@ -1,13 +1,12 @@
 package pack.service.google.gmail;
 
-import com.google.api.services.gmail.model.History;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.Message;
-import com.google.api.services.gmail.model.MessagePartHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import pack.ApplicationConfiguration;
 import pack.persist.data.GmailLabelUpdate;
 import pack.persist.data.GmailMessage;
 import pack.persist.data.User;
@@ -26,9 +25,12 @@ public class GmailService {
 
 
 
+    @Autowired private ApplicationConfiguration applicationConfiguration;
     @Autowired private GmailApiService gmailApiService;
     @Autowired private GmailDataService gmailDataService;
     @Autowired private UserService userService;
+    @Autowired private MessageDetailHydrator messageDetailHydrator;
+    @Autowired private HistoryCursorService historyCursorService;
 
     public void resyncInboxAllMessages(User user) throws IOException, SQLException, InterruptedException {
 
@@ -45,7 +47,7 @@ public class GmailService {
         // ---------- Persist new or update existing messages that were fetched
         GmailDataService.MessagesMergeResults messagesMergeResults = gmailDataService.mergeNewOrUpdatedMessages(user, inboxMessages);
 
-        retrieveMessageDetailsForUser(user.getGoogleUserId()); // "Fill in" missing extra info on messages using api
+        retrieveMessageDetailsForUser(user); // "Fill in" missing extra info on messages using api
     }
 
     public void resyncInboxNewMessagesUpTo(User user, Integer softMaximum) throws IOException, SQLException {
@@ -53,37 +55,42 @@ public class GmailService {
         GmailLabelUpdate gmailLabelUpdate = retrieveLabelSummaryForUser(user);
 
         // ---------- Get messages one page at a time until we don't see new messages
-        StatefulMessagePageFetcher pageFetcher = gmailApiService.getMessagePageFetcherForLabel(user.getGoogleUserId(), "INBOX", softMaximum);
+        MessagePageFetcher pageFetcher = gmailApiService.getMessagePageFetcherForLabel(user.getGoogleUserId(), "INBOX", softMaximum);
         int totalMessagesFetched = 0;
-        while (true) {
-            List<Message> nextPageMessages = pageFetcher.getNextPage();
-            if (nextPageMessages == null) {
-                break;
-            }
-
-            int nextPageSize = nextPageMessages.size();
-            totalMessagesFetched += nextPageSize;
-
-            // ---------- Record historyId of latest message
-            updateGmailLabelUpdateWithLatestHistoryId(user.getGoogleUserId(), gmailLabelUpdate, nextPageMessages);
-
-            // ---------- Persist new or update existing messages that were fetched
-            GmailDataService.MessagesMergeResults mergeResults = gmailDataService.mergeNewOrUpdatedMessages(user, nextPageMessages);
+        try {
+            while (true) {
+                List<Message> nextPageMessages = pageFetcher.getNextPage();
+                if (nextPageMessages == null) {
+                    break;
+                }
 
-            // ---------- Determine whether to stop fetching new pages
-            // Soft maximum now handled by page fetcher, but stop fetching new pages from API if we're past the point of seeing new messages
-            // Either catching up on an old user, or something is wrong and we overran when monitoring was started
-            boolean tooManyMessagesFetched = totalMessagesFetched > 170;
-            // The latest page has many messages we've seen before
-            boolean tooManyNotNewMessages = (nextPageSize / 3) <  mergeResults.getExistingModified() + mergeResults.getExistingUnchanged();
-            if (tooManyMessagesFetched || tooManyNotNewMessages) {
-                log.info("Stopping fetch of new pages, reason - tooManyMessagesFetched " + tooManyMessagesFetched + ", tooManyNotNewMessages:" + tooManyNotNewMessages);
-                break;
+                int nextPageSize = nextPageMessages.size();
+                totalMessagesFetched += nextPageSize;
+
+                // ---------- Record historyId of latest message
+                updateGmailLabelUpdateWithLatestHistoryId(user.getGoogleUserId(), gmailLabelUpdate, nextPageMessages);
+
+                // ---------- Persist new or update existing messages that were fetched
+                GmailDataService.MessagesMergeResults mergeResults = gmailDataService.mergeNewOrUpdatedMessages(user, nextPageMessages);
+
+                // ---------- Determine whether to stop fetching new pages
+                // Soft maximum now handled by page fetcher, but stop fetching new pages from API if we're past the point of seeing new messages
+                // Either catching up on an old user, or something is wrong and we overran when monitoring was started
+                // A little under two full pages, as 170 was at the API's default page size of 100
+                boolean tooManyMessagesFetched = totalMessagesFetched > applicationConfiguration.gmailMessagePageSize * 17 / 10;
+                // The latest page has many messages we've seen before
+                boolean tooManyNotNewMessages = (nextPageSize / 3) <  mergeResults.getExistingModified() + mergeResults.getExistingUnchanged();
+                if (tooManyMessagesFetched || tooManyNotNewMessages) {
+                    log.info("Stopping fetch of new pages, reason - tooManyMessagesFetched " + tooManyMessagesFetched + ", tooManyNotNewMessages:" + tooManyNotNewMessages);
+                    break;
+                }
             }
+        } finally {
+            pageFetcher.close(); // Stops fetching pages ahead when the loop stopped early
         }
 
         System.out.format("Updated label info with last history Id: %s total messages: %s%n", gmailLabelUpdate.getLastHistoryId(), gmailLabelUpdate.getMessagesTotal());
-        retrieveMessageDetailsForUser(user.getGoogleUserId()); // "Fill in" missing extra info on messages using api
+        retrieveMessageDetailsForUser(user); // "Fill in" missing extra info on messages using api
     }
 
     public List<Label> getAllLabelsFromGmail(String googleUserId) throws IOException {
@@ -127,13 +134,37 @@ public class GmailService {
         return largestHistoryId;
     }
 
-    public void updateHistoryStartingWith(int userId, Long historyId) throws IOException, SQLException {
+    // With applyToMessages, message additions and deletions in history are also applied to the persisted inbox messages
+    // Returns the largest history id seen (the starting id if nothing changed since), or null if history from this id has expired
+    public Long updateHistoryStartingWith(int userId, Long historyId, boolean applyToMessages) throws IOException, SQLException {
         User user = userService.getUserWithId(userId);
-        final List<History> newHistoryEventsFromApi = gmailApiService.getMessageHistoryFrom(user.getGoogleUserId(), historyId);
-        if (newHistoryEventsFromApi.isEmpty()) {
-            return;
+        long[] largestHistoryId = {historyId};
+        // Each page is saved in its own transaction as it arrives (with its message changes), the largest history id saved is where the next catch-up starts
+        // If interrupted, at most the page being saved is lost
+        int historiesReceived = gmailApiService.forEachHistoryPageFrom(user.getGoogleUserId(), historyId, historyPage -> {
+            gmailDataService.persistAndUpdateHistoryData(userId, historyPage, applyToMessages); // Save raw history events to DB
+            largestHistoryId[0] = Math.max(largestHistoryId[0], GmailDataService.findLargestHistoryId(historyPage).longValue());
+            log.info("Saved page of " + historyPage.size() + " history events for user " + userId + ", through history id: " + historyPage.get(historyPage.size() - 1).getId());
+        });
+
+        if (historiesReceived == GmailApiService.HISTORY_EXPIRED) {
+            log.info("History for user " + user.getGoogleUserId() + " has expired at history id " + historyId);
+            return null;
+        }
+        return largestHistoryId[0];
+    }
+
+    // Brings the inbox up to date from history already applied by updateHistoryStartingWith, without scanning inbox pages
+    // Only the label summary is fetched from the API, plus details of any new messages
+    public void resyncInboxFromHistory(User user, long latestHistoryId) throws IOException, SQLException {
+        GmailLabelUpdate gmailLabelUpdate = retrieveLabelSummaryForUser(user);
+        if (gmailLabelUpdate.getLastHistoryId() < latestHistoryId) {
+            gmailLabelUpdate.setLastHistoryId(latestHistoryId);
+            gmailDataService.updateGmailLabel(gmailLabelUpdate);
         }
-        gmailDataService.persistAndUpdateHistoryData(userId, newHistoryEventsFromApi); // Save raw history events to DB
+
+        log.info("Updated label info from history with last history Id: " + gmailLabelUpdate.getLastHistoryId() + " total messages: " + gmailLabelUpdate.getMessagesTotal());
+        retrieveMessageDetailsForUser(user); // "Fill in" missing extra info on messages using api
     }
 
     // Use the gmail API to populate a new GmailLabelUpdate object with current data, then persist it
@@ -148,112 +179,33 @@ public class GmailService {
 
 
     public Long findNextValidHistoryId(User user, String historyIdHint) throws SQLException, IOException {
-        final List<GmailMessage> matchingMessagesResults = gmailDataService.getMessagesAfterHistoryId(user, historyIdHint);
-
-        if (historyIdHint != null && matchingMessagesResults.size() == 0) {
-            // We don't have any messages after this history ID that were not already examined
-            log.info("No history ID's that haven't been examined after " + historyIdHint);
-            return Long.valueOf(historyIdHint);
-        }
-
-        log.info("Found " + matchingMessagesResults.size() + " messages with greater history ID");
-
-        int lower = 0;
-        int upper = matchingMessagesResults.size()-1;
-
-        while (lower != upper) {
-            final Long lowerHistoryId = matchingMessagesResults.get(lower).getHistoryId();
-            final Long upperHistoryId = matchingMessagesResults.get(upper).getHistoryId();
-            // log.info("Looking for matching history id between " + lower + "(" + lowerHistoryId + ") and " + upper + "(" + upperHistoryId + ")");
-
-            int test = (lower + upper) / 2;
-
-            final Long testHistoryId = matchingMessagesResults.get(test).getHistoryId();
-
-            final boolean isTestHistoryIdValid = gmailApiService.isHistoryIdValid(user.getGoogleUserId(), testHistoryId + "");
-            log.debug("History id " + user.getGoogleUserId() + " valid?: " + testHistoryId);
-
-
-            if (isTestHistoryIdValid) {
-                if (upper != test) {
-                    upper = test; // reduce upper
-                } else {
-                    upper--; // upper == test both valid so decrement
-                }
-
-            } else {
-                if (lower != test) {
-                    lower = test; // increase lower
-                } else {
-                    lower++; // lower == test both invalid so increment
-                }
-            }
-        }
-
-        Long returnHistoryId = matchingMessagesResults.get(lower).getHistoryId();
-        String resultMessage = "Found valid history id "
-                + "index:" + lower
-                + " out of " + matchingMessagesResults.size()
-                + " value: " + returnHistoryId + "";
-        if (historyIdHint != null) {
-            resultMessage += " hint was: " + historyIdHint;
-        }
-        log.info(resultMessage);
-
-        return returnHistoryId;
+        return historyCursorService.findNextValidHistoryId(user, historyIdHint);
     }
 
     // Fetch and populate message details
     // Gets extra information from message Id (i.e. header information)
-    private void retrieveMessageDetailsForUser(String googleUserId) throws SQLException, IOException {
-        List<GmailMessage> messagesWithoutDetails = gmailDataService.getMessagesWithoutDetails();
-
-        // As an alternative, this code will update all messages
-        // final List<GmailMessage> messagesWithoutDetails = messageDao.queryForAll();
-
-        log.info("Found " + messagesWithoutDetails.size() + " messages without From header data");
-
+    // Works through this user's backlog a page at a time, up to a budget per run, the rest is picked up by later runs
+    private void retrieveMessageDetailsForUser(User user) throws SQLException, IOException {
+        long budget = applicationConfiguration.gmailDetailBudgetPerRun;
+        int afterId = 0;
+        int messagesFound = 0;
         int messagesUpdated = 0;
-        for (GmailMessage nextMessageToPopulate : messagesWithoutDetails) {
-            final String nextMessageId = nextMessageToPopulate.getMessageId();
-            final Message latestPopulatedMessageFromApi = gmailApiService.getMessageDetailsById(googleUserId, nextMessageId);
 
-            final BigInteger historyIdFromApi = latestPopulatedMessageFromApi.getHistoryId();
-            if (historyIdFromApi != null) {
-                nextMessageToPopulate.setHistoryId(historyIdFromApi.longValue());
-            } else {
-                log.info("Message from API has no historyId value");
-            }
-
-            // Set InternalDate on DB Entity
-            final Long internalDateFromApi = latestPopulatedMessageFromApi.getInternalDate();
-            if (internalDateFromApi != null) {
-                nextMessageToPopulate.setInternalDate(internalDateFromApi);
-            } else {
-                log.info("Message from API has no InternalDate value");
-            }
-
-
-            // Set "From" header value on DB Entity
-            String fromHeaderValue = null;
-            final List<MessagePartHeader> messageHeaders = latestPopulatedMessageFromApi.getPayload().getHeaders();
-            for (MessagePartHeader header : messageHeaders) {
-                if (header.getName().equals("From")) {
-                    fromHeaderValue = header.getValue();
-                }
-            }
-
-            if (fromHeaderValue == null) {
-                log.info("Could not find 'From' header for messageId: " + nextMessageId);
-            } else {
-                nextMessageToPopulate.setHeaderFrom(fromHeaderValue);
+        while (budget > 0) {
+            long pageSize = Math.min(applicationConfiguration.gmailDetailPageSize, budget);
+            List<GmailMessage> messagesWithoutDetails = gmailDataService.getMessagesWithoutDetails(user.getId(), afterId, pageSize, applicationConfiguration.gmailDetailMaximumFailures);
+            if (messagesWithoutDetails.isEmpty()) {
+                break;
             }
 
-            gmailDataService.updateGmailMessage(nextMessageToPopulate); // Assumes there was some change...
-            messagesUpdated++;
+            messagesFound += messagesWithoutDetails.size();
+            messagesUpdated += messageDetailHydrator.hydrate(user.getGoogleUserId(), messagesWithoutDetails);
+            afterId = messagesWithoutDetails.get(messagesWithoutDetails.size() - 1).getId(); // Failed messages are not visited again in this run
+            budget -= messagesWithoutDetails.size();
         }
 
+        log.info("Found " + messagesFound + " messages without From header data for user " + user.getGoogleUserId()
+                + (budget <= 0 ? " (budget of " + applicationConfiguration.gmailDetailBudgetPerRun + " reached, continuing next run)" : ""));
         log.info("Message Details were updated for " + messagesUpdated + " messages");
-        return;
     }
 }
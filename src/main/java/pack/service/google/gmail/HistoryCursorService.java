@@ -0,0 +1,142 @@
+package pack.service.google.gmail;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.persist.data.User;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds the first history id (from the history ids of persisted messages) that the Gmail API still accepts as a starting point
+// Gmail only keeps history for a limited time, so older ids are invalid and newer ids are valid
+// The usual case costs one API call: the first candidate is probed, only if it has expired are further candidates searched
+@Component
+public class HistoryCursorService {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    @Autowired private GmailApiService gmailApiService;
+    @Autowired private GmailDataService gmailDataService;
+
+    private final Map<Integer, Long> lastValidHistoryIdByUser = new ConcurrentHashMap<>();
+
+    public Long findNextValidHistoryId(User user, String historyIdHint) throws SQLException, IOException {
+        long[] candidateHistoryIds = gmailDataService.getMessageHistoryIdsFrom(user, historyIdHint);
+
+        if (historyIdHint != null && candidateHistoryIds.length == 0) {
+            // We don't have any messages after this history ID that were not already examined
+            log.info("No history ID's that haven't been examined after " + historyIdHint);
+            return Long.valueOf(historyIdHint);
+        }
+        if (candidateHistoryIds.length == 0) {
+            log.info("No messages with a history ID for user: " + user.getGoogleUserId());
+            return null;
+        }
+
+        HistoryIdProbe probe = new HistoryIdProbe(user.getGoogleUserId());
+        int index = findFirstValidIndex(candidateHistoryIds, probe, lastValidHistoryIdByUser.get(user.getId()));
+
+        Long returnHistoryId = candidateHistoryIds[index];
+        if (probe.isValid(returnHistoryId)) {
+            lastValidHistoryIdByUser.put(user.getId(), returnHistoryId);
+        }
+
+        String resultMessage = "Found valid history id "
+                + "index:" + index
+                + " out of " + candidateHistoryIds.length
+                + " value: " + returnHistoryId
+                + " using " + probe.apiCalls + " API calls";
+        if (historyIdHint != null) {
+            resultMessage += " hint was: " + historyIdHint;
+        }
+        log.info(resultMessage);
+
+        return returnHistoryId;
+    }
+
+    // Index of the first valid candidate, or the last index if none are valid
+    static int findFirstValidIndex(long[] candidateHistoryIds, HistoryIdProbe probe, Long lastValidHistoryId) throws IOException {
+        int last = candidateHistoryIds.length - 1;
+        if (probe.isValid(candidateHistoryIds[0])) {
+            return 0;
+        }
+
+        // Gallop forward from the first (invalid) candidate until a valid one is found
+        // The id that was valid last time is likely still valid, so try it first
+        int invalid = 0;
+        int step = 1;
+        int next = 1;
+        if (lastValidHistoryId != null) {
+            int lastValidIndex = indexOfFirstAtLeast(candidateHistoryIds, lastValidHistoryId);
+            if (lastValidIndex > 0 && lastValidIndex <= last) {
+                next = lastValidIndex;
+            }
+        }
+
+        while (true) {
+            next = Math.min(next, last);
+            if (probe.isValid(candidateHistoryIds[next])) {
+                break;
+            }
+            invalid = next;
+            if (next == last) {
+                return last; // Nothing valid, as before the search settles on the last candidate
+            }
+            next = invalid + step;
+            step *= 2;
+        }
+
+        // Binary search between the last invalid and the first known valid candidate
+        int valid = next;
+        while (valid - invalid > 1) {
+            int test = (invalid + valid) >>> 1;
+            if (probe.isValid(candidateHistoryIds[test])) {
+                valid = test;
+            } else {
+                invalid = test;
+            }
+        }
+        return valid;
+    }
+
+    private static int indexOfFirstAtLeast(long[] sortedValues, long value) {
+        int lower = 0;
+        int upper = sortedValues.length;
+        while (lower < upper) {
+            int middle = (lower + upper) >>> 1;
+            if (sortedValues[middle] < value) {
+                lower = middle + 1;
+            } else {
+                upper = middle;
+            }
+        }
+        return lower;
+    }
+
+    // Calls the API at most once per history id during one search
+    class HistoryIdProbe {
+        private final String googleUserId;
+        private final Map<Long, Boolean> validityByHistoryId = new HashMap<>();
+        private int apiCalls;
+
+        HistoryIdProbe(String googleUserId) {
+            this.googleUserId = googleUserId;
+        }
+
+        boolean isValid(long historyId) throws IOException {
+            Boolean valid = validityByHistoryId.get(historyId);
+            if (valid == null) {
+                valid = gmailApiService.isHistoryIdValid(googleUserId, historyId + "");
+                apiCalls++;
+                validityByHistoryId.put(historyId, valid);
+                log.debug("History id " + historyId + " valid for " + googleUserId + "?: " + valid);
+            }
+            return valid;
+        }
+    }
+}
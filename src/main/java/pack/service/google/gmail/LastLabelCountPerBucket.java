@@ -0,0 +1,52 @@
+package pack.service.google.gmail;
+
+import pack.persist.data.row.LabelCountRow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps the last label count observed in each time bucket, in a single pass
+// Observations must be offered in time order.  Bucket n covers [start + n*size, start + (n+1)*size),
+// observations after the last bucket boundary up to 'end' all fall in the final bucket.
+public class LastLabelCountPerBucket {
+
+    private final long bucketStart;
+    private final long bucketSizeMillis;
+    private final long lastBucketIndex;
+
+    private final List<LabelCountRow> lastPerBucket = new ArrayList<>();
+
+    private long currentBucketIndex = -1;
+    private long lastTime;
+    private int lastTotal;
+    private int lastUnread;
+
+    public LastLabelCountPerBucket(long bucketStart, long bucketSizeMillis, long bucketEnd) {
+        this.bucketStart = bucketStart;
+        this.bucketSizeMillis = bucketSizeMillis;
+        this.lastBucketIndex = Math.max(0, (bucketEnd - bucketStart) / bucketSizeMillis);
+    }
+
+    public void offer(long updateTimeMillis, int messagesTotal, int messagesUnread) {
+        long bucketIndex = Math.min(Math.max(0, (updateTimeMillis - bucketStart) / bucketSizeMillis), lastBucketIndex);
+        if (bucketIndex != currentBucketIndex) {
+            emitCurrent();
+            currentBucketIndex = bucketIndex;
+        }
+        lastTime = updateTimeMillis;
+        lastTotal = messagesTotal;
+        lastUnread = messagesUnread;
+    }
+
+    public List<LabelCountRow> finish() {
+        emitCurrent();
+        currentBucketIndex = -1;
+        return lastPerBucket;
+    }
+
+    private void emitCurrent() {
+        if (currentBucketIndex >= 0) {
+            lastPerBucket.add(new LabelCountRow(lastTime, lastTotal, lastUnread));
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package pack.service.google.gmail;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.ApplicationConfiguration;
+import pack.persist.data.GmailMessage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fetches message details (history id, internal date, 'From' header) for many messages at once
+// Message ids are grouped into Gmail batch requests, several batches are in flight at a time, paced by GmailQuotaLimiter
+// Results are written back with one batched update per Gmail batch, messages the API refused or returned without all details have their failure count raised
+// Requests that were rate limited or hit a server error are sent again in a follow-up batch, with the limiter's backoff
+@Component
+public class MessageDetailHydrator {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    private static final int MAXIMUM_BATCH_SIZE = 100; // Gmail API limit on requests per batch
+
+    @Autowired private ApplicationConfiguration applicationConfiguration;
+    @Autowired private GmailApiService gmailApiService;
+    @Autowired private GmailDataService gmailDataService;
+    @Autowired private GmailQuotaLimiter gmailQuotaLimiter;
+
+    private ExecutorService batchExecutor;
+
+    @PostConstruct
+    private void postConstruct() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        batchExecutor = Executors.newFixedThreadPool(applicationConfiguration.gmailHydrationParallelBatches,
+                runnable -> new Thread(runnable, "MessageDetailHydrator-" + threadNumber.incrementAndGet()));
+    }
+
+    @PreDestroy
+    private void preDestroy() {
+        batchExecutor.shutdownNow();
+    }
+
+    // Returns the number of messages that were updated
+    public int hydrate(String googleUserId, List<GmailMessage> messagesToHydrate) throws IOException, SQLException {
+        if (messagesToHydrate.isEmpty()) {
+            return 0;
+        }
+
+        long startNanos = System.nanoTime();
+        Gmail gmailService = gmailApiService.getGmailService(googleUserId); // Credential is loaded once for all batches
+        int batchSize = Math.max(1, Math.min(MAXIMUM_BATCH_SIZE, applicationConfiguration.gmailHydrationBatchSize));
+
+        CompletionService<BatchResult> completionService = new ExecutorCompletionService<>(batchExecutor);
+        int batchesSubmitted = 0;
+        for (int batchStart = 0; batchStart < messagesToHydrate.size(); batchStart += batchSize) {
+            List<GmailMessage> batchMessages = messagesToHydrate.subList(batchStart, Math.min(batchStart + batchSize, messagesToHydrate.size()));
+            completionService.submit(() -> executeBatch(googleUserId, gmailService, batchMessages));
+            batchesSubmitted++;
+        }
+
+        // Database writes stay on the calling thread, one batched update as each Gmail batch completes
+        int messagesUpdated = 0;
+        int messagesFailed = 0;
+        long totalBatchNanos = 0;
+        long longestBatchNanos = 0;
+        try {
+            for (int i = 0; i < batchesSubmitted; i++) {
+                BatchResult batchResult = completionService.take().get();
+                messagesUpdated += gmailDataService.updateMessageDetails(batchResult.messagesHydrated);
+                gmailDataService.recordMessageDetailFailures(batchResult.messagesRefused);
+                messagesFailed += batchResult.messagesFailed;
+                totalBatchNanos += batchResult.elapsedNanos;
+                longestBatchNanos = Math.max(longestBatchNanos, batchResult.elapsedNanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching message details", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unexpected failure fetching message details", e.getCause());
+        }
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        log.info("Message details for " + googleUserId + ": " + messagesUpdated + " updated, " + messagesFailed + " failed,"
+                + " out of " + messagesToHydrate.size() + " in " + batchesSubmitted + " batches,"
+                + " " + elapsedMillis + "ms (" + (messagesUpdated * 1000L / elapsedMillis) + " messages/s),"
+                + " batch latency avg " + TimeUnit.NANOSECONDS.toMillis(totalBatchNanos / batchesSubmitted) + "ms"
+                + " max " + TimeUnit.NANOSECONDS.toMillis(longestBatchNanos) + "ms");
+        return messagesUpdated;
+    }
+
+    // Runs on the batch executor, failures of individual messages (or the whole batch) are counted rather than thrown
+    // Temporary failures are retried in smaller follow-up batches, up to the limiter's maximum attempts
+    private BatchResult executeBatch(String googleUserId, Gmail gmailService, List<GmailMessage> batchMessages) throws IOException {
+        BatchResult batchResult = new BatchResult();
+        long batchStartNanos = System.nanoTime();
+
+        List<GmailMessage> messagesToRequest = batchMessages;
+        int maximumAttempts = gmailQuotaLimiter.getMaximumAttempts();
+        for (int attempt = 1; ; attempt++) {
+            List<GmailMessage> messagesToRetry = executeBatchAttempt(googleUserId, gmailService, messagesToRequest, batchResult);
+            if (messagesToRetry.isEmpty()) {
+                break;
+            }
+            if (attempt >= maximumAttempts) {
+                // Not held against the messages, they are requested again on a later run
+                log.warn("Giving up on " + messagesToRetry.size() + " message detail requests for " + googleUserId + " after " + attempt + " attempts");
+                batchResult.messagesFailed += messagesToRetry.size();
+                break;
+            }
+
+            log.info("Retrying " + messagesToRetry.size() + " of " + messagesToRequest.size() + " message detail requests for " + googleUserId + " (attempt " + attempt + " of " + maximumAttempts + ")");
+            gmailQuotaLimiter.backOff(googleUserId, attempt);
+            messagesToRequest = messagesToRetry;
+        }
+
+        batchResult.elapsedNanos = System.nanoTime() - batchStartNanos;
+        return batchResult;
+    }
+
+    // Sends one Gmail batch, returns the messages whose requests may succeed if sent again
+    private List<GmailMessage> executeBatchAttempt(String googleUserId, Gmail gmailService, List<GmailMessage> messagesToRequest, BatchResult batchResult) throws IOException {
+        gmailQuotaLimiter.acquire(googleUserId, messagesToRequest.size() * GmailQuotaLimiter.COST__MESSAGES_GET);
+
+        Set<GmailMessage> messagesAnswered = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<GmailMessage> messagesToRetry = new ArrayList<>();
+        boolean[] rateLimited = {false};
+        try {
+            BatchRequest batchRequest = gmailService.batch();
+            for (GmailMessage messageToHydrate : messagesToRequest) {
+                gmailService.users().messages().get("me", messageToHydrate.getMessageId())
+                        .setFormat(GmailApiService.MESSAGE_FORMAT__METADATA)
+                        .setMetadataHeaders(GmailApiService.MESSAGE_METADATA_HEADERS)
+                        .setFields(GmailApiService.MESSAGE_FIELDS)
+                        .queue(batchRequest, new JsonBatchCallback<Message>() {
+                            @Override
+                            public void onSuccess(Message message, HttpHeaders responseHeaders) {
+                                messagesAnswered.add(messageToHydrate);
+                                boolean detailsComplete = applyDetails(messageToHydrate, message);
+                                batchResult.messagesHydrated.add(messageToHydrate); // Whatever details were returned are kept
+                                if (detailsComplete == false) {
+                                    // Would be requested again on every run, so it counts towards the maximum failures like a refusal
+                                    batchResult.messagesRefused.add(messageToHydrate);
+                                    batchResult.messagesFailed++;
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                                messagesAnswered.add(messageToHydrate);
+                                if (GmailQuotaLimiter.isRateLimited(error.getCode(), error)) {
+                                    rateLimited[0] = true;
+                                    messagesToRetry.add(messageToHydrate);
+                                } else if (GmailQuotaLimiter.isServerError(error.getCode())) {
+                                    messagesToRetry.add(messageToHydrate);
+                                } else {
+                                    log.info("Could not get details for messageId: " + messageToHydrate.getMessageId() + ", " + error.getCode() + " " + error.getMessage());
+                                    batchResult.messagesRefused.add(messageToHydrate);
+                                    batchResult.messagesFailed++;
+                                }
+                            }
+                        });
+            }
+            batchRequest.execute();
+
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            // Failure of the whole batch is not held against its messages, it is most likely temporary
+            log.warn("Batch of " + messagesToRequest.size() + " message detail requests failed: " + e.getMessage());
+            if (e instanceof HttpResponseException && GmailQuotaLimiter.isRateLimited(((HttpResponseException) e).getStatusCode(), null)) {
+                rateLimited[0] = true;
+            }
+            for (GmailMessage messageToHydrate : messagesToRequest) {
+                if (messagesAnswered.contains(messageToHydrate) == false) {
+                    messagesToRetry.add(messageToHydrate);
+                }
+            }
+        }
+
+        if (rateLimited[0]) {
+            gmailQuotaLimiter.onRateLimited(googleUserId);
+        } else if (messagesToRetry.isEmpty()) {
+            gmailQuotaLimiter.onSuccess(googleUserId);
+        }
+        return messagesToRetry;
+    }
+
+    // Copy history id, internal date and 'From' header from the API message to the entity
+    // Returns false if the entity still lacks any of them, getMessagesWithoutDetails would select it again
+    static boolean applyDetails(GmailMessage messageToHydrate, Message messageFromApi) {
+        final BigInteger historyIdFromApi = messageFromApi.getHistoryId();
+        if (historyIdFromApi != null) {
+            messageToHydrate.setHistoryId(historyIdFromApi.longValue());
+        } else {
+            log.info("Message from API has no historyId value");
+        }
+
+        // Set InternalDate on DB Entity
+        final Long internalDateFromApi = messageFromApi.getInternalDate();
+        if (internalDateFromApi != null) {
+            messageToHydrate.setInternalDate(internalDateFromApi);
+        } else {
+            log.info("Message from API has no InternalDate value");
+        }
+
+        // Set "From" header value on DB Entity
+        String fromHeaderValue = null;
+        if (messageFromApi.getPayload() != null && messageFromApi.getPayload().getHeaders() != null) {
+            for (MessagePartHeader header : messageFromApi.getPayload().getHeaders()) {
+                if (header.getName().equals("From")) {
+                    fromHeaderValue = header.getValue();
+                }
+            }
+        }
+
+        if (fromHeaderValue == null) {
+            log.info("Could not find 'From' header for messageId: " + messageToHydrate.getMessageId());
+        } else {
+            messageToHydrate.setHeaderFrom(fromHeaderValue);
+        }
+
+        return messageToHydrate.getHistoryId() != null && messageToHydrate.getInternalDate() != null && messageToHydrate.getHeaderFrom() != null;
+    }
+
+    // Callbacks of one batch run on the thread executing it
+    private static class BatchResult {
+        private final List<GmailMessage> messagesHydrated = new ArrayList<>();
+        private final List<GmailMessage> messagesRefused = new ArrayList<>();
+        private int messagesFailed;
+        private long elapsedNanos;
+    }
+}
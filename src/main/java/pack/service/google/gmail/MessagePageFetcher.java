@@ -0,0 +1,18 @@
+package pack.service.google.gmail;
+
+import com.google.api.services.gmail.model.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+// Pages of messages from the Gmail API, close when no more pages are wanted
+public interface MessagePageFetcher extends Closeable {
+
+    // Returns null if there are no more messages or soft maximum exceeded
+    List<Message> getNextPage() throws IOException;
+
+    // Stops any work on pages that were not yet requested
+    @Override
+    void close();
+}
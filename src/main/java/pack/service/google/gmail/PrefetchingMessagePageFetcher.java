@@ -0,0 +1,121 @@
+package pack.service.google.gmail;
+
+import com.google.api.services.gmail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Fetches the following pages on a background thread while the caller is busy with the current one
+// At most readAheadDepth pages are held waiting for the caller, close() stops the background thread when the caller stops early
+// The first page is fetched on the caller's thread, reading ahead only starts once a second page is asked for
+// Most scans stop after the first page, a page fetched ahead of that would be thrown away
+public class PrefetchingMessagePageFetcher implements MessagePageFetcher {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    private final MessagePageFetcher pageSource;
+    private final BlockingQueue<FetchedPage> fetchedPages;
+    private final Thread fetchThread;
+
+    private volatile boolean closed;
+    private boolean finished; // Caller has seen the last page or an exception
+    private boolean firstPageFetched;
+
+    public PrefetchingMessagePageFetcher(MessagePageFetcher pageSource, int readAheadDepth, String description) {
+        this.pageSource = pageSource;
+        this.fetchedPages = new ArrayBlockingQueue<>(Math.max(1, readAheadDepth));
+        this.fetchThread = new Thread(this::fetchPages, "MessagePagePrefetch-" + description);
+        fetchThread.setDaemon(true);
+    }
+
+    private void fetchPages() {
+        try {
+            while (closed == false) {
+                List<Message> page = pageSource.getNextPage();
+                fetchedPages.put(new FetchedPage(page, null));
+                if (page == null) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed by the caller
+        } catch (IOException | RuntimeException e) {
+            if (closed == false) {
+                try {
+                    // The queue may still be full of pages the caller has not taken, the caller would wait forever if this was dropped
+                    fetchedPages.put(new FetchedPage(null, e));
+                } catch (InterruptedException interrupted) {
+                    // Closed by the caller, which no longer waits for pages
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Message> getNextPage() throws IOException {
+        if (finished || closed) {
+            return null;
+        }
+
+        if (firstPageFetched == false) {
+            firstPageFetched = true;
+            finished = true; // Unless the first page arrives and is not the last one
+            List<Message> firstPage = pageSource.getNextPage();
+            finished = firstPage == null;
+            return firstPage;
+        }
+        if (fetchThread.getState() == Thread.State.NEW) {
+            fetchThread.start(); // The page source is only used by the fetch thread from here on
+        }
+
+        FetchedPage fetchedPage;
+        try {
+            fetchedPage = fetchedPages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for next page of messages");
+        }
+
+        if (fetchedPage.exception != null) {
+            finished = true;
+            if (fetchedPage.exception instanceof IOException) {
+                throw (IOException) fetchedPage.exception;
+            }
+            throw (RuntimeException) fetchedPage.exception;
+        }
+        if (fetchedPage.messages == null) {
+            finished = true;
+        }
+        return fetchedPage.messages;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        fetchThread.interrupt(); // Has no effect if reading ahead never started
+        int pagesDiscarded = fetchedPages.size();
+        fetchedPages.clear();
+        if (finished == false) {
+            log.info("Stopped fetching message pages, discarded " + pagesDiscarded + " pages fetched ahead");
+        }
+        pageSource.close();
+    }
+
+    private static class FetchedPage {
+        private final List<Message> messages; // null when there are no more pages
+        private final Exception exception;
+
+        FetchedPage(List<Message> messages, Exception exception) {
+            this.messages = messages;
+            this.exception = exception;
+        }
+    }
+}
@@ -11,22 +11,31 @@ import java.util.Arrays;
 import java.util.List;
 
 // Handles the Gmail API querying for messages and getting the next page of results as needed
-public class StatefulMessagePageFetcher {
+public class StatefulMessagePageFetcher implements MessagePageFetcher {
 
     private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
 
+    // Only the fields used when merging messages, see GmailDataService.mergeNewOrUpdatedMessages
+    private static final String LIST_FIELDS = "messages(id,threadId),nextPageToken,resultSizeEstimate";
+
     private final String labelId;
     private final Integer maximumMessages;
+    private final long pageSize;
     private int messagesRetrieved;
     private Gmail gmailService;
+    private final GmailQuotaLimiter gmailQuotaLimiter;
+    private final String googleUserId;
 
     private final String userId = "me";
     private ListMessagesResponse lastResponse;
 
 
-    public StatefulMessagePageFetcher(Gmail gmailService, String labelId, Integer softMaximum) {
+    public StatefulMessagePageFetcher(Gmail gmailService, GmailQuotaLimiter gmailQuotaLimiter, String googleUserId, String labelId, Integer softMaximum, long pageSize) {
         this.gmailService = gmailService;
+        this.gmailQuotaLimiter = gmailQuotaLimiter;
+        this.googleUserId = googleUserId;
         this.labelId = labelId;
+        this.pageSize = pageSize;
 
         if (softMaximum == null) {
             maximumMessages = Integer.MAX_VALUE;
@@ -36,13 +45,14 @@ public class StatefulMessagePageFetcher {
     }
 
     // Returns null if there are no more messages or soft maximum exceeded
+    @Override
     public List<Message> getNextPage() throws IOException {
         if (messagesRetrieved >= maximumMessages) {
             log.info("Number of messages already retrieved: " + messagesRetrieved + " exceeds message limit of :" + maximumMessages + ", not fetching next page");
             return null;
         } else  if (lastResponse == null) {
             // No pages were fetched before, get the first page
-             lastResponse = gmailService.users().messages().list(userId).setLabelIds(Arrays.asList(labelId)).execute();
+             lastResponse = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__MESSAGES_LIST, listRequest()::execute);
 
         } else if (lastResponse.getNextPageToken() == null) {
             // There is no next page
@@ -53,7 +63,7 @@ public class StatefulMessagePageFetcher {
             // Unclear what happens if label(e.g. inbox) changes between page fetches?
             // ex: if pg1 messages are removed, would that cause some messages to be skipped when fetching pg2?
             String pageToken = lastResponse.getNextPageToken();
-            lastResponse = gmailService.users().messages().list(userId).setLabelIds(Arrays.asList(labelId)).setPageToken(pageToken).execute();
+            lastResponse = gmailQuotaLimiter.execute(googleUserId, GmailQuotaLimiter.COST__MESSAGES_LIST, listRequest().setPageToken(pageToken)::execute);
         }
 
         List<Message> messages = lastResponse.getMessages();
@@ -69,4 +79,18 @@ public class StatefulMessagePageFetcher {
         return messages;
     }
 
+    // Pages are no larger than needed to reach the soft maximum
+    private Gmail.Users.Messages.List listRequest() throws IOException {
+        long maxResults = Math.max(1, Math.min(pageSize, (long) maximumMessages - messagesRetrieved));
+        return gmailService.users().messages().list(userId)
+                .setLabelIds(Arrays.asList(labelId))
+                .setMaxResults(maxResults)
+                .setFields(LIST_FIELDS);
+    }
+
+    @Override
+    public void close() {
+        // Nothing is fetched unless asked for
+    }
+
 }
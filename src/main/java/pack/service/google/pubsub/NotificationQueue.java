@@ -0,0 +1,310 @@
+package pack.service.google.pubsub;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import pack.ApplicationConfiguration;
+import pack.persist.DaoOwner;
+import pack.persist.data.HistoryEvent;
+import pack.persist.data.PendingNotification;
+import pack.persist.data.Schema;
+import pack.persist.data.User;
+import pack.service.DataVersionService;
+import pack.service.UserService;
+import pack.service.task.TaskService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded queue of PubSub notifications kept in the database, so a notification can be acknowledged as soon as it is stored
+// Workers drain the queue in batches into history events, each worker takes the rows whose id falls into its partition
+// Recording is idempotent on (user, history id), so a redelivered notification or a retried batch adds nothing twice
+@Component
+public class NotificationQueue {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    private static final int MAXIMUM_ATTEMPTS = 5; // A notification that keeps failing is dropped after this many attempts
+    private static final long IDLE_WAIT__MILLIS = 1000;
+    private static final long FAILURE_WAIT__MILLIS = 5000;
+    private static final long REALTIME_CATCH_UP__MILLIS = Long.parseLong(MessageReceiverPersistData.SETTING_REALTIME_OBSERVATION_CATCH_UP_TIME_MS);
+
+    @Autowired private ApplicationConfiguration applicationConfiguration;
+    @Autowired private DaoOwner daoOwner;
+    @Autowired private UserService userService;
+    @Autowired private TaskService taskService;
+    @Autowired private DataVersionService dataVersionService;
+
+    private Dao<PendingNotification, String> pendingNotificationDao;
+    private Dao<HistoryEvent, String> historyDao;
+    private ExecutorService drainWorkers;
+    private volatile boolean running;
+    private final Object workAvailable = new Object();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long lastQueueLatencyMillis; // Time the oldest notification of the last batch spent in the queue
+
+    @PostConstruct
+    private void postConstruct() {
+        pendingNotificationDao = daoOwner.getPendingNotificationDao();
+        historyDao = daoOwner.getHistoryDao();
+    }
+
+    @PreDestroy
+    private void preDestroy() {
+        running = false;
+        if (drainWorkers != null) {
+            drainWorkers.shutdownNow();
+        }
+    }
+
+    // Starts the workers, notifications left over from a previous run are drained first
+    // Must be called after schema updates, before the subscriber starts
+    public synchronized void start() throws SQLException {
+        if (running) {
+            log.info("Notification queue is already started");
+            return;
+        }
+
+        queueDepth.set((int) pendingNotificationDao.countOf());
+        int workerCount = Math.max(1, applicationConfiguration.pubsubQueueWorkers);
+        AtomicInteger threadNumber = new AtomicInteger();
+        drainWorkers = Executors.newFixedThreadPool(workerCount, runnable -> new Thread(runnable, "NotificationQueue-" + threadNumber.incrementAndGet()));
+        running = true;
+        for (int partition = 0; partition < workerCount; partition++) {
+            int workerPartition = partition;
+            drainWorkers.execute(() -> drainLoop(workerPartition, workerCount));
+        }
+        log.info("Started " + workerCount + " notification queue workers, " + queueDepth.get() + " notifications pending");
+    }
+
+    // Returns true once the notification is stored (or was already queued), false if the queue is full
+    // Called on the subscriber thread, only touches the queue table
+    public boolean enqueue(String googleUserId, long historyId, long receivedMillis, boolean realtime) throws SQLException {
+        if (queueDepth.get() >= applicationConfiguration.pubsubQueueCapacity) {
+            rejected.incrementAndGet();
+            log.warn("Notification queue is full, rejecting history id " + historyId + " for " + googleUserId + " - " + describeStatistics());
+            return false;
+        }
+
+        int rowsInserted = pendingNotificationDao.executeRaw("INSERT INTO `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` (`"
+                        + PendingNotification.FIELD_GOOGLE_USER_ID + "`, `" + PendingNotification.FIELD_HISTORY_ID + "`, `"
+                        + PendingNotification.FIELD_RECEIVED_MILLIS + "`, `" + PendingNotification.FIELD_REALTIME + "`, `" + PendingNotification.FIELD_ATTEMPTS + "`)"
+                        + " SELECT ?, ?, ?, ?, 0 FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM `" + Schema.TABLE_PENDING_NOTIFICATIONS + "`"
+                        + " WHERE `" + PendingNotification.FIELD_GOOGLE_USER_ID + "` = ? AND `" + PendingNotification.FIELD_HISTORY_ID + "` = ?)",
+                googleUserId, String.valueOf(historyId), String.valueOf(receivedMillis), String.valueOf(realtime), googleUserId, String.valueOf(historyId));
+
+        if (rowsInserted == 0) {
+            duplicates.incrementAndGet();
+            log.info("History id " + historyId + " for " + googleUserId + " is already queued");
+            return true;
+        }
+
+        queueDepth.incrementAndGet();
+        enqueued.incrementAndGet();
+        synchronized (workAvailable) {
+            workAvailable.notifyAll();
+        }
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public String describeStatistics() {
+        return "notification queue depth " + queueDepth.get() + "/" + applicationConfiguration.pubsubQueueCapacity
+                + ", enqueued " + enqueued.get() + ", duplicates " + duplicates.get() + ", rejected " + rejected.get()
+                + ", recorded " + recorded.get() + ", dropped " + dropped.get()
+                + ", last queue latency " + lastQueueLatencyMillis + "ms";
+    }
+
+    private void drainLoop(int partition, int partitionCount) {
+        while (running) {
+            try {
+                int drained = drainBatch(partition, partitionCount);
+                if (drained == 0) {
+                    synchronized (workAvailable) {
+                        workAvailable.wait(IDLE_WAIT__MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (SQLException | RuntimeException e) {
+                log.warn("Notification queue worker " + partition + " failed, retrying in " + FAILURE_WAIT__MILLIS + "ms: " + e.getMessage(), e);
+                try {
+                    Thread.sleep(FAILURE_WAIT__MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Returns the number of notifications taken off the queue
+    private int drainBatch(int partition, int partitionCount) throws SQLException {
+        QueryBuilder<PendingNotification, String> qb = pendingNotificationDao.queryBuilder();
+        qb.where().raw("MOD(`" + PendingNotification.FIELD_ID + "`, " + partitionCount + ") = " + partition);
+        qb.orderBy(PendingNotification.FIELD_ID, true);
+        qb.limit((long) applicationConfiguration.pubsubQueueBatchSize);
+        List<PendingNotification> batch = pendingNotificationDao.query(qb.prepare());
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        Map<Integer, Long> highestHistoryIdByUser;
+        int failures = 0;
+        try {
+            highestHistoryIdByUser = recordInTransaction(batch);
+        } catch (SQLException e) {
+            // Retry one at a time, so that one bad notification does not hold up the rest of the batch
+            log.warn("Could not record batch of " + batch.size() + " notifications, retrying individually: " + e.getMessage());
+            highestHistoryIdByUser = new HashMap<>();
+            for (PendingNotification notification : batch) {
+                try {
+                    mergeHighest(highestHistoryIdByUser, recordInTransaction(Collections.singletonList(notification)));
+                } catch (SQLException notificationException) {
+                    recordFailure(notification, notificationException);
+                    failures++;
+                }
+            }
+        }
+
+        // Triggered after commit, so the sync sees the recorded history events
+        for (Map.Entry<Integer, Long> userAndHistoryId : highestHistoryIdByUser.entrySet()) {
+            dataVersionService.dataChanged(userAndHistoryId.getKey());
+            taskService.triggerSoon(userAndHistoryId.getKey(), userAndHistoryId.getValue());
+        }
+
+        lastQueueLatencyMillis = System.currentTimeMillis() - batch.get(0).getReceivedMillis();
+        log.info("Drained " + (batch.size() - failures) + " notifications for " + highestHistoryIdByUser.size() + " users - " + describeStatistics());
+        return batch.size() - failures; // Nothing drained lets the worker wait before retrying
+    }
+
+    // Records history events and removes the notifications in one transaction
+    // Returns the highest history id recorded for each user
+    private Map<Integer, Long> recordInTransaction(List<PendingNotification> notifications) throws SQLException {
+        // Users are created before the transaction, UserService caches a new user as soon as it is created
+        // A user created within the transaction would stay cached (without a row) if the transaction was rolled back
+        Map<String, User> usersByGoogleUserId = new HashMap<>();
+        for (PendingNotification notification : notifications) {
+            if (usersByGoogleUserId.containsKey(notification.getGoogleUserId()) == false) {
+                usersByGoogleUserId.put(notification.getGoogleUserId(), getOrCreateUser(notification.getGoogleUserId()));
+            }
+        }
+
+        Map<Integer, Long> highestHistoryIdByUser = TransactionManager.callInTransaction(daoOwner.getConnectionSource(), () -> {
+            Map<Integer, Long> highestInBatch = new HashMap<>();
+            StringBuilder idList = new StringBuilder();
+
+            for (PendingNotification notification : notifications) {
+                User user = usersByGoogleUserId.get(notification.getGoogleUserId());
+                recordHistoryEvent(user, notification);
+                mergeHighest(highestInBatch, Collections.singletonMap(user.getId(), notification.getHistoryId()));
+
+                if (idList.length() > 0) {
+                    idList.append(", ");
+                }
+                idList.append(notification.getId());
+            }
+
+            pendingNotificationDao.executeRaw("DELETE FROM `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` WHERE `" + PendingNotification.FIELD_ID + "` IN (" + idList + ")");
+            return highestInBatch;
+        });
+
+        queueDepth.addAndGet(-notifications.size());
+        return highestHistoryIdByUser;
+    }
+
+    private User getOrCreateUser(String googleUserId) throws SQLException {
+        User user = userService.getUserWithGoogleUserId(googleUserId);
+        if (user == null) {
+            log.error("Could not find user with google Id: " + googleUserId + " creating new user");
+            userService.addUserWithGoogleId(googleUserId);
+            userService.logAllUsers();
+            user = userService.getUserWithGoogleUserId(googleUserId);
+        }
+        return user;
+    }
+
+    // Adds the history event unless this user already has one with the same history id
+    private void recordHistoryEvent(User user, PendingNotification notification) throws SQLException {
+        QueryBuilder<HistoryEvent, String> qb = historyDao.queryBuilder();
+        qb.where().eq(HistoryEvent.FIELD_USER_ID, user.getId())
+                .and().eq(HistoryEvent.FIELD_HISTORY_ID, notification.getHistoryId());
+        if (historyDao.countOf(qb.setCountOf(true).prepare()) > 0) {
+            // Push notification history ID's do not directly contain mailbox updates, there is nothing to add to an existing event
+            duplicates.incrementAndGet();
+            log.info("History id " + notification.getHistoryId() + " for user " + user.getGoogleUserId() + " is already recorded");
+            return;
+        }
+
+        HistoryEvent historyEventToAdd = new HistoryEvent();
+        historyEventToAdd.setHistoryId(notification.getHistoryId());
+        historyEventToAdd.setDateOccurred(notification.getReceivedMillis());
+        historyEventToAdd.setJson(""); // Database integrity requirement....
+        historyEventToAdd.setUserId(user.getId());
+        setRealTimeObservationStatus(historyEventToAdd, notification);
+        log.info("Creating history id " + notification.getHistoryId() + " for user " + user.getGoogleUserId() + " date occurred " + notification.getReceivedMillis());
+        historyDao.create(historyEventToAdd);
+        recorded.incrementAndGet();
+    }
+
+    // Observation status is judged by when the notification was received, not when it is drained
+    private void setRealTimeObservationStatus(HistoryEvent historyEventToAdd, PendingNotification notification) throws SQLException {
+        Long firstHistoryUpdateTime = userService.getFirstHistoryUpdateTimeForUser(historyEventToAdd.getUserId());
+
+        if (firstHistoryUpdateTime == null) {// This is the very first update for this account
+            historyEventToAdd.setStatusObserved(HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_FIRSTUPDATE);
+        } else if (notification.getReceivedMillis() - firstHistoryUpdateTime < REALTIME_CATCH_UP__MILLIS) {
+            // Event close to first update - probably happened before user authenticated for the first time
+            historyEventToAdd.setStatusObserved(HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_FIRSTUPDATE);
+        } else if (notification.isRealtime()) {
+            historyEventToAdd.setStatusObserved(HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME);
+        } else {
+            historyEventToAdd.setStatusObserved(HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_DELAY);
+        }
+        log.info("Realtime Observation Status: " + historyEventToAdd.getStatusObserved() + ", firstHistoryUpdateTime: " + firstHistoryUpdateTime + ", received: " + notification.getReceivedMillis());
+    }
+
+    // Counts a failed attempt, the notification is dropped once it has failed too often
+    private void recordFailure(PendingNotification notification, SQLException e) throws SQLException {
+        if (notification.getAttempts() + 1 >= MAXIMUM_ATTEMPTS) {
+            log.error("Dropping notification with history id " + notification.getHistoryId() + " for " + notification.getGoogleUserId()
+                    + " after " + MAXIMUM_ATTEMPTS + " failed attempts: " + e.getMessage(), e);
+            pendingNotificationDao.executeRaw("DELETE FROM `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` WHERE `" + PendingNotification.FIELD_ID + "` = " + notification.getId());
+            queueDepth.decrementAndGet();
+            dropped.incrementAndGet();
+        } else {
+            log.warn("Could not record notification with history id " + notification.getHistoryId() + " for " + notification.getGoogleUserId() + ": " + e.getMessage());
+            pendingNotificationDao.executeRaw("UPDATE `" + Schema.TABLE_PENDING_NOTIFICATIONS + "` SET `" + PendingNotification.FIELD_ATTEMPTS + "` = `" + PendingNotification.FIELD_ATTEMPTS + "` + 1"
+                    + " WHERE `" + PendingNotification.FIELD_ID + "` = " + notification.getId());
+        }
+    }
+
+    private static void mergeHighest(Map<Integer, Long> highestHistoryIdByUser, Map<Integer, Long> additions) {
+        for (Map.Entry<Integer, Long> addition : additions.entrySet()) {
+            highestHistoryIdByUser.merge(addition.getKey(), addition.getValue(), Math::max);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package pack.service.google.pubsub;
 
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.gax.batching.FlowControlSettings;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -23,6 +24,7 @@ import pack.service.google.gmail.GmailService;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,6 +48,7 @@ public class PubSubService {
     private static FileDataStoreFactory DATA_STORE_FACTORY;
 
     @Autowired MessageReceiverPersistData messageReceiver;
+    @Autowired NotificationQueue notificationQueue;
     @Autowired GmailApiService gmailApiService;
 
     private static final String PROJECT_ID = ServiceOptions.getDefaultProjectId();
@@ -116,13 +119,23 @@ public class PubSubService {
     }
 
     // Will receive updates from all user mailboxes being watched
-    public void startAsyncPull() {
+    public void startAsyncPull() throws SQLException {
         SubscriptionName subscriptionName = SubscriptionName.of(PROJECT_ID, applicationConfiguration.pubsubSubscriptionId);
         // Need to check if subscription exists
 
         log.info("Starting async pull on subscription name: " + subscriptionName.toString());
+        notificationQueue.start(); // Receiver only stores notifications, the queue workers record them
+
+        // Limits messages handed to the receiver but not yet acknowledged, beyond this the subscriber stops pulling
+        FlowControlSettings flowControlSettings = FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(applicationConfiguration.pubsubFlowMaxMessages)
+                .setMaxOutstandingRequestBytes(applicationConfiguration.pubsubFlowMaxBytes)
+                .build();
+
         messageReceiver.setAsyncPullTimeStarted(System.currentTimeMillis());
-        subscriber = Subscriber.newBuilder(subscriptionName, messageReceiver).build();
+        subscriber = Subscriber.newBuilder(subscriptionName, messageReceiver)
+                .setFlowControlSettings(flowControlSettings)
+                .build();
         subscriber.startAsync();
     }
 
@@ -0,0 +1,217 @@
+package pack.service.task;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.misc.TransactionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+import pack.ApplicationConfiguration;
+import pack.persist.DaoOwner;
+import pack.persist.data.GmailLabelUpdate;
+import pack.persist.data.Schema;
+import pack.service.DataVersionService;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Label updates are recorded on every sync and kept forever, but charts over old data only need coarse resolution
+// Periodically thins out old label updates, keeping the last observation of each hour (older than a week) or day (older than 90 days)
+// Rollup tables are already aggregated, so they are not affected by removing these rows
+@Service
+public class LabelUpdateCompactionService {
+
+    private static final Logger log = LoggerFactory.getLogger((new Object(){}).getClass().getEnclosingClass());
+
+    private static final long HOURLY_AFTER__MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final long DAILY_AFTER__MILLIS = TimeUnit.DAYS.toMillis(90);
+    private static final long STARTUP_DELAY__MILLIS = TimeUnit.MINUTES.toMillis(10); // Stay clear of the startup sync
+
+    @Autowired private ApplicationConfiguration applicationConfiguration;
+    @Autowired private ThreadPoolTaskScheduler threadPoolTaskScheduler;
+    @Autowired private DaoOwner daoOwner;
+    @Autowired private DataVersionService dataVersionService;
+
+    private ScheduledFuture<?> scheduledFuture;
+    private final AtomicLong totalRowsReclaimed = new AtomicLong();
+
+    public synchronized void scheduleCompaction() {
+        if (scheduledFuture != null) {
+            log.info("Label update compaction is already scheduled");
+            return;
+        }
+
+        long intervalMillis = TimeUnit.HOURS.toMillis(applicationConfiguration.labelCompactionIntervalHours);
+        Date startTime = new Date(System.currentTimeMillis() + STARTUP_DELAY__MILLIS);
+        scheduledFuture = threadPoolTaskScheduler.scheduleWithFixedDelay(this::compactSafely, startTime, intervalMillis);
+        log.info("Scheduled label update compaction starting " + startTime + " and repeating every " + applicationConfiguration.labelCompactionIntervalHours + " hours");
+    }
+
+    public long getTotalRowsReclaimed() {
+        return totalRowsReclaimed.get();
+    }
+
+    // Exceptions thrown from a repeating task would cancel all further runs
+    private void compactSafely() {
+        try {
+            compact(System.currentTimeMillis());
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Label update compaction failed, will retry at next interval: " + e.getMessage(), e);
+        }
+    }
+
+    // Returns the number of label update rows that were deleted
+    public int compact(long now) throws SQLException {
+        long startNanos = System.nanoTime();
+        Dao<GmailLabelUpdate, String> labelDao = daoOwner.getLabelDao();
+
+        // Tier boundaries are aligned to whole days so that no hour bucket straddles the daily tier
+        long hourlyBefore = alignToDay(now - HOURLY_AFTER__MILLIS);
+        long dailyBefore = alignToDay(now - DAILY_AFTER__MILLIS);
+
+        int rowsDeleted = 0;
+        int rowsUpdated = 0;
+        for (String[] userAndLabel : selectUsersAndLabels(labelDao, hourlyBefore)) {
+            CompactionPlan compactionPlan = planCompaction(labelDao, userAndLabel[0], userAndLabel[1], hourlyBefore, dailyBefore);
+            int userRowsUpdated = compactionPlan.executeUpdates(labelDao);
+            rowsUpdated += userRowsUpdated;
+            int userRowsDeleted = compactionPlan.executeDeletes(labelDao);
+            rowsDeleted += userRowsDeleted;
+            if (userRowsUpdated + userRowsDeleted > 0) {
+                dataVersionService.dataChanged(Integer.parseInt(userAndLabel[0])); // Charts over raw rows see fewer points
+            }
+        }
+
+        totalRowsReclaimed.addAndGet(rowsDeleted);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        log.info("Label update compaction reclaimed " + rowsDeleted + " rows (" + totalRowsReclaimed.get() + " since startup),"
+                + " raised last history id on " + rowsUpdated + " kept rows, in " + elapsedMillis + "ms");
+        return rowsDeleted;
+    }
+
+    private static long alignToDay(long time) {
+        long day = TimeUnit.DAYS.toMillis(1);
+        return Math.floorDiv(time, day) * day;
+    }
+
+    private List<String[]> selectUsersAndLabels(Dao<GmailLabelUpdate, String> labelDao, long hourlyBefore) throws SQLException {
+        GenericRawResults<String[]> rawResults = labelDao.queryRaw("SELECT DISTINCT `" + GmailLabelUpdate.FIELD_USER_ID + "`, `" + GmailLabelUpdate.FIELD_LABEL_NAME + "`"
+                + " FROM `" + Schema.TABLE_GMAIL_LABEL_UPDATE + "`"
+                + " WHERE `" + GmailLabelUpdate.FIELD_USER_ID + "` IS NOT NULL AND `" + GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS + "` < " + hourlyBefore);
+        return rawResults.getResults();
+    }
+
+    // Streams the old label updates of one user and label in time order, keeping the last row of each bucket
+    // Results are fully read before anything is deleted
+    private CompactionPlan planCompaction(Dao<GmailLabelUpdate, String> labelDao, String userId, String labelName, long hourlyBefore, long dailyBefore) throws SQLException {
+        CompactionPlan compactionPlan = new CompactionPlan(applicationConfiguration.labelCompactionChunkSize);
+
+        GenericRawResults<String[]> rawResults = labelDao.queryRaw("SELECT `" + GmailLabelUpdate.FIELD_ID + "`, `" + GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS + "`, `" + GmailLabelUpdate.FIELD_LAST_HISTORY_ID + "`"
+                + " FROM `" + Schema.TABLE_GMAIL_LABEL_UPDATE + "`"
+                + " WHERE `" + GmailLabelUpdate.FIELD_USER_ID + "` = ? AND `" + GmailLabelUpdate.FIELD_LABEL_NAME + "` = ? AND `" + GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS + "` < ?"
+                + " ORDER BY `" + GmailLabelUpdate.FIELD_UPDATE_TIME_MILLIS + "`, `" + GmailLabelUpdate.FIELD_ID + "`",
+                userId, labelName, String.valueOf(hourlyBefore));
+        try {
+            for (String[] row : rawResults) {
+                long updateTime = Long.parseLong(row[1]);
+                long bucketSize = updateTime < dailyBefore ? TimeUnit.DAYS.toMillis(1) : TimeUnit.HOURS.toMillis(1);
+                compactionPlan.offer(Integer.parseInt(row[0]), Math.floorDiv(updateTime, bucketSize) * bucketSize, Long.parseLong(row[2]));
+            }
+        } finally {
+            try {
+                rawResults.close();
+            } catch (Exception e) {
+                log.warn("Could not close query results: " + e.getMessage());
+            }
+        }
+        compactionPlan.finish();
+
+        if (compactionPlan.deleteIds.isEmpty() == false) {
+            log.info("Compacting label '" + labelName + "' for user " + userId + ": " + compactionPlan.deleteIds.size() + " superseded rows");
+        }
+        return compactionPlan;
+    }
+
+    // Rows of one user and label, offered in time order
+    // The last row of each bucket is kept and carries the largest last history id seen in its bucket
+    static class CompactionPlan {
+
+        private final int chunkSize;
+
+        private final List<Integer> deleteIds = new ArrayList<>();
+        private final List<long[]> keptRowUpdates = new ArrayList<>(); // {id, lastHistoryId}
+
+        private long bucketStart = Long.MIN_VALUE;
+        private int lastId = -1;
+        private long lastHistoryIdOfLast;
+        private long largestHistoryIdInBucket;
+
+        CompactionPlan(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        void offer(int id, long rowBucketStart, long lastHistoryId) {
+            if (rowBucketStart != bucketStart) {
+                finish();
+                bucketStart = rowBucketStart;
+                largestHistoryIdInBucket = lastHistoryId;
+            } else {
+                deleteIds.add(lastId); // Superseded by this later row in the same bucket
+                largestHistoryIdInBucket = Math.max(largestHistoryIdInBucket, lastHistoryId);
+            }
+            lastId = id;
+            lastHistoryIdOfLast = lastHistoryId;
+        }
+
+        void finish() {
+            if (lastId != -1 && largestHistoryIdInBucket > lastHistoryIdOfLast) {
+                keptRowUpdates.add(new long[]{lastId, largestHistoryIdInBucket});
+            }
+            lastId = -1;
+        }
+
+        // Kept rows are updated before anything is deleted, so the largest history id is never lost if a later chunk fails
+        int executeUpdates(Dao<GmailLabelUpdate, String> labelDao) throws SQLException {
+            int rowsUpdated = 0;
+            for (int chunkStart = 0; chunkStart < keptRowUpdates.size(); chunkStart += chunkSize) {
+                List<long[]> chunk = keptRowUpdates.subList(chunkStart, Math.min(chunkStart + chunkSize, keptRowUpdates.size()));
+                rowsUpdated += TransactionManager.callInTransaction(labelDao.getConnectionSource(), () -> {
+                    int chunkRowsUpdated = 0;
+                    for (long[] keptRowUpdate : chunk) {
+                        chunkRowsUpdated += labelDao.executeRaw("UPDATE `" + Schema.TABLE_GMAIL_LABEL_UPDATE + "`"
+                                + " SET `" + GmailLabelUpdate.FIELD_LAST_HISTORY_ID + "` = " + keptRowUpdate[1]
+                                + " WHERE `" + GmailLabelUpdate.FIELD_ID + "` = " + keptRowUpdate[0]);
+                    }
+                    return chunkRowsUpdated;
+                });
+            }
+            return rowsUpdated;
+        }
+
+        // Each chunk is deleted in its own transaction, so locks are held briefly and a failure only loses one chunk of progress
+        int executeDeletes(Dao<GmailLabelUpdate, String> labelDao) throws SQLException {
+            int rowsDeleted = 0;
+            for (int chunkStart = 0; chunkStart < deleteIds.size(); chunkStart += chunkSize) {
+                List<Integer> chunk = deleteIds.subList(chunkStart, Math.min(chunkStart + chunkSize, deleteIds.size()));
+                StringBuilder idList = new StringBuilder();
+                for (Integer id : chunk) {
+                    if (idList.length() > 0) {
+                        idList.append(", ");
+                    }
+                    idList.append(id);
+                }
+
+                rowsDeleted += TransactionManager.callInTransaction(labelDao.getConnectionSource(), () ->
+                        labelDao.executeRaw("DELETE FROM `" + Schema.TABLE_GMAIL_LABEL_UPDATE + "` WHERE `" + GmailLabelUpdate.FIELD_ID + "` IN (" + idList + ")"));
+            }
+            return rowsDeleted;
+        }
+    }
+}
@@ -1,28 +1,40 @@
 package pack.service.task;
 
-import com.j256.ormlite.dao.Dao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.stereotype.Service;
+import pack.ApplicationConfiguration;
 import pack.persist.DaoOwner;
 import pack.persist.data.User;
 import pack.service.UserService;
 import pack.service.google.gmail.GmailApiService;
 import pack.service.google.gmail.GmailDataService;
+import pack.service.google.gmail.GmailQuotaLimiter;
 import pack.service.google.gmail.GmailService;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by User on 11/13/2017.
  */
+// Each user has an independent next-run time, the scheduler only hands due users to a bounded pool of sync workers
+// Different users sync concurrently, runs for the same user never overlap, triggers arriving while a run is pending or in progress are coalesced
+// A burst of triggers is debounced into one run, which starts once the burst goes quiet or the maximum delay since its first trigger has passed
 @Service
 public class TaskService {
 
@@ -30,200 +42,340 @@ public class TaskService {
 
     public static final int TASK_INTERVAL__SECONDS = 60 * 15; // consider externalizing
 
+    @Autowired private ApplicationConfiguration applicationConfiguration;
     @Autowired private GmailService gmailService;
     @Autowired private GmailApiService gmailApiService;
     @Autowired private GmailDataService gmailDataService;
+    @Autowired private GmailQuotaLimiter gmailQuotaLimiter;
     @Autowired private UserService userService;
     @Autowired private ThreadPoolTaskScheduler threadPoolTaskScheduler;
     @Autowired private DaoOwner daoOwner;
 
-    private ScheduledFuture scheduledFuture;
-    private Integer nextUpdateForUser;
-
-    public ScheduledFuture getScheduledFuture() {
-        return scheduledFuture;
+    private final Map<Integer, UserSyncState> syncStateByUser = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> lastInboxScanMillisByUser = new ConcurrentHashMap<>(); // Empty after a restart, so the first update of each user scans
+    private ThreadPoolExecutor syncWorkers;
+
+    @PostConstruct
+    private void postConstruct() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        int workerThreads = Math.max(1, applicationConfiguration.syncWorkerThreads);
+        // A user is queued at most once, so the queue never holds more entries than there are users
+        syncWorkers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "SyncWorker-" + threadNumber.incrementAndGet()));
     }
 
-    // Return true if we are certain that no task is scheduled to run.
-    public synchronized boolean taskCancel() {
-        boolean internalValue = taskCancelInternal();
-        log.warn("There are " + threadPoolTaskScheduler.getActiveCount() + " active threads");
-        return internalValue;
+    @PreDestroy
+    private void preDestroy() {
+        syncWorkers.shutdownNow();
     }
 
-    private boolean taskCancelInternal() {
-        int delayThresholdMs = 500; // Don't cancel task if it is about to execute in this many ms
-
-        if (scheduledFuture == null) {
-            // No task was ever scheduled
-            log.info("Cannot cancel, task not scheduled (considered successful)");
-            return true;
+    // Schedule a regular update for every user that does not already have one pending
+    public void scheduleAllUsers() throws SQLException {
+        List<User> users = daoOwner.getUserDao().queryForAll();
+        for (User user : users) {
+            UserSyncState syncState = getSyncState(user.getId());
+            synchronized (syncState) {
+                if (syncState.scheduledFuture == null && syncState.queued == false && syncState.running == false) {
+                    scheduleRegularRun(syncState);
+                }
+            }
         }
+        log.info("Scheduled updates for " + users.size() + " users, starting in " + TASK_INTERVAL__SECONDS + " seconds");
+    }
 
-        // Task was scheduled, determine if it is still waiting to start
-        long delayUntilExecution = scheduledFuture.getDelay(TimeUnit.MILLISECONDS); // Code below assumes time in ms
-        if (delayUntilExecution > delayThresholdMs) {
-            log.info("Attempting to cancel scheduled task starting in " + delayUntilExecution + "ms");
-            scheduledFuture.cancel(false);
+    // Run an update for this user (almost) immediately, without affecting other users
+    // Return true if an update for the user is now scheduled, queued or running
+    public boolean triggerSoon(Integer userId) {
+        return triggerSoon(userId, null);
+    }
 
-        } else {
-            String message = String.format("Timer delay of %s too close to threshold value of %s or task has already started, will not attempt to cancel", delayUntilExecution, delayThresholdMs);
-            log.info(message);
+    // Push notifications carry the mailbox history id at the time of the change
+    // A run started only by notifications is skipped if history was already examined up to the highest id notified
+    // A pending start is pushed back on each trigger (up to the maximum delay), a trigger during a run causes one more run after it
+    public boolean triggerSoon(Integer userId, Long notifiedHistoryId) {
+        if (userId == null) {
+            log.warn("Cannot trigger update without a user id");
+            return false;
         }
 
-        boolean cancelled = scheduledFuture.isCancelled();
-        boolean done = scheduledFuture.isDone(); // Even if cancelling is not possible, task may have already finished (depending on circumstances and re-scheduling strategy)
-        String message = String.format("%sms remaining until task start, cancelled: %s, done: %s", delayUntilExecution, cancelled, done);
-        log.info(message);
+        UserSyncState syncState = getSyncState(userId);
+        synchronized (syncState) {
+            syncState.triggers++;
+            if (notifiedHistoryId == null) {
+                syncState.pendingUnconditional = true;
+            } else if (syncState.pendingHistoryId == null || notifiedHistoryId > syncState.pendingHistoryId) {
+                syncState.pendingHistoryId = notifiedHistoryId;
+            }
 
-        if (cancelled || done) {
-            // Considered successful if we cancelled the task before it started, or it has already run to completion
-            log.info("Task was successfully cancelled (or has already finished)");
-            return true;
+            if (syncState.running) {
+                syncState.rerunRequested = true;
+                syncState.triggersCoalesced++;
+                log.debug("Update for user " + userId + " is running, another run will follow it");
+            } else if (syncState.queued) {
+                syncState.triggersCoalesced++;
+                log.debug("Update for user " + userId + " is already waiting for a worker");
+            } else {
+                long now = System.currentTimeMillis();
+                if (syncState.pendingSinceMillis == 0) {
+                    syncState.pendingSinceMillis = now;
+                } else {
+                    syncState.triggersCoalesced++;
+                }
+                scheduleRun(syncState, debouncedStartMillis(syncState.pendingSinceMillis, now));
+            }
         }
+        return true;
+    }
 
-        log.info("Unable to guarantee that no tasks are scheduled");
-        return false;
+    // Start once no trigger arrived for the debounce window, but no later than the maximum delay after the first trigger
+    long debouncedStartMillis(long firstTriggerMillis, long now) {
+        long debounceMillis = TimeUnit.SECONDS.toMillis(applicationConfiguration.syncTriggerDebounceSeconds);
+        long maximumDelayMillis = TimeUnit.SECONDS.toMillis(applicationConfiguration.syncTriggerMaxDelaySeconds);
+        return Math.max(now, Math.min(now + debounceMillis, firstTriggerMillis + maximumDelayMillis));
     }
 
-    // Cancel any already-scheduled task and create a new one set to start at a pre-determined delay
-    // Return true if task delay was reset successfully
-    public synchronized boolean taskResetTimer() {
-        return resetTimer(TASK_INTERVAL__SECONDS);
+    // The pending update for this user, null if none is scheduled (for example while it is queued or running)
+    public ScheduledFuture getScheduledFuture(Integer userId) {
+        UserSyncState syncState = syncStateByUser.get(userId);
+        if (syncState == null) {
+            return null;
+        }
+        synchronized (syncState) {
+            return syncState.scheduledFuture;
+        }
     }
 
-    // Cancel any already-scheduled task and create a new one set to start (almost) immediately
-    // Return true if task delay was reset successfully
-    // Useful for when a push notification is received, however these may be received in parallel, so a short delay is useful
-    // Allows the start-time to be pushed back multiple times as multiple push notifications are processed
-    public synchronized boolean taskStartSoon() {
-        return resetTimer(3);
+    // Users waiting for a free sync worker
+    public int getQueueDepth() {
+        return syncWorkers.getQueue().size();
     }
 
-    private synchronized boolean resetTimer(int secondsDelay) {
-        boolean cancelResult = taskCancel();
-        if (cancelResult == false) {
-            log.info("Could not cancel already-scheduled task, it will not be re-scheduled");
-            return false;
+    public String describeStatistics() {
+        StringBuilder description = new StringBuilder("Sync workers: " + syncWorkers.getActiveCount() + "/" + syncWorkers.getMaximumPoolSize() + " active, "
+                + getQueueDepth() + " queued, " + syncWorkers.getCompletedTaskCount() + " completed");
+        for (UserSyncState syncState : new ArrayList<>(syncStateByUser.values())) {
+            description.append("; ").append(syncState.describe());
         }
-
-        schedule(secondsDelay);
-        return true;
+        return description.toString();
     }
 
-    // Does not check to see if other tasks are cancelled
-    private void schedule(int secondsDelay) {
-        log.info("About to schedule task");
-        RunnableTask task = new RunnableTask(daoOwner.getUserDao(), nextUpdateForUser, "execute-in-" + secondsDelay + "-seconds");
-        clearUpdateForUser();
-        Date startTime = new Date(System.currentTimeMillis() + secondsDelay * 1000);
-        scheduledFuture = threadPoolTaskScheduler.schedule(task, startTime);
-        log.warn("There are " + threadPoolTaskScheduler.getActiveCount() + " active threads");
+    public String describeStatistics(Integer userId) {
+        UserSyncState syncState = syncStateByUser.get(userId);
+        return syncState == null ? "user " + userId + ": no updates scheduled yet" : syncState.describe();
     }
 
-    public void setUpdateForUser(Integer userIdLoggedIn) {
-        nextUpdateForUser = userIdLoggedIn;
+    private UserSyncState getSyncState(Integer userId) {
+        return syncStateByUser.computeIfAbsent(userId, UserSyncState::new);
     }
 
-    private void clearUpdateForUser() {
-        nextUpdateForUser = null;
+    // Caller holds the lock on syncState
+    private void scheduleRegularRun(UserSyncState syncState) {
+        syncState.regularDueMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TASK_INTERVAL__SECONDS);
+        scheduleRun(syncState, syncState.regularDueMillis);
     }
 
-    class RunnableTask implements Runnable {
+    // Replaces any pending start for this user, caller holds the lock on syncState
+    private void scheduleRun(UserSyncState syncState, long startMillis) {
+        if (syncState.scheduledFuture != null) {
+            syncState.scheduledFuture.cancel(false);
+        }
 
-        private final String message;
-        private final Dao<User, String> userDao;
-        private final Integer nextUpdateForUser;
+        // A start that could not be cancelled in time sees a newer generation and does nothing
+        long generation = ++syncState.generation;
+        syncState.nextRunMillis = startMillis;
+        syncState.scheduledFuture = threadPoolTaskScheduler.schedule(() -> dispatch(syncState, generation), new Date(startMillis));
+        log.debug("Scheduled update for user " + syncState.userId + " in " + (startMillis - System.currentTimeMillis()) + "ms");
+    }
 
+    // Runs on the scheduler thread, which only hands the user over to a sync worker
+    private void dispatch(UserSyncState syncState, long generation) {
+        synchronized (syncState) {
+            if (generation != syncState.generation) {
+                return;
+            }
+            syncState.scheduledFuture = null;
+            if (syncState.running) {
+                syncState.rerunRequested = true;
+                return;
+            }
+            syncState.queued = true;
+            syncState.queuedAtMillis = System.currentTimeMillis();
+        }
+        syncWorkers.execute(() -> runUpdate(syncState));
+    }
 
-        public RunnableTask(Dao<User, String> userDao, Integer nextUpdateForUser, String message){
-            this.nextUpdateForUser = nextUpdateForUser;
-            this.message = message;
-            this.userDao = userDao;
+    // Runs on a sync worker
+    private void runUpdate(UserSyncState syncState) {
+        long startMillis = System.currentTimeMillis();
+        Long notifiedHistoryId;
+        synchronized (syncState) {
+            syncState.queued = false;
+            syncState.running = true;
+            syncState.lastLagMillis = startMillis - syncState.nextRunMillis;
+            syncState.lastQueueWaitMillis = startMillis - syncState.queuedAtMillis;
+
+            // Triggers arriving from now on belong to the next run
+            boolean regularRunDue = startMillis >= syncState.regularDueMillis;
+            notifiedHistoryId = (regularRunDue || syncState.pendingUnconditional) ? null : syncState.pendingHistoryId;
+            syncState.pendingSinceMillis = 0;
+            syncState.pendingHistoryId = null;
+            syncState.pendingUnconditional = false;
         }
 
-        @Override
-        public void run() {
-            if (nextUpdateForUser == null) {
-                executeUpdateForAllUsers();
+        boolean userExists = true;
+        boolean skipped = false;
+        try {
+            User user = userService.getUserWithId(syncState.userId);
+            if (user == null) {
+                log.warn("User " + syncState.userId + " no longer exists, no further updates will be scheduled");
+                userExists = false;
+            } else if (notifiedHistoryId != null && notifiedHistoryId <= gmailDataService.getLastExaminedHistoryIdFromHistory(user.getGoogleUserId())) {
+                log.info("History for user " + user.getGoogleUserId() + " was already examined up to notified history id " + notifiedHistoryId + ", skipping update");
+                skipped = true;
             } else {
-                User userWithId = null;
-                try {
-                    userWithId = userService.getUserWithId(nextUpdateForUser);
-                    executeUpdateForSingleUser(userWithId);
-                } catch (SQLException | IOException e) {
-                    throw new RuntimeException("Exception processing update tasks for user: " + userWithId, e);
-                }
+                executeUpdateForSingleUser(user);
             }
-        }
-
-        // Perform updates for all users through iteration
-        private void executeUpdateForAllUsers() {
-            List<User> users = null;
-            String lastUserProcessed = null;
-            try {
-                users = userDao.queryForAll();
+        } catch (SQLException | IOException | RuntimeException e) {
+            log.warn("Exception processing update tasks for user: " + syncState.userId, e);
+
+        } finally {
+            synchronized (syncState) {
+                syncState.running = false;
+                syncState.lastRunMillis = System.currentTimeMillis() - startMillis;
+                if (skipped) {
+                    syncState.skippedRuns++; // Kept out of the average and maximum, which describe runs that did the work
+                } else {
+                    syncState.runs++;
+                    syncState.totalRunMillis += syncState.lastRunMillis;
+                    syncState.maxRunMillis = Math.max(syncState.maxRunMillis, syncState.lastRunMillis);
+                }
 
-                for (User nextUser : users) {
-                    lastUserProcessed = nextUser.getGoogleUserId();
-                    executeUpdateForSingleUser(nextUser);
+                if (userExists == false) {
+                    syncStateByUser.remove(syncState.userId);
+                } else if (syncState.rerunRequested) {
+                    syncState.rerunRequested = false;
+                    long now = System.currentTimeMillis();
+                    syncState.pendingSinceMillis = now;
+                    scheduleRun(syncState, debouncedStartMillis(now, now));
+                } else if (skipped) {
+                    scheduleRun(syncState, syncState.regularDueMillis); // Regular run stays where it was
+                } else {
+                    scheduleRegularRun(syncState);
                 }
-            } catch (SQLException | IOException e) {
-                throw new RuntimeException("Exception processing update tasks for user: " + lastUserProcessed, e);
             }
+            log.info("Finished update on thread " + Thread.currentThread().getName() + " - " + describeStatistics(syncState.userId));
+            log.info("Database " + daoOwner.getConnectionPool().describeStatistics());
+            log.info(gmailQuotaLimiter.describeStatistics());
         }
+    }
 
-        // Performs updates for a single user
-        private void executeUpdateForSingleUser(User user) throws IOException {
-            boolean userCredentialValid = gmailApiService.isCredentialValid(user.getGoogleUserId());
-            if (userCredentialValid) {
-                log.info("Credential is valid, executing update tasks for user: " + user.getGoogleUserId());
-                // This is a non-interactive process,
-                // if our credential is invalid there is no way to re-obtain authorization until the user is present at the UI
-                performApiUpdateTasksForUser(user);
-
-                log.info("Finished Runnable Task: " + message + " on thread " + Thread.currentThread().getName() + " -  Scheduling new task to start in {} seconds", TASK_INTERVAL__SECONDS);
-                schedule(TASK_INTERVAL__SECONDS);
-
+    // Performs updates for a single user
+    private void executeUpdateForSingleUser(User user) throws IOException {
+        boolean userCredentialValid = gmailApiService.isCredentialValid(user.getGoogleUserId());
+        if (userCredentialValid) {
+            log.info("Credential is valid, executing update tasks for user: " + user.getGoogleUserId());
+            // This is a non-interactive process,
+            // if our credential is invalid there is no way to re-obtain authorization until the user is present at the UI
+            performApiUpdateTasksForUser(user);
 
-            } else {
-                log.info("Credential is invalid, skipping non-interactive update tasks for user: " + user.getGoogleUserId());
-            }
+        } else {
+            log.info("Credential is invalid, skipping non-interactive update tasks for user: " + user.getGoogleUserId());
         }
+    }
 
-        // Things to run periodically
-        private void performApiUpdateTasksForUser(User user) {
-            log.info(new Date() + " Started Runnable Task: " + message + " on thread " + Thread.currentThread().getName());
-
-            String googleUserId = user.getGoogleUserId();
+    // Things to run periodically
+    private void performApiUpdateTasksForUser(User user) {
+        log.info(new Date() + " Started update for user " + user.getId() + " on thread " + Thread.currentThread().getName());
 
-            try {
-                log.info("Executing tasks for google user: " + googleUserId);
-                Long lastExaminedHistoryIdFromLabelInfo = gmailDataService.getLastExaminedHistoryIdFromLabelInfo(googleUserId);
-                Long lastExaminedHistoryIdFromHistory = gmailDataService.getLastExaminedHistoryIdFromHistory(googleUserId);
+        String googleUserId = user.getGoogleUserId();
 
-                log.info(" -- HISTORY -- User: " + googleUserId + " last examined history id: " + lastExaminedHistoryIdFromLabelInfo + " (label info), " + lastExaminedHistoryIdFromHistory + " (history info) ");
+        try {
+            log.info("Executing tasks for google user: " + googleUserId);
+            Long lastExaminedHistoryIdFromLabelInfo = gmailDataService.getLastExaminedHistoryIdFromLabelInfo(googleUserId);
+            Long lastExaminedHistoryIdFromHistory = gmailDataService.getLastExaminedHistoryIdFromHistory(googleUserId);
 
-                Integer softMaximumMessages;
-                if (lastExaminedHistoryIdFromLabelInfo == 0 && lastExaminedHistoryIdFromHistory == 0) {
-                    softMaximumMessages = 50;
-                    log.info(" -- HISTORY -- New Mailbox - examining a maximum of " + softMaximumMessages + " messages");
+            log.info(" -- HISTORY -- User: " + googleUserId + " last examined history id: " + lastExaminedHistoryIdFromLabelInfo + " (label info), " + lastExaminedHistoryIdFromHistory + " (history info) ");
 
-                } else {
-                    //We know the last-examined history ID, so catch up on history events before updating total count
-                    Long nextValidHistoryId = gmailService.findNextValidHistoryId(user, lastExaminedHistoryIdFromHistory +"");
-                    log.info(" -- HISTORY -- Examining records starting from history id: " + nextValidHistoryId);
-                    gmailService.updateHistoryStartingWith(user.getId(), nextValidHistoryId);
+            Integer softMaximumMessages;
+            if (lastExaminedHistoryIdFromLabelInfo == 0 && lastExaminedHistoryIdFromHistory == 0) {
+                softMaximumMessages = 50;
+                log.info(" -- HISTORY -- New Mailbox - examining a maximum of " + softMaximumMessages + " messages");
 
-                    softMaximumMessages = null; // Will fetch message details for ALL new messages
+            } else {
+                // Messages are updated from history unless a scan of inbox pages is due, scans still run now and then to repair any drift
+                Long lastInboxScanMillis = lastInboxScanMillisByUser.get(user.getId());
+                boolean inboxScanDue = applicationConfiguration.gmailDeltaSync == false || lastInboxScanMillis == null
+                        || System.currentTimeMillis() - lastInboxScanMillis > TimeUnit.HOURS.toMillis(applicationConfiguration.gmailDeltaSyncFullScanHours);
+
+                if (inboxScanDue == false && lastExaminedHistoryIdFromHistory != 0) {
+                    // Resume at exactly the last examined id, a later (valid) id could skip message additions or deletions in between
+                    Long latestHistoryId = gmailService.updateHistoryStartingWith(user.getId(), lastExaminedHistoryIdFromHistory, true);
+                    if (latestHistoryId != null) {
+                        log.info(" -- HISTORY -- Inbox updated from history through history id: " + latestHistoryId);
+                        gmailService.resyncInboxFromHistory(user, latestHistoryId); // Update stats and extra info on labels and messages
+                        return;
+                    }
+                    log.info(" -- HISTORY -- History from " + lastExaminedHistoryIdFromHistory + " is not available, scanning inbox pages instead");
                 }
 
-                gmailService.resyncInboxNewMessagesUpTo(user, softMaximumMessages); // Update stats and extra info on labels and messages
+                //We know the last-examined history ID, so catch up on history events before updating total count
+                Long nextValidHistoryId = gmailService.findNextValidHistoryId(user, lastExaminedHistoryIdFromHistory +"");
+                log.info(" -- HISTORY -- Examining records starting from history id: " + nextValidHistoryId);
+                if (nextValidHistoryId != null) {
+                    gmailService.updateHistoryStartingWith(user.getId(), nextValidHistoryId, false); // The inbox scan below takes care of messages
+                }
 
-            } catch (IOException | SQLException e) {
-                log.info(e.getClass().getSimpleName() + " was thrown");
-                e.printStackTrace();
+                softMaximumMessages = null; // Will fetch message details for ALL new messages
             }
+
+            long inboxScanStartMillis = System.currentTimeMillis();
+            gmailService.resyncInboxNewMessagesUpTo(user, softMaximumMessages); // Update stats and extra info on labels and messages
+            lastInboxScanMillisByUser.put(user.getId(), inboxScanStartMillis);
+
+        } catch (IOException | SQLException e) {
+            log.info(e.getClass().getSimpleName() + " was thrown");
+            e.printStackTrace();
+        }
+    }
+
+    // Guarded by its own lock, statistics are read for logging and status pages
+    private static class UserSyncState {
+        private final int userId;
+
+        private ScheduledFuture scheduledFuture;
+        private long generation;
+        private long nextRunMillis;
+        private long queuedAtMillis;
+        private boolean queued;
+        private boolean running;
+        private boolean rerunRequested;
+        private long regularDueMillis;
+
+        // Triggers received since the last run started
+        private long pendingSinceMillis;
+        private Long pendingHistoryId;
+        private boolean pendingUnconditional;
+
+        private long runs;
+        private long skippedRuns;
+        private long triggers;
+        private long triggersCoalesced;
+        private long lastLagMillis;
+        private long lastQueueWaitMillis;
+        private long lastRunMillis;
+        private long totalRunMillis;
+        private long maxRunMillis;
+
+        UserSyncState(int userId) {
+            this.userId = userId;
+        }
+
+        synchronized String describe() {
+            String state = running ? "running" : queued ? "queued" : scheduledFuture != null ? "next in " + Math.max(0, (nextRunMillis - System.currentTimeMillis()) / 1000) + "s" : "idle";
+            return "user " + userId + ": " + state + ", " + runs + " runs (" + skippedRuns + " skipped)"
+                    + ", last run " + lastRunMillis + "ms, avg " + (runs == 0 ? 0 : totalRunMillis / runs) + "ms, max " + maxRunMillis + "ms"
+                    + ", last lag " + lastLagMillis + "ms (" + lastQueueWaitMillis + "ms waiting for a worker)"
+                    + ", " + triggersCoalesced + " of " + triggers + " triggers coalesced";
         }
     }
 }
@@ -0,0 +1,139 @@
+package pack.frontend;
+
+import org.junit.Test;
+import pack.frontend.databind.DataSeriesLabelChangeSegments;
+import pack.frontend.databind.LongPoint;
+import pack.persist.data.dummy.HistoryEventDummy;
+import pack.persist.data.row.HistoryEventRow;
+import pack.persist.data.row.LabelCountRow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataPreparationFrontendTest {
+
+    @Test
+    public void boundaryEventsCountTowardsBothWindows() {
+        List<LabelCountRow> points = Arrays.asList(new LabelCountRow(100, 10, 5), new LabelCountRow(200, 11, 5), new LabelCountRow(300, 12, 4));
+        List<HistoryEventRow> events = Arrays.asList(event(100, 1, 0, 0, 0), event(150, 0, 2, 0, 0), event(200, 0, 0, 3, 0), event(300, 0, 0, 0, 4));
+
+        DataSeriesLabelChangeSegments series = DataPreparationFrontend.buildDataSeriesForAllCountChanges(points, events);
+
+        // First point gets [100, 100], second [100, 200], third [200, 300], the last point has no window of its own
+        assertEquals("[100:10->11, 100:10->11, 200:11->11]", describe(series.getSegmentsMessagesAdded()));
+        assertEquals("[100:10->10, 100:10->8, 200:11->11]", describe(series.getSegmentsMessagesRemoved()));
+        assertEquals("[100:5->5, 100:5->8, 200:5->8]", describe(series.getSegmentsUnreadAdded()));
+        assertEquals("[100:5->5, 100:5->5, 200:5->1]", describe(series.getSegmentsUnreadRemoved()));
+    }
+
+    @Test
+    public void pointsWithoutChangesHaveNoSegments() {
+        List<LabelCountRow> points = Arrays.asList(new LabelCountRow(100, 10, 5), new LabelCountRow(200, 10, 5), new LabelCountRow(300, 10, 5));
+        List<HistoryEventRow> events = Arrays.asList(event(250, 1, 0, 0, 0), event(260, 0, 0, 0, 0));
+
+        DataSeriesLabelChangeSegments series = DataPreparationFrontend.buildDataSeriesForAllCountChanges(points, events);
+
+        assertEquals("[200:10->11]", describe(series.getSegmentsMessagesAdded()));
+    }
+
+    @Test
+    public void matchesReferenceOnRandomSortedInput() {
+        Random random = new Random(24);
+        for (int round = 0; round < 200; round++) {
+            List<LabelCountRow> points = randomPoints(random, random.nextInt(40), true);
+            List<HistoryEventRow> events = randomEvents(random, random.nextInt(200), true);
+            assertSameAsReference(points, events);
+        }
+    }
+
+    @Test
+    public void matchesReferenceOnUnorderedInput() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            List<LabelCountRow> points = randomPoints(random, random.nextInt(40), random.nextBoolean());
+            List<HistoryEventRow> events = randomEvents(random, random.nextInt(200), random.nextBoolean());
+            assertSameAsReference(points, events);
+        }
+    }
+
+    private static void assertSameAsReference(List<LabelCountRow> points, List<HistoryEventRow> events) {
+        DataSeriesLabelChangeSegments expected = buildWithNestedLoops(points, events);
+        DataSeriesLabelChangeSegments actual = DataPreparationFrontend.buildDataSeriesForAllCountChanges(points, events);
+
+        assertEquals(describe(expected.getSegmentsMessagesAdded()), describe(actual.getSegmentsMessagesAdded()));
+        assertEquals(describe(expected.getSegmentsMessagesRemoved()), describe(actual.getSegmentsMessagesRemoved()));
+        assertEquals(describe(expected.getSegmentsUnreadAdded()), describe(actual.getSegmentsUnreadAdded()));
+        assertEquals(describe(expected.getSegmentsUnreadRemoved()), describe(actual.getSegmentsUnreadRemoved()));
+    }
+
+    // Times are drawn from a narrow range, so that many events fall exactly on point times and on each other
+    private static List<LabelCountRow> randomPoints(Random random, int count, boolean sorted) {
+        List<LabelCountRow> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new LabelCountRow(random.nextInt(100), random.nextInt(1000), random.nextInt(100)));
+        }
+        if (sorted) {
+            points.sort(Comparator.comparingLong(LabelCountRow::getUpdateTimeMillis));
+        }
+        return points;
+    }
+
+    private static List<HistoryEventRow> randomEvents(Random random, int count, boolean sorted) {
+        List<HistoryEventRow> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(event(random.nextInt(110) - 5, random.nextInt(3), random.nextInt(3), random.nextInt(2), random.nextInt(2)));
+        }
+        if (sorted) {
+            events.sort(Comparator.comparingLong(HistoryEventRow::getDateOccurred));
+        } else {
+            Collections.shuffle(events, random);
+        }
+        return events;
+    }
+
+    private static HistoryEventRow event(long dateOccurred, int messagesAdded, int messagesRemoved, int unreadAdded, int unreadRemoved) {
+        return new HistoryEventRow(dateOccurred, dateOccurred, 0, messagesAdded, messagesRemoved, unreadAdded, unreadRemoved);
+    }
+
+    // The aggregation as it was before the merge pass, every event is examined for every point
+    private static DataSeriesLabelChangeSegments buildWithNestedLoops(List<LabelCountRow> points, List<HistoryEventRow> events) {
+        DataSeriesLabelChangeSegments series = new DataSeriesLabelChangeSegments();
+        LabelCountRow pointToCollectDeltas = null;
+        for (LabelCountRow nextPoint : points) {
+            if (pointToCollectDeltas == null) {
+                pointToCollectDeltas = nextPoint;
+            }
+
+            HistoryEventDummy deltas = new HistoryEventDummy();
+            for (HistoryEventRow event : events) {
+                if (event.getDateOccurred() < pointToCollectDeltas.getUpdateTimeMillis() || nextPoint.getUpdateTimeMillis() < event.getDateOccurred()) {
+                    continue;
+                }
+                deltas.setMessagesAdded(deltas.getMessagesAdded() + event.getMessagesAdded());
+                deltas.setMessagesRemoved(deltas.getMessagesRemoved() + event.getMessagesRemoved());
+                deltas.setUnreadAdded(deltas.getUnreadAdded() + event.getUnreadAdded());
+                deltas.setUnreadRemoved(deltas.getUnreadRemoved() + event.getUnreadRemoved());
+            }
+            if (deltas.hasChanges()) {
+                series.applyDeltas(deltas, pointToCollectDeltas);
+            }
+
+            pointToCollectDeltas = nextPoint;
+        }
+        return series;
+    }
+
+    private static String describe(List<LongPoint[]> segments) {
+        List<String> descriptions = new ArrayList<>(segments.size());
+        for (LongPoint[] segment : segments) {
+            descriptions.add(segment[0].getX() + ":" + segment[0].getY() + "->" + segment[1].getY());
+        }
+        return descriptions.toString();
+    }
+}
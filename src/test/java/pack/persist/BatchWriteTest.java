@@ -0,0 +1,100 @@
+package pack.persist;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.table.TableUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pack.persist.data.Schema;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BatchWriteTest {
+
+    private static final String INSERT_SCHEMA_SQL = "INSERT INTO `schema` (`" + Schema.FIELD_SCHEMA_NAME + "`, `" + Schema.FIELD_SCHEMA_VERSION + "`) VALUES (?, ?)";
+
+    private MeteredPooledConnectionSource connectionSource;
+    private Dao<Schema, String> schemaDao;
+
+    @Before
+    public void setUp() throws Exception {
+        connectionSource = new MeteredPooledConnectionSource("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime() + ";DB_CLOSE_DELAY=-1", 2);
+        TableUtils.createTable(connectionSource, Schema.class);
+        schemaDao = DaoManager.createDao(connectionSource, Schema.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connectionSource.close();
+    }
+
+    @Test
+    public void executeOnItsOwnReleasesTheConnection() throws Exception {
+        assertEquals(2, batchOfRows(2).execute(connectionSource));
+
+        assertEquals(2, schemaDao.countOf());
+        assertPoolIdle();
+    }
+
+    @Test
+    public void executeWithinTransactionReleasesTheConnection() throws Exception {
+        for (int i = 0; i < 3; i++) { // The batch joins each transaction, and is no longer held once it ends
+            TransactionManager.callInTransaction(connectionSource, () -> batchOfRows(2).execute(connectionSource));
+            assertPoolIdle();
+        }
+
+        assertEquals(6, schemaDao.countOf());
+    }
+
+    @Test
+    public void rollbackOfTheTransactionUndoesTheBatch() throws Exception {
+        try {
+            TransactionManager.callInTransaction(connectionSource, () -> {
+                batchOfRows(2).execute(connectionSource);
+                throw new SQLException("Fails after the batch");
+            });
+            fail("Transaction should have failed");
+        } catch (SQLException e) {
+            assertEquals("Fails after the batch", e.getMessage());
+        }
+
+        assertEquals(0, schemaDao.countOf());
+        assertPoolIdle();
+    }
+
+    @Test
+    public void executeAfterTransactionStillRunsInItsOwnTransaction() throws Exception {
+        TransactionManager.callInTransaction(connectionSource, () -> batchOfRows(1).execute(connectionSource));
+
+        BatchWrite failingBatch = batchOfRows(2);
+        failingBatch.addRow("INSERT INTO `schema` (`no_such_column`) VALUES (?)", 1);
+        try {
+            failingBatch.execute(connectionSource);
+            fail("Batch should have failed");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        assertEquals("Rows of the failed batch are rolled back", 1, schemaDao.countOf());
+        assertPoolIdle();
+    }
+
+    private static BatchWrite batchOfRows(int rows) {
+        BatchWrite batchWrite = new BatchWrite();
+        for (int i = 0; i < rows; i++) {
+            batchWrite.addRow(INSERT_SCHEMA_SQL, "batch" + i, (long) i);
+        }
+        return batchWrite;
+    }
+
+    private void assertPoolIdle() {
+        assertNull("Thread still holds a transaction connection", connectionSource.getSpecialConnection());
+        assertEquals(connectionSource.describeStatistics(), 0, connectionSource.getActiveConnections());
+    }
+}
@@ -0,0 +1,217 @@
+package pack.persist.data.row;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import pack.frontend.DataPreparationFrontend;
+import pack.frontend.databind.DataPointMessageCount;
+import pack.frontend.databind.DataSeriesLabelChangeSegments;
+import pack.persist.DaoOwner;
+import pack.persist.data.GmailLabelUpdate;
+import pack.persist.data.HistoryEvent;
+import pack.persist.data.Schema;
+import pack.service.UserService;
+import pack.service.google.gmail.GmailDataService;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Chart data is read through HistoryEventRow and LabelCountRow, these run GmailDataService's queries against real tables
+public class RowProjectionTest {
+
+    private static final int USER_ID = 7;
+
+    private ConnectionSource connectionSource;
+    private Dao<HistoryEvent, String> historyDao;
+    private Dao<GmailLabelUpdate, String> labelDao;
+    private GmailDataService gmailDataService;
+
+    // Label counts are grouped in buckets ending now, so chart times are kept within the last hour
+    private final long chartTimeStart = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+    @Before
+    public void setUp() throws Exception {
+        connectionSource = new JdbcConnectionSource("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime());
+        TableUtils.createTable(connectionSource, HistoryEvent.class);
+        TableUtils.createTable(connectionSource, GmailLabelUpdate.class);
+        historyDao = DaoManager.createDao(connectionSource, HistoryEvent.class);
+        labelDao = DaoManager.createDao(connectionSource, GmailLabelUpdate.class);
+
+        gmailDataService = new GmailDataService();
+        setField(gmailDataService, "daoOwner", new DaoOwner() {
+            @Override
+            public Dao<HistoryEvent, String> getHistoryDao() {
+                return historyDao;
+            }
+
+            @Override
+            public Dao<GmailLabelUpdate, String> getLabelDao() {
+                return labelDao;
+            }
+        });
+        setField(gmailDataService, "userService", new UserService() {
+            @Override
+            public boolean userExistsWithId(int userId) {
+                return userId == USER_ID;
+            }
+        });
+        Method postConstruct = GmailDataService.class.getDeclaredMethod("postConstruct");
+        postConstruct.setAccessible(true);
+        postConstruct.invoke(gmailDataService);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connectionSource.close(); // Last connection to the in-memory database, which drops it
+    }
+
+    @Test
+    public void historyEventRowMapsEachColumn() throws Exception {
+        addHistoryEvent(1001, minutesIntoChart(5), HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME, 1, 2, 3, 4, "{}");
+
+        List<HistoryEventRow> rows = gmailDataService.getMailboxMessageChanges(USER_ID, chartTimeStart);
+
+        assertEquals(1, rows.size());
+        HistoryEventRow row = rows.get(0);
+        assertEquals(1001, row.getHistoryId());
+        assertEquals(minutesIntoChart(5), row.getDateOccurred());
+        assertEquals(HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME, row.getStatusObserved());
+        assertEquals(1, row.getMessagesAdded());
+        assertEquals(2, row.getMessagesRemoved());
+        assertEquals(3, row.getUnreadAdded());
+        assertEquals(4, row.getUnreadRemoved());
+    }
+
+    @Test
+    public void nullCountsInOlderRowsAreReadAsZero() throws Exception {
+        // Count columns were added by schema updates, rows from before then hold NULL
+        historyDao.executeRaw("INSERT INTO `" + Schema.TABLE_HISTORY_EVENTS + "` (`" + HistoryEvent.FIELD_USER_ID + "`, `" + HistoryEvent.FIELD_HISTORY_ID + "`, `"
+                + HistoryEvent.FIELD_DATE_OCCURRED + "`, `" + HistoryEvent.FIELD_JSON + "`, `" + HistoryEvent.FIELD_MESSAGES_ADDED + "`) VALUES (" + USER_ID + ", 1002, 5000, '', NULL)");
+
+        List<HistoryEventRow> rows = gmailDataService.getHistoryEventsWithDateStartingAt(USER_ID, BigInteger.valueOf(1000));
+
+        assertEquals(1, rows.size());
+        assertEquals(1002, rows.get(0).getHistoryId());
+        assertEquals(5000, rows.get(0).getDateOccurred());
+        assertEquals(0, rows.get(0).getMessagesAdded());
+        assertEquals(false, rows.get(0).hasChanges());
+    }
+
+    @Test
+    public void labelCountRowMapsEachColumn() throws Exception {
+        addLabelUpdate(minutesIntoChart(10), 120, 30);
+
+        List<LabelCountRow> rows = gmailDataService.getMessageAndUnreadCountClose(USER_ID, chartTimeStart);
+
+        assertEquals(1, rows.size());
+        assertEquals(minutesIntoChart(10), rows.get(0).getUpdateTimeMillis());
+        assertEquals(120, rows.get(0).getMessagesTotal());
+        assertEquals(30, rows.get(0).getMessagesUnread());
+    }
+
+    @Test
+    public void combinedChartDataIsBuiltFromProjectedRows() throws Exception {
+        addLabelUpdate(minutesIntoChart(10), 100, 10);
+        addLabelUpdate(minutesIntoChart(20), 102, 11);
+        addLabelUpdate(minutesIntoChart(30), 101, 11);
+        addHistoryEvent(11, minutesIntoChart(15), HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME, 2, 0, 1, 0, "{}");
+        addHistoryEvent(12, minutesIntoChart(25), HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_REALTIME, 0, 1, 0, 0, "{}");
+        addHistoryEvent(13, minutesIntoChart(25), HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_FIRSTUPDATE, 5, 0, 0, 0, "{}"); // Left out of charts
+
+        List<LabelCountRow> labelCountRows = gmailDataService.getMessageAndUnreadCountClose(USER_ID, chartTimeStart);
+        List<HistoryEventRow> historyEventRows = gmailDataService.getMailboxMessageChanges(USER_ID, chartTimeStart);
+        List<DataPointMessageCount> messageCounts = DataPreparationFrontend.buildDataSeriesAllMessagesCount(labelCountRows);
+        DataSeriesLabelChangeSegments segments = DataPreparationFrontend.buildDataSeriesForAllCountChanges(labelCountRows, historyEventRows);
+
+        assertEquals(2, historyEventRows.size());
+        assertEquals(3, messageCounts.size());
+        assertEquals(minutesIntoChart(20), messageCounts.get(1).getDateTimeMillis());
+        assertEquals(102, messageCounts.get(1).getMessageCount());
+        assertEquals(11, messageCounts.get(1).getUnreadCount());
+
+        // Changes between the first and second point belong to the first point, those between the second and third to the second
+        assertEquals(2, segments.getSegmentsMessagesAdded().size());
+        assertEquals(102, segments.getSegmentsMessagesAdded().get(0)[1].getY());
+        assertEquals(11, segments.getSegmentsUnreadAdded().get(0)[1].getY());
+        assertEquals(minutesIntoChart(20), segments.getSegmentsMessagesRemoved().get(1)[0].getX());
+        assertEquals(101, segments.getSegmentsMessagesRemoved().get(1)[1].getY());
+    }
+
+    // Before and after: reading full entities (with their JSON) compared to reading only the projected columns
+    @Test
+    public void projectionAllocatesLessThanEntities() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        // Events without a date are read as entities, the same events are also matched by the query for events with a date (from 0)
+        char[] json = new char[4096];
+        Arrays.fill(json, 'x');
+        for (int i = 0; i < 1000; i++) {
+            addHistoryEvent(i, 0, HistoryEvent.FIELD_STATUS_OBSERVED__STATUS_OBSERVED_DELAY, 1, 0, 0, 0, new String(json));
+        }
+        gmailDataService.getHistoryEventsWithoutDateStartingAt(USER_ID, BigInteger.ZERO); // Warm up both paths
+        gmailDataService.getHistoryEventsWithDateStartingAt(USER_ID, BigInteger.ZERO);
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        assertEquals(1000, gmailDataService.getHistoryEventsWithoutDateStartingAt(USER_ID, BigInteger.ZERO).size());
+        long entityBytes = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocationBean.getThreadAllocatedBytes(threadId);
+        assertEquals(1000, gmailDataService.getHistoryEventsWithDateStartingAt(USER_ID, BigInteger.ZERO).size());
+        long rowBytes = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Reading 1000 history events allocated " + rowBytes + " bytes as rows, " + entityBytes + " bytes as entities",
+                rowBytes * 2 < entityBytes);
+    }
+
+    private long minutesIntoChart(int minutes) {
+        return chartTimeStart + TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    private void addHistoryEvent(long historyId, long dateOccurred, int statusObserved, int messagesAdded, int messagesRemoved, int unreadAdded, int unreadRemoved, String json) throws Exception {
+        HistoryEvent historyEvent = new HistoryEvent();
+        historyEvent.setUserId(USER_ID);
+        historyEvent.setHistoryId(historyId);
+        historyEvent.setDateOccurred(dateOccurred);
+        historyEvent.setStatusObserved(statusObserved);
+        historyEvent.setMessagesAdded(messagesAdded);
+        historyEvent.setMessagesRemoved(messagesRemoved);
+        historyEvent.setUnreadAdded(unreadAdded);
+        historyEvent.setUnreadRemoved(unreadRemoved);
+        historyEvent.setJson(json);
+        historyDao.create(historyEvent);
+    }
+
+    private void addLabelUpdate(long updateTimeMillis, int messagesTotal, int messagesUnread) throws Exception {
+        GmailLabelUpdate labelUpdate = new GmailLabelUpdate();
+        labelUpdate.setUserId(USER_ID);
+        labelUpdate.setLabelName("INBOX");
+        labelUpdate.setUpdateTimeMillis(updateTimeMillis);
+        labelUpdate.setMessagesTotal(messagesTotal);
+        labelUpdate.setMessagesUnread(messagesUnread);
+        labelDao.create(labelUpdate);
+    }
+
+    private static void setField(Object target, String fieldName, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,153 @@
+package pack.service.google.gmail;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Label;
+import org.junit.Before;
+import org.junit.Test;
+import pack.ApplicationConfiguration;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GmailQuotaLimiterTest {
+
+    private static final String GOOGLE_USER_ID = "user@example.com";
+    private static final String LABEL_JSON = "{\"id\":\"INBOX\",\"name\":\"INBOX\",\"messagesTotal\":12,\"messagesUnread\":3}";
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private GmailQuotaLimiter gmailQuotaLimiter;
+    private StubGmailTransport transport;
+    private Gmail gmail;
+
+    @Before
+    public void setUp() throws Exception {
+        ApplicationConfiguration applicationConfiguration = new ApplicationConfiguration();
+        applicationConfiguration.gmailQuotaUserUnitsPerSecond = 1000000;
+        applicationConfiguration.gmailQuotaProjectUnitsPerSecond = 1000000;
+        applicationConfiguration.gmailRetryMaximumAttempts = 3;
+        applicationConfiguration.gmailRetryInitialBackoffMillis = 1;
+        applicationConfiguration.gmailRetryMaximumBackoffMillis = 2;
+
+        gmailQuotaLimiter = new GmailQuotaLimiter();
+        Field configurationField = GmailQuotaLimiter.class.getDeclaredField("applicationConfiguration");
+        configurationField.setAccessible(true);
+        configurationField.set(gmailQuotaLimiter, applicationConfiguration);
+
+        transport = new StubGmailTransport();
+        gmail = transport.buildGmail();
+    }
+
+    @Test
+    public void reserveWaitsForUnitsBeyondTheBucket() {
+        GmailQuotaLimiter.TokenBucket bucket = new GmailQuotaLimiter.TokenBucket(10, 0);
+        assertEquals(0, bucket.reserve(10, 0)); // A full second of units is available at once
+        assertEquals(SECOND / 2, bucket.reserve(5, 0)); // 5 units over, refilled at 10 per second
+        assertEquals(0, bucket.reserve(5, SECOND)); // Refilled by 10, exactly enough
+        assertEquals(SECOND / 10, bucket.reserve(1, SECOND));
+    }
+
+    @Test
+    public void refillIsCappedAtOneSecondOfUnits() {
+        GmailQuotaLimiter.TokenBucket bucket = new GmailQuotaLimiter.TokenBucket(10, 0);
+        assertEquals(0, bucket.reserve(10, 60 * SECOND)); // A minute idle still only allows a burst of 10
+        assertEquals(SECOND / 10, bucket.reserve(1, 60 * SECOND));
+    }
+
+    @Test
+    public void slowDownHalvesTheRateAndDiscardsTheBurst() {
+        GmailQuotaLimiter.TokenBucket bucket = new GmailQuotaLimiter.TokenBucket(16, 0);
+        assertEquals(8, bucket.slowDown(0), 0);
+        assertEquals(SECOND / 2, bucket.reserve(4, 0)); // No saved-up units, 4 units at 8 per second
+
+        assertEquals(4, bucket.slowDown(0), 0);
+        assertEquals(2, bucket.slowDown(0), 0);
+        assertEquals(1, bucket.slowDown(0), 0);
+        assertEquals(1, bucket.slowDown(0), 0); // Never below a sixteenth of the configured rate
+    }
+
+    @Test
+    public void recoverRaisesTheRateUpToTheConfiguredRate() {
+        GmailQuotaLimiter.TokenBucket bucket = new GmailQuotaLimiter.TokenBucket(20, 0);
+        bucket.slowDown(0); // 10
+        bucket.recover(); // 11
+        assertEquals(5.5, bucket.slowDown(0), 0.0001);
+
+        for (int i = 0; i < 100; i++) {
+            bucket.recover();
+        }
+        assertEquals(10, bucket.slowDown(0), 0.0001); // Recovered to 20, not beyond
+    }
+
+    @Test
+    public void retriesRateLimitedCalls() throws Exception {
+        transport.rateLimited().rateLimited().respond(200, LABEL_JSON);
+
+        Label label = gmailQuotaLimiter.execute(GOOGLE_USER_ID, GmailQuotaLimiter.COST__LABELS_GET,
+                () -> gmail.users().labels().get("me", "INBOX").execute());
+
+        assertEquals(Integer.valueOf(12), label.getMessagesTotal());
+        assertEquals(3, transport.getRequestCount());
+        assertTrue(gmailQuotaLimiter.describeStatistics().contains("2 retries"));
+        assertTrue(gmailQuotaLimiter.describeStatistics().contains("2 rate limited"));
+    }
+
+    @Test
+    public void retriesServerErrors() throws Exception {
+        transport.respond(503, StubGmailTransport.SERVER_ERROR_JSON, 20).respond(200, LABEL_JSON);
+
+        Label label = gmailQuotaLimiter.execute(GOOGLE_USER_ID, GmailQuotaLimiter.COST__LABELS_GET,
+                () -> gmail.users().labels().get("me", "INBOX").execute());
+
+        assertEquals(Integer.valueOf(3), label.getMessagesUnread());
+        assertEquals(2, transport.getRequestCount());
+        assertTrue(gmailQuotaLimiter.describeStatistics().contains("0 rate limited"));
+    }
+
+    @Test
+    public void givesUpAfterMaximumAttempts() throws Exception {
+        transport.rateLimited();
+
+        try {
+            gmailQuotaLimiter.execute(GOOGLE_USER_ID, GmailQuotaLimiter.COST__LABELS_GET,
+                    () -> gmail.users().labels().get("me", "INBOX").execute());
+            fail("Expected the rate limit to be passed on");
+        } catch (GoogleJsonResponseException e) {
+            assertEquals(429, e.getStatusCode());
+        }
+        assertEquals(3, transport.getRequestCount());
+    }
+
+    @Test
+    public void passesOnNotFoundWithoutRetrying() throws Exception {
+        transport.respond(404, StubGmailTransport.NOT_FOUND_JSON).respond(200, LABEL_JSON);
+
+        try {
+            gmailQuotaLimiter.execute(GOOGLE_USER_ID, GmailQuotaLimiter.COST__HISTORY_LIST,
+                    () -> gmail.users().labels().get("me", "INBOX").execute());
+            fail("Expected 404 to be passed on");
+        } catch (GoogleJsonResponseException e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        assertEquals(1, transport.getRequestCount());
+    }
+
+    @Test
+    public void rateLimitIsRecognisedFromForbiddenReason() {
+        GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+        errorInfo.setReason("userRateLimitExceeded");
+        GoogleJsonError error = new GoogleJsonError();
+        error.setErrors(Collections.singletonList(errorInfo));
+
+        assertTrue(GmailQuotaLimiter.isRateLimited(429, null));
+        assertTrue(GmailQuotaLimiter.isRateLimited(403, error));
+        assertFalse(GmailQuotaLimiter.isRateLimited(403, null)); // Forbidden for other reasons, e.g. insufficient permission
+    }
+}
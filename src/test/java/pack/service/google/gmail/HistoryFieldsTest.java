@@ -0,0 +1,164 @@
+package pack.service.google.gmail;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.api.services.gmail.model.Message;
+import org.junit.Before;
+import org.junit.Test;
+import pack.ApplicationConfiguration;
+import pack.persist.SpecializedDatabaseTasks;
+import pack.persist.data.HistoryEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// History is requested with HISTORY_LIST_FIELDS, the fixtures are one page of history as Gmail returns it with and without that mask
+// Whatever the mask leaves out must not be needed by the code that reads history events, as they arrive or later from stored JSON
+public class HistoryFieldsTest {
+
+    private static final String GOOGLE_USER_ID = "google-user";
+    private static final String FIXTURE_FULL = "history-page-full.json";
+    private static final String FIXTURE_TRIMMED = "history-page-trimmed.json";
+
+    private final DataPreparationService dataPreparationService = new DataPreparationService();
+    private StubGmailTransport stubGmailTransport;
+    private GmailApiService gmailApiService;
+
+    @Before
+    public void setUp() throws Exception {
+        ApplicationConfiguration applicationConfiguration = new ApplicationConfiguration();
+        applicationConfiguration.gmailQuotaUserUnitsPerSecond = 1000000;
+        applicationConfiguration.gmailQuotaProjectUnitsPerSecond = 1000000;
+        applicationConfiguration.gmailRetryMaximumAttempts = 1;
+
+        GmailQuotaLimiter gmailQuotaLimiter = new GmailQuotaLimiter();
+        Field configurationField = GmailQuotaLimiter.class.getDeclaredField("applicationConfiguration");
+        configurationField.setAccessible(true);
+        configurationField.set(gmailQuotaLimiter, applicationConfiguration);
+
+        stubGmailTransport = new StubGmailTransport();
+        Gmail gmail = stubGmailTransport.buildGmail();
+        gmailApiService = new GmailApiService() {
+            @Override
+            public Gmail getGmailService(String googleUserId) {
+                return gmail;
+            }
+        };
+        gmailApiService.applicationConfiguration = applicationConfiguration;
+        gmailApiService.gmailQuotaLimiter = gmailQuotaLimiter;
+    }
+
+    @Test
+    public void historyRequestAsksForTheFieldMask() throws Exception {
+        stubGmailTransport.respond(200, readFixture(FIXTURE_TRIMMED));
+
+        gmailApiService.getMessageHistoryFrom(GOOGLE_USER_ID, 8800L);
+
+        assertEquals(1, stubGmailTransport.getRequestCount());
+        String requestUrl = stubGmailTransport.getRequestUrls().get(0);
+        assertTrue(requestUrl, requestUrl.contains("fields="));
+        assertTrue(requestUrl, requestUrl.contains("startHistoryId=8800"));
+    }
+
+    @Test
+    public void trimmedHistoryCountsMatchFullHistory() throws Exception {
+        List<History> fullHistory = fetchHistory(FIXTURE_FULL);
+        List<History> trimmedHistory = fetchHistory(FIXTURE_TRIMMED);
+
+        assertEquals(24, trimmedHistory.size());
+        assertEquals(fullHistory.size(), trimmedHistory.size());
+        int eventsWithChanges = 0;
+        for (int i = 0; i < fullHistory.size(); i++) {
+            assertEquals(fullHistory.get(i).getId(), trimmedHistory.get(i).getId());
+            String countsFromFull = countSignature(fullHistory.get(i));
+            assertEquals("History id " + trimmedHistory.get(i).getId(), countsFromFull, countSignature(trimmedHistory.get(i)));
+            if (countsFromFull.equals("0000") == false) {
+                eventsWithChanges++;
+            }
+        }
+        assertTrue("Fixture should change counts", eventsWithChanges > 0);
+    }
+
+    @Test
+    public void storedTrimmedJsonParsesForBackfill() throws Exception {
+        Method parseJson = SpecializedDatabaseTasks.class.getDeclaredMethod("parseJsonToGoogleApiHistoryEvent", String.class);
+        parseJson.setAccessible(true);
+        SpecializedDatabaseTasks specializedDatabaseTasks = new SpecializedDatabaseTasks();
+
+        for (History historyFromApi : fetchHistory(FIXTURE_TRIMMED)) {
+            String storedJson = historyFromApi.toString(); // As GmailDataService stores each event
+            History historyFromJson = (History) parseJson.invoke(specializedDatabaseTasks, storedJson);
+
+            assertEquals(historyFromApi.getId(), historyFromJson.getId());
+            assertEquals(countSignature(historyFromApi), countSignature(historyFromJson));
+
+            // Date backfill looks up each message by id
+            List<String> messageIds = new ArrayList<>();
+            for (Message message : historyFromJson.getMessages()) {
+                messageIds.add(message.getId());
+            }
+            assertEquals(historyFromApi.getMessages().size(), messageIds.size());
+            assertEquals(historyFromApi.getMessages().get(0).getId(), messageIds.get(0));
+        }
+    }
+
+    // Before and after: bytes served for the same page, and time spent parsing it
+    @Test
+    public void trimmedHistoryIsSmaller() throws Exception {
+        fetchHistory(FIXTURE_FULL);
+        long fullBytes = stubGmailTransport.getBytesServed();
+        fetchHistory(FIXTURE_TRIMMED);
+        long trimmedBytes = stubGmailTransport.getBytesServed() - fullBytes;
+
+        long fullParseNanos = parseNanos(readFixture(FIXTURE_FULL));
+        long trimmedParseNanos = parseNanos(readFixture(FIXTURE_TRIMMED));
+        // Parse times differ by less than their noise on a page this size, they are reported but not compared
+        assertTrue("History page trimmed: " + trimmedBytes + " bytes, " + trimmedParseNanos / 1000 + "us to parse;"
+                        + " in full: " + fullBytes + " bytes, " + fullParseNanos / 1000 + "us to parse",
+                trimmedBytes < fullBytes);
+    }
+
+    private List<History> fetchHistory(String fixture) throws IOException {
+        stubGmailTransport.respond(200, readFixture(fixture));
+        return gmailApiService.getMessageHistoryFrom(GOOGLE_USER_ID, 8800L);
+    }
+
+    private String countSignature(History history) throws Exception {
+        HistoryEvent historyEvent = new HistoryEvent();
+        dataPreparationService.populateEntityObjectFromApi(historyEvent, history);
+        return "" + historyEvent.getMessagesAdded() + historyEvent.getMessagesRemoved() + historyEvent.getUnreadAdded() + historyEvent.getUnreadRemoved();
+    }
+
+    // Average over repeated parses, after parsing once to warm up
+    private static long parseNanos(String json) throws IOException {
+        int repetitions = 200;
+        JacksonFactory.getDefaultInstance().fromString(json, ListHistoryResponse.class);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            JacksonFactory.getDefaultInstance().fromString(json, ListHistoryResponse.class);
+        }
+        return (System.nanoTime() - startNanos) / repetitions;
+    }
+
+    private String readFixture(String name) throws IOException {
+        try (InputStream inputStream = getClass().getResourceAsStream(name)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = inputStream.read(buffer)) != -1; ) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
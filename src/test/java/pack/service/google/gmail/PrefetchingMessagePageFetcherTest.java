@@ -0,0 +1,81 @@
+package pack.service.google.gmail;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrefetchingMessagePageFetcherTest {
+
+    @Test(timeout = 10000)
+    public void failureWhileQueueIsFullReachesTheCaller() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        PrefetchingMessagePageFetcher pageFetcher = new PrefetchingMessagePageFetcher(new ScriptedPageSource(3, failed), 1, "test");
+
+        assertEquals("page 1", pageFetcher.getNextPage().get(0).getId());
+        assertEquals("page 2", pageFetcher.getNextPage().get(0).getId());
+        // Page 3 waits in the queue of one while the next fetch fails
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200); // Lets the fetch thread report the failure before the caller makes room in the queue
+        assertEquals("page 3", pageFetcher.getNextPage().get(0).getId());
+        try {
+            pageFetcher.getNextPage();
+            fail("Failure of the background fetch should be thrown");
+        } catch (IOException e) {
+            assertEquals("Fetch of page 4 failed", e.getMessage());
+        }
+        pageFetcher.close();
+    }
+
+    @Test(timeout = 10000)
+    public void pagesArriveInOrderUntilTheLast() throws Exception {
+        PrefetchingMessagePageFetcher pageFetcher = new PrefetchingMessagePageFetcher(new ScriptedPageSource(5, null), 1, "test");
+
+        List<String> pagesSeen = new ArrayList<>();
+        for (List<Message> page; (page = pageFetcher.getNextPage()) != null; ) {
+            pagesSeen.add(page.get(0).getId());
+        }
+        pageFetcher.close();
+
+        assertEquals("[page 1, page 2, page 3, page 4, page 5]", pagesSeen.toString());
+        assertEquals(null, pageFetcher.getNextPage());
+    }
+
+    // Returns the given number of pages, then either the end of pages or (with a latch to count down) a failure
+    private static class ScriptedPageSource implements MessagePageFetcher {
+        private final int pages;
+        private final CountDownLatch failed;
+        private int pagesReturned;
+
+        ScriptedPageSource(int pages, CountDownLatch failed) {
+            this.pages = pages;
+            this.failed = failed;
+        }
+
+        @Override
+        public List<Message> getNextPage() throws IOException {
+            if (pagesReturned == pages) {
+                if (failed == null) {
+                    return null;
+                }
+                failed.countDown();
+                throw new IOException("Fetch of page " + (pages + 1) + " failed");
+            }
+            pagesReturned++;
+            return Collections.singletonList(new Message().setId("page " + pagesReturned));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
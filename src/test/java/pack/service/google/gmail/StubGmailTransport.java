@@ -0,0 +1,111 @@
+package pack.service.google.gmail;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Stands in for the Gmail API: each request is answered with the next queued response, after that response's latency
+// The last response is repeated once the queue is empty, so a single rate limit response keeps refusing every request
+class StubGmailTransport extends MockHttpTransport {
+
+    static final String RATE_LIMITED_JSON = "{\"error\":{\"code\":429,\"message\":\"Too many requests\",\"errors\":[{\"reason\":\"rateLimitExceeded\"}]}}";
+    static final String SERVER_ERROR_JSON = "{\"error\":{\"code\":503,\"message\":\"Backend error\",\"errors\":[{\"reason\":\"backendError\"}]}}";
+    static final String NOT_FOUND_JSON = "{\"error\":{\"code\":404,\"message\":\"Requested entity was not found.\",\"errors\":[{\"reason\":\"notFound\"}]}}";
+
+    private final Deque<StubResponse> responses = new ArrayDeque<>();
+    private final List<String> requestUrls = new ArrayList<>();
+    private StubResponse lastResponse;
+    private long bytesServed;
+
+    StubGmailTransport respond(int statusCode, String json) {
+        return respond(statusCode, json, 0);
+    }
+
+    synchronized StubGmailTransport respond(int statusCode, String json, long latencyMillis) {
+        responses.add(new StubResponse(statusCode, json, latencyMillis));
+        return this;
+    }
+
+    StubGmailTransport rateLimited() {
+        return respond(429, RATE_LIMITED_JSON);
+    }
+
+    synchronized List<String> getRequestUrls() {
+        return new ArrayList<>(requestUrls);
+    }
+
+    synchronized int getRequestCount() {
+        return requestUrls.size();
+    }
+
+    synchronized long getBytesServed() {
+        return bytesServed;
+    }
+
+    Gmail buildGmail() {
+        return new Gmail.Builder(this, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("StubGmailTransport")
+                .build();
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                StubResponse stubResponse = nextResponse(url);
+                if (stubResponse.latencyMillis > 0) {
+                    try {
+                        Thread.sleep(stubResponse.latencyMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted during stub latency");
+                    }
+                }
+
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+                response.setStatusCode(stubResponse.statusCode);
+                response.setContentType("application/json; charset=UTF-8");
+                response.setContent(stubResponse.json);
+                return response;
+            }
+        };
+    }
+
+    private synchronized StubResponse nextResponse(String url) {
+        requestUrls.add(url);
+        StubResponse next = responses.poll();
+        if (next == null) {
+            next = lastResponse;
+        }
+        if (next == null) {
+            throw new IllegalStateException("No response queued for " + url);
+        }
+        lastResponse = next;
+        bytesServed += next.json.length();
+        return next;
+    }
+
+    private static class StubResponse {
+        private final int statusCode;
+        private final String json;
+        private final long latencyMillis;
+
+        StubResponse(int statusCode, String json, long latencyMillis) {
+            this.statusCode = statusCode;
+            this.json = json;
+            this.latencyMillis = latencyMillis;
+        }
+    }
+}
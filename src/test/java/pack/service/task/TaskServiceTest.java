@@ -0,0 +1,168 @@
+package pack.service.task;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.table.TableUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import pack.ApplicationConfiguration;
+import pack.persist.DaoOwner;
+import pack.persist.MeteredPooledConnectionSource;
+import pack.persist.data.User;
+import pack.service.UserService;
+import pack.service.google.gmail.GmailApiService;
+import pack.service.google.gmail.GmailDataService;
+import pack.service.google.gmail.GmailQuotaLimiter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Drives notification triggers through a real scheduler, the services a run calls are stubbed
+public class TaskServiceTest {
+
+    private static final String GOOGLE_USER_ID = "google-user";
+
+    private static final long DEBOUNCE_SECONDS = 1;
+    private static final long MAXIMUM_DELAY_SECONDS = 2;
+    private static final long TRIGGERS = 15;
+    private static final long TRIGGER_INTERVAL_MILLIS = 100; // Triggers keep arriving within the debounce window, only the maximum delay ends the burst
+    private static final long SCHEDULING_TOLERANCE_MILLIS = 500;
+
+    private final List<Long> runStartMillis = Collections.synchronizedList(new ArrayList<>());
+    private volatile long lastExaminedHistoryId;
+
+    private User user;
+    private MeteredPooledConnectionSource connectionSource;
+    private ThreadPoolTaskScheduler threadPoolTaskScheduler;
+    private TaskService taskService;
+
+    @Before
+    public void setUp() throws Exception {
+        ApplicationConfiguration applicationConfiguration = new ApplicationConfiguration();
+        applicationConfiguration.syncWorkerThreads = 2;
+        applicationConfiguration.syncTriggerDebounceSeconds = DEBOUNCE_SECONDS;
+        applicationConfiguration.syncTriggerMaxDelaySeconds = MAXIMUM_DELAY_SECONDS;
+
+        connectionSource = new MeteredPooledConnectionSource("jdbc:h2:mem:" + getClass().getSimpleName() + System.nanoTime() + ";DB_CLOSE_DELAY=-1", 2);
+        TableUtils.createTable(connectionSource, User.class);
+        Dao<User, String> userDao = DaoManager.createDao(connectionSource, User.class);
+        user = new User();
+        user.setGoogleUserId(GOOGLE_USER_ID);
+        userDao.create(user); // Assigns the id
+
+        threadPoolTaskScheduler = new ThreadPoolTaskScheduler();
+        threadPoolTaskScheduler.initialize();
+
+        taskService = new TaskService();
+        setField(taskService, "applicationConfiguration", applicationConfiguration);
+        setField(taskService, "threadPoolTaskScheduler", threadPoolTaskScheduler);
+        setField(taskService, "gmailQuotaLimiter", new GmailQuotaLimiter());
+        setField(taskService, "daoOwner", new DaoOwner() {
+            @Override
+            public MeteredPooledConnectionSource getConnectionPool() {
+                return connectionSource;
+            }
+
+            @Override
+            public Dao<User, String> getUserDao() {
+                return userDao;
+            }
+        });
+        setField(taskService, "userService", new UserService() {
+            @Override
+            public User getUserWithId(long userId) {
+                return userId == user.getId() ? user : null;
+            }
+        });
+        setField(taskService, "gmailDataService", new GmailDataService() {
+            @Override
+            public Long getLastExaminedHistoryIdFromHistory(String googleUserId) {
+                return lastExaminedHistoryId;
+            }
+        });
+        setField(taskService, "gmailApiService", new GmailApiService() {
+            @Override
+            public boolean isCredentialValid(String googleUserId) {
+                runStartMillis.add(System.currentTimeMillis()); // First call of a run that was not skipped
+                return false;
+            }
+        });
+        Method postConstruct = TaskService.class.getDeclaredMethod("postConstruct");
+        postConstruct.setAccessible(true);
+        postConstruct.invoke(taskService);
+
+        taskService.scheduleAllUsers(); // Regular run is 15 minutes out, so only the triggers below can start a run
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Method preDestroy = TaskService.class.getDeclaredMethod("preDestroy");
+        preDestroy.setAccessible(true);
+        preDestroy.invoke(taskService);
+        threadPoolTaskScheduler.shutdown();
+        connectionSource.close();
+    }
+
+    @Test
+    public void burstOfTriggersStartsOneRunWithinTheMaximumDelay() throws Exception {
+        List<Long> notifiedHistoryIds = shuffledHistoryIds();
+        lastExaminedHistoryId = Collections.max(notifiedHistoryIds) - 1; // Only the highest id makes the run do any work
+
+        long firstTriggerMillis = fireTriggers(notifiedHistoryIds);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(MAXIMUM_DELAY_SECONDS + DEBOUNCE_SECONDS) + SCHEDULING_TOLERANCE_MILLIS);
+
+        assertEquals("Runs started: " + runStartMillis, 1, runStartMillis.size());
+        long startDelayMillis = runStartMillis.get(0) - firstTriggerMillis;
+        assertTrue("Run started " + startDelayMillis + "ms after the first trigger",
+                startDelayMillis <= TimeUnit.SECONDS.toMillis(MAXIMUM_DELAY_SECONDS) + SCHEDULING_TOLERANCE_MILLIS);
+        assertTrue(taskService.describeStatistics(user.getId()), taskService.describeStatistics(user.getId()).contains("1 runs (0 skipped)"));
+        assertTrue(taskService.describeStatistics(user.getId()), taskService.describeStatistics(user.getId()).contains(TRIGGERS - 1 + " of " + TRIGGERS + " triggers coalesced"));
+    }
+
+    @Test
+    public void burstAlreadyExaminedUpToTheHighestIdIsSkipped() throws Exception {
+        List<Long> notifiedHistoryIds = shuffledHistoryIds();
+        lastExaminedHistoryId = Collections.max(notifiedHistoryIds);
+
+        fireTriggers(notifiedHistoryIds);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(MAXIMUM_DELAY_SECONDS + DEBOUNCE_SECONDS) + SCHEDULING_TOLERANCE_MILLIS);
+
+        assertEquals("Runs started: " + runStartMillis, 0, runStartMillis.size());
+        assertTrue(taskService.describeStatistics(user.getId()), taskService.describeStatistics(user.getId()).contains("0 runs (1 skipped)"));
+    }
+
+    // Returns the time of the first trigger
+    private long fireTriggers(List<Long> notifiedHistoryIds) throws InterruptedException {
+        long firstTriggerMillis = System.currentTimeMillis();
+        for (Long notifiedHistoryId : notifiedHistoryIds) {
+            assertTrue(taskService.triggerSoon(user.getId(), notifiedHistoryId));
+            Thread.sleep(TRIGGER_INTERVAL_MILLIS);
+        }
+        return firstTriggerMillis;
+    }
+
+    private static List<Long> shuffledHistoryIds() {
+        List<Long> historyIds = new ArrayList<>();
+        for (long i = 0; i < TRIGGERS; i++) {
+            historyIds.add(5000 + i * 7);
+        }
+        Collections.shuffle(historyIds, new Random(18));
+        return historyIds;
+    }
+
+    private static void setField(Object target, String fieldName, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}